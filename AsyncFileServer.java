@@ -0,0 +1,564 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Completion-based server engine used with --engine=async, built on AsynchronousServerSocketChannel.
+// No thread waits on a connection: every read and write is started with a CompletionHandler and the
+// next step runs once it completes, on a small group of threads. A connection waiting for its command,
+// or trickling an upload, holds one 4 KB slice of BufferPool.HEADER_SLICES; one moving data faster
+// holds a 64 KB slice of BufferPool.TRANSFER_SLICES instead. An idle or slow connection thus costs a
+// few KB of direct memory rather than a thread, its stack and its stream buffers, and moving data
+// allocates nothing.
+// Like NioFileServer it serves UPLOAD, DOWNLOAD, LIST and CLEAR itself, writing uploads through an
+// AsynchronousFileChannel. The replies to LIST and CLEAR are built on FileServer.sessionPool, so a long
+// listing or clear never stalls an I/O thread. Any other command (e.g. SESSION) is handed over to a
+// FileServer.ClientHandler on FileServer.sessionPool, which reads and writes the same channel through blocking streams.
+public class AsyncFileServer {
+    // How long to wait before accepting again when accepting fails, e.g. out of file descriptors
+    private static final long ACCEPT_RETRY_MS = 100;
+    // The writeUTF form of "OK", sent before a file's size or an upload's data
+    private static final byte[] OK_REPLY = {0, 2, 'O', 'K'};
+
+    // Resumes connections whose rate limits allow more bytes again, and retries failed accepts
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "async-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final int port;
+    private final int threads;
+
+    public AsyncFileServer(int port, int threads) {
+        this.port = port;
+        this.threads = Math.max(1, threads);
+    }
+
+    // Method to accept connections on the channel group's threads until the server is stopped
+    public void run() throws IOException {
+        final AtomicInteger threadCount = new AtomicInteger();
+        AsynchronousChannelGroup group = AsynchronousChannelGroup.withFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                return new Thread(task, "async-io-" + threadCount.getAndIncrement());
+            }
+        });
+        final AsynchronousServerSocketChannel serverChannel = AsynchronousServerSocketChannel.open(group);
+        serverChannel.bind(new InetSocketAddress(port));
+        ServerLog.info("Server is running on port %d (async, %d threads)", port, threads);
+        serverChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel channel, Void unused) {
+                // Wait for the next connection before serving this one
+                serverChannel.accept(null, this);
+                try {
+                    ServerLog.debug("Client connected: %s", channel.getRemoteAddress());
+                } catch (IOException e) {
+                    // Already closed by the client; the first read will notice
+                }
+                ServerMetrics.connectionOpened();
+                new Connection(channel).readCommand();
+            }
+
+            @Override
+            public void failed(Throwable error, Void unused) {
+                if (!serverChannel.isOpen()) return;
+                ServerLog.error("Failed to accept a connection", error);
+                final CompletionHandler<AsynchronousSocketChannel, Void> acceptor = this;
+                timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        serverChannel.accept(null, acceptor);
+                    }
+                }, ACCEPT_RETRY_MS, TimeUnit.MILLISECONDS);
+            }
+        });
+        try {
+            group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Protocol state of a single client connection
+    enum State {
+        READ_COMMAND, RECEIVING_FILE, SENDING_FILE, CLOSING
+    }
+
+    // One client connection, driven from one completed operation to the next; at most one operation
+    // is in flight at a time, so its fields need no locking
+    static class Connection {
+        private final AsynchronousSocketChannel channel;
+        // Command and header bytes, then the data of an upload that arrives slowly
+        private ByteBuffer header = BufferPool.HEADER_SLICES.acquire();
+        // File data of a download, or of an upload that arrives fast enough to fill the header slice
+        private ByteBuffer transfer;
+        // The slice upload data is currently read into: header or transfer
+        private ByteBuffer data;
+        // The buffer the socket write in flight is sending
+        private ByteBuffer writing;
+        private State state = State.READ_COMMAND;
+
+        // Transfer in progress
+        private String fileName;
+        private SeekableByteChannel source;
+        private PartialUploads.PartialUpload upload;
+        private AsynchronousFileChannel file;
+        private long fileSize;
+        private long position;
+        // Where the file write in flight started in the file, and when
+        private long writePosition;
+        private long writeStart;
+        // The native command being served, when it started, and whether its reply was written in full
+        private ServerMetrics.CommandStats command;
+        private long commandStart;
+        private boolean completed;
+        private boolean closed;
+        // Rate limit of the connection, null when unlimited, and the limits of the current transfer
+        private final TokenBucket connectionBucket = TrafficShaper.newConnectionBucket();
+        private TrafficShaper.Throttle throttle = TrafficShaper.Throttle.NONE;
+        // Bytes the rate limits allowed for the socket read in flight, and how many the last one brought
+        private int allowed;
+        private int lastRead;
+
+        // The steps of the connection, made once so that moving data allocates no handlers
+        private final CompletionHandler<Integer, Void> headerRead = new Step() {
+            @Override
+            void run(int bytesRead) throws IOException {
+                if (bytesRead < 0) {
+                    close();
+                    return;
+                }
+                ServerMetrics.addBytesIn(bytesRead);
+                header.flip();
+                process();
+            }
+        };
+        private final CompletionHandler<Integer, Void> dataRead = new Step() {
+            @Override
+            void run(int bytesRead) throws IOException {
+                throttle.giveBack(allowed - Math.max(bytesRead, 0));
+                if (bytesRead < 0) {
+                    ServerLog.warn("Error receiving file: %s", fileName);
+                    close();
+                    return;
+                }
+                ServerMetrics.addBytesIn(bytesRead);
+                lastRead = bytesRead;
+                data.flip();
+                writeFile();
+            }
+        };
+        private final CompletionHandler<Integer, Void> fileWritten = new Step() {
+            @Override
+            void run(int bytesWritten) throws IOException {
+                if (data.hasRemaining()) {
+                    file.write(data, writePosition + data.position(), null, this);
+                    return;
+                }
+                ServerMetrics.recordDiskWrite(System.nanoTime() - writeStart);
+                // The slice was filled from its start, so the written bytes are all still in it
+                position += data.limit();
+                data.position(0);
+                upload.written(data, writePosition);
+                receive();
+            }
+        };
+        private final CompletionHandler<Integer, Void> socketWritten = new Step() {
+            @Override
+            void run(int bytesWritten) throws IOException {
+                ServerMetrics.addBytesOut(bytesWritten);
+                if (writing.hasRemaining()) {
+                    channel.write(writing, null, this);
+                } else {
+                    written();
+                }
+            }
+        };
+        private final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (state == State.RECEIVING_FILE) {
+                        receive();
+                    } else {
+                        sendNext();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    ServerLog.error("Exception in client handler", e);
+                    close();
+                }
+            }
+        };
+
+        Connection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        // A completion handler that closes the connection when its step fails
+        abstract class Step implements CompletionHandler<Integer, Void> {
+            // Method to take the next step once an operation transferred count bytes, or -1 at end of stream
+            abstract void run(int count) throws IOException;
+
+            @Override
+            public void completed(Integer count, Void unused) {
+                try {
+                    run(count);
+                } catch (IOException | RuntimeException e) {
+                    ServerLog.error("Exception in client handler", e);
+                    close();
+                }
+            }
+
+            @Override
+            public void failed(Throwable error, Void unused) {
+                if (!closed) ServerLog.error("Exception in client handler", error);
+                close();
+            }
+        }
+
+        // Method to wait for more command and header bytes
+        void readCommand() {
+            channel.read(header, null, headerRead);
+        }
+
+        // Method to serve the command once its header has fully arrived, or read on. The header is
+        // parsed from its first byte every time, so a handed-over connection can be given all of it.
+        private void process() throws IOException {
+            header.mark();
+            String command = readUTF();
+            String name = null;
+            boolean isUpload = false;
+            boolean isDownload = false;
+            if (command != null && NioFileServer.Connection.isNativeCommand(command)) {
+                isUpload = "UPLOAD".equalsIgnoreCase(command);
+                isDownload = "DOWNLOAD".equalsIgnoreCase(command);
+                if (isUpload || isDownload) name = readUTF();
+            }
+            if (command == null || ((isUpload || isDownload) && name == null) || (isUpload && header.remaining() < 8)) {
+                header.reset();
+                header.compact();
+                if (header.hasRemaining()) {
+                    readCommand();
+                } else {
+                    // A header longer than the slice (e.g. a very long file name) is left to ClientHandler
+                    header.flip();
+                    handOff();
+                }
+                return;
+            }
+            if (!NioFileServer.Connection.isNativeCommand(command)) {
+                // Let ClientHandler parse the command again from the original bytes
+                header.reset();
+                handOff();
+                return;
+            }
+            ServerLog.debug("Received command: %s", command);
+            this.command = ServerMetrics.command(command);
+            commandStart = System.nanoTime();
+            if (isUpload) {
+                startUpload(name, header.getLong());
+            } else if (isDownload) {
+                startDownload(name);
+            } else {
+                // LIST and CLEAR walk the whole storage, and CLEAR of flat storage deletes file by file,
+                // so they run off the I/O threads
+                runReply("LIST".equalsIgnoreCase(command));
+            }
+        }
+
+        // Method to build the reply to LIST, or to CLEAR, on the session pool and write it asynchronously.
+        // No read or write is in flight meanwhile, so the connection is only touched by that thread.
+        private void runReply(final boolean list) {
+            FileServer.sessionPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                        if (list) {
+                            // Send list of files to the client
+                            FileServer.ClientHandler.sendFileList(new DataOutputStream(reply));
+                        } else {
+                            // Clear all files from the server
+                            FileServer.ClientHandler.clearFiles(new DataOutputStream(reply));
+                        }
+                        finish(reply);
+                    } catch (IOException | RuntimeException e) {
+                        ServerLog.error("Exception in client handler", e);
+                        close();
+                    }
+                }
+            });
+        }
+
+        // Method to let a blocking ClientHandler serve the connection, starting with the bytes read so far
+        private void handOff() {
+            byte[] handoffBytes = new byte[header.remaining()];
+            header.get(handoffBytes);
+            releaseHeader();
+            InputStream in = new SequenceInputStream(new ByteArrayInputStream(handoffBytes),
+                    ServerMetrics.countIn(Channels.newInputStream(channel)));
+            OutputStream out = ServerMetrics.countOut(Channels.newOutputStream(channel));
+            // The handler counts the connection as its own from here on
+            closed = true;
+            ServerMetrics.connectionClosed();
+            FileServer.sessionPool.execute(new FileServer.ClientHandler(null, in, out, false));
+        }
+
+        // Method to decode a writeUTF string without copying it out of the header, or return null if it
+        // is not fully buffered yet
+        private String readUTF() throws UTFDataFormatException {
+            if (header.remaining() < 2) return null;
+            int length = header.getShort(header.position()) & 0xFFFF;
+            if (header.remaining() < 2 + length) return null;
+            int end = header.position() + 2 + length;
+            char[] chars = new char[length];
+            int count = 0;
+            int i = header.position() + 2;
+            while (i < end) {
+                int b = header.get(i++) & 0xFF;
+                if (b < 0x80) {
+                    chars[count++] = (char) b;
+                } else if ((b & 0xE0) == 0xC0 && i < end) {
+                    int b2 = header.get(i++);
+                    if ((b2 & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed input");
+                    chars[count++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                } else if ((b & 0xF0) == 0xE0 && i + 1 < end) {
+                    int b2 = header.get(i++);
+                    int b3 = header.get(i++);
+                    if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed input");
+                    chars[count++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                } else {
+                    throw new UTFDataFormatException("Malformed input");
+                }
+            }
+            header.position(end);
+            return new String(chars, 0, count);
+        }
+
+        // Method to answer an UPLOAD header and start streaming the body to disk
+        private void startUpload(String name, long size) throws IOException {
+            String error = PartialUploads.sizeError(size);
+            if (error == null) error = FileServer.ClientHandler.uploadError(name);
+            PartialUploads.PartialUpload started = null;
+            if (error == null) {
+                try {
+                    // Each UPLOAD gets a partial upload of its own, published only once every byte has arrived
+                    started = PartialUploads.begin(name, size);
+                } catch (IOException e) {
+                    // Another client is uploading the same name
+                    error = "ERROR: " + e.getMessage();
+                }
+            }
+            if (error != null) {
+                // File already exists or is being uploaded, the name is not allowed or the size is too large
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                new DataOutputStream(reply).writeUTF(error);
+                ServerLog.debug("Upload refused: %s (%s)", name, error);
+                finish(reply);
+                return;
+            }
+            fileName = name;
+            fileSize = size;
+            position = 0;
+            throttle = TrafficShaper.transferThrottle(connectionBucket);
+            upload = started;
+            file = started.openAsync();
+            state = State.RECEIVING_FILE;
+
+            // Body bytes that arrived together with the header go first; the header slice takes the data
+            header.limit(header.position() + (int) Math.min(header.remaining(), fileSize));
+            header.compact();
+            data = header;
+            write(ByteBuffer.wrap(OK_REPLY));
+        }
+
+        // Method to read the next piece of upload data from the socket, as far as the rate limits allow
+        private void receive() throws IOException {
+            if (position == fileSize) {
+                finishUpload();
+                return;
+            }
+            // A sender that fills the header slice moves to a transfer slice, and back once it slows down
+            if (data == header && lastRead == header.capacity()) {
+                transfer = BufferPool.TRANSFER_SLICES.acquire();
+                releaseHeader();
+                data = transfer;
+            } else if (data == transfer && lastRead < BufferPool.HEADER_SLICES.getSliceSize()) {
+                header = BufferPool.HEADER_SLICES.acquire();
+                releaseTransfer();
+                data = header;
+            }
+            data.clear();
+            allowed = (int) throttle.tryTake(Math.min(data.capacity(), fileSize - position));
+            if (allowed == 0) {
+                pause();
+                return;
+            }
+            data.limit(allowed);
+            channel.read(data, null, dataRead);
+        }
+
+        // Method to write the upload data just read to the file at the current position
+        private void writeFile() {
+            writePosition = position;
+            writeStart = System.nanoTime();
+            file.write(data, writePosition, null, fileWritten);
+        }
+
+        // Method to complete an upload once every declared byte is on disk
+        private void finishUpload() throws IOException {
+            PartialUploads.PartialUpload finished = upload;
+            upload = null;
+            file.close();
+            file = null;
+            finished.release();
+            try {
+                PartialUploads.commit(finished.getId());
+                ServerLog.debug("File received: %s", fileName);
+            } catch (IOException e) {
+                PartialUploads.abort(finished);
+                ServerLog.error("Error receiving file: " + fileName, e);
+            }
+            completed = true;
+            close();
+        }
+
+        // Method to answer a DOWNLOAD header and start sending the file
+        private void startDownload(String name) throws IOException {
+            source = FileServer.storage.openRead(name);
+            if (source == null) {
+                // File not found on the server
+                ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                new DataOutputStream(reply).writeUTF("ERROR: File not found");
+                ServerLog.debug("File not found: %s", name);
+                finish(reply);
+                return;
+            }
+            fileName = name;
+            fileSize = source.size();
+            position = 0;
+            // Small downloads only count against the connection's own limit
+            throttle = TrafficShaper.isLargeTransfer(fileSize) ? TrafficShaper.transferThrottle(connectionBucket)
+                    : TrafficShaper.smallThrottle(connectionBucket);
+            state = State.SENDING_FILE;
+            releaseHeader();
+            // The reply goes out together with the start of the file
+            transfer = BufferPool.TRANSFER_SLICES.acquire();
+            transfer.put(OK_REPLY);
+            transfer.putLong(fileSize);
+            sendNext();
+        }
+
+        // Method to add as much of the file to the transfer slice as the rate limits allow and send it.
+        // The storage is read in place, as it only hands out channels; the page cache makes that quick.
+        private void sendNext() throws IOException {
+            int take = (int) throttle.tryTake(Math.min(transfer.remaining(), fileSize - position));
+            if (take > 0) {
+                int limit = transfer.limit();
+                transfer.limit(transfer.position() + take);
+                int bytesRead = TransferEngine.read(source, transfer, position);
+                transfer.limit(limit);
+                if (bytesRead < 0) {
+                    throw new EOFException("File shrank while sending: " + fileName);
+                }
+                throttle.giveBack(take - bytesRead);
+                position += bytesRead;
+            }
+            if (transfer.position() > 0) {
+                transfer.flip();
+                write(transfer);
+            } else if (position < fileSize) {
+                pause();
+            } else {
+                ServerLog.debug("File sent: %s", fileName);
+                completed = true;
+                close();
+            }
+        }
+
+        // Method to send a reply and close the connection once it has been written
+        private void finish(ByteArrayOutputStream reply) {
+            state = State.CLOSING;
+            write(ByteBuffer.wrap(reply.toByteArray()));
+        }
+
+        // Method to start writing a buffer to the socket
+        private void write(ByteBuffer buffer) {
+            writing = buffer;
+            channel.write(buffer, null, socketWritten);
+        }
+
+        // Method to take the next step once a buffer has been written to the socket in full
+        private void written() throws IOException {
+            if (state == State.CLOSING) {
+                completed = true;
+                close();
+            } else if (state == State.RECEIVING_FILE) {
+                // The upload's OK went out; store what arrived with the header, then read on
+                if (data.position() > 0) {
+                    data.flip();
+                    writeFile();
+                } else {
+                    receive();
+                }
+            } else {
+                transfer.clear();
+                sendNext();
+            }
+        }
+
+        // Method to stop moving file data until the rate limits allow more bytes
+        private void pause() {
+            timer.schedule(resume, throttle.nanosUntilAvailable(), TimeUnit.NANOSECONDS);
+        }
+
+        // Method to give the header slice back once the connection no longer needs it
+        private void releaseHeader() {
+            if (header == null) return;
+            BufferPool.HEADER_SLICES.release(header);
+            header = null;
+        }
+
+        // Method to give the transfer slice back
+        private void releaseTransfer() {
+            if (transfer == null) return;
+            BufferPool.TRANSFER_SLICES.release(transfer);
+            transfer = null;
+        }
+
+        // Method to release the socket, any open file and the connection's slices
+        void close() {
+            if (closed) return;
+            closed = true;
+            ServerMetrics.connectionClosed();
+            if (command != null) command.record(System.nanoTime() - commandStart, !completed);
+            try {
+                if (source != null) source.close();
+                if (file != null) file.close();
+                // Nothing can resume a plain UPLOAD, so what arrived is dropped
+                if (upload != null) PartialUploads.abort(upload);
+            } catch (IOException e) {
+                ServerLog.error("Failed to release the files of a connection", e);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("Failed to close a connection", e);
+            }
+            // Nothing is in flight any more, so no operation can still touch the slices
+            releaseHeader();
+            releaseTransfer();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pools of direct buffers for moving data between sockets and files.
+// Direct buffers are costly to allocate and are only freed by the garbage collector, so they are
+// reused instead of allocated per upload. At most MAX_POOLED idle buffers are kept; a buffer
+// released beyond that is left to the garbage collector.
+// The async engine takes its much smaller per-connection buffers from slabs instead (see Slab).
+public class BufferPool {
+    static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED = 32;
+
+    // What an async connection holds while it waits for a command, and while it moves file data
+    static final Slab HEADER_SLICES = new Slab(4 * 1024, 1024);
+    static final Slab TRANSFER_SLICES = new Slab(64 * 1024, 64);
+
+    private static final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger freeCount = new AtomicInteger();
+
+    private BufferPool() {
+    }
+
+    // Method to take a cleared buffer of BUFFER_SIZE bytes; give it back with release()
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        freeCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // Method to return a buffer to the pool; the caller must not use it afterwards
+    static void release(ByteBuffer buffer) {
+        if (freeCount.incrementAndGet() <= MAX_POOLED) {
+            free.offer(buffer);
+        } else {
+            freeCount.decrementAndGet();
+        }
+    }
+
+    // Equal slices of a few large direct buffers. A slab is allocated once and carved into slices that
+    // go back and forth through a free list, so taking and returning a slice allocates nothing, and
+    // thousands of connections cost neither heap nor garbage. Slabs are added when every slice is in
+    // use and are never freed, so the slices in use at the busiest moment stay reserved.
+    static class Slab {
+        private final int sliceSize;
+        private final int slicesPerSlab;
+        private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final AtomicInteger slabs = new AtomicInteger();
+
+        Slab(int sliceSize, int slicesPerSlab) {
+            this.sliceSize = sliceSize;
+            this.slicesPerSlab = slicesPerSlab;
+        }
+
+        int getSliceSize() {
+            return sliceSize;
+        }
+
+        // Method to take a cleared slice; give it back with release()
+        ByteBuffer acquire() {
+            ByteBuffer slice = free.poll();
+            while (slice == null) {
+                grow();
+                slice = free.poll();
+            }
+            slice.clear();
+            return slice;
+        }
+
+        // Method to return a slice; the caller must not use it afterwards
+        void release(ByteBuffer slice) {
+            free.offer(slice);
+        }
+
+        // Method to carve one more slab into free slices, unless another thread just did
+        private synchronized void grow() {
+            if (!free.isEmpty()) return;
+            ByteBuffer slab = ByteBuffer.allocateDirect(sliceSize * slicesPerSlab);
+            for (int i = 0; i < slicesPerSlab; i++) {
+                slab.limit((i + 1) * sliceSize);
+                slab.position(i * sliceSize);
+                free.offer(slab.slice());
+            }
+            ServerLog.debug("Allocated slab %d of %d x %d KB slices", slabs.incrementAndGet(), slicesPerSlab,
+                    sliceSize / 1024);
+        }
+    }
+}
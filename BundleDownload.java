@@ -0,0 +1,115 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Client side of DOWNLOAD_MANY: asks for many files at once and extracts the tar archive the server
+// streams back as it arrives, each file into a .part file that is renamed once its SHA-256 matches.
+// One request replaces a round trip, a connection and a thread per file, which is what makes
+// fetching thousands of small files fast.
+public class BundleDownload {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Told how each file in the archive ended, on the thread running the download
+    interface Listener {
+        // Method called once per file, with a null error if the file was saved
+        void extracted(String name, IOException error);
+    }
+
+    private BundleDownload() {
+    }
+
+    // Method to download the named files, or if there are none every file whose name starts with
+    // prefix, into dir; returns the names asked for that the server did not have
+    static List<String> download(ConnectionPool pool, List<String> names, String prefix, File dir,
+                                 Listener listener, ParallelTransfer.Progress progress) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        // Compression.open only compresses when a level is set; data that does not shrink is sent as it is
+        try (Compression.Request stream = Compression.open(pool, true);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(stream.getOutputStream()));
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(stream.getInputStream(), BUFFER_SIZE))) {
+            dos.writeUTF("DOWNLOAD_MANY");
+            dos.writeUTF(prefix);
+            dos.writeInt(names.size());
+            for (String name : names) {
+                dos.writeUTF(name);
+            }
+            dos.flush();
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            dis.readInt();
+            long totalSize = dis.readLong();
+
+            Set<String> received = new HashSet<String>();
+            long[] done = new long[1];
+            progress.transferred(0, totalSize);
+            TarStream.Entry entry;
+            while ((entry = TarStream.readEntry(dis)) != null) {
+                received.add(entry.name);
+                IOException error = extract(entry, dis, dir, done, totalSize, progress);
+                TarStream.skipPadding(dis, entry.size);
+                listener.extracted(entry.name, error);
+            }
+
+            List<String> missing = new ArrayList<String>();
+            for (String name : names) {
+                if (!received.contains(name)) missing.add(name);
+            }
+            return missing;
+        }
+    }
+
+    // Method to save one file of the archive, or skip its bytes if it cannot be saved. Problems with
+    // the file alone are returned, so the rest of the archive is still read; anything else is thrown.
+    private static IOException extract(TarStream.Entry entry, DataInputStream dis, File dir, long[] done, long totalSize,
+                                       ParallelTransfer.Progress progress) throws IOException {
+        File outputFile = new File(dir, entry.name);
+        if (!Storage.isValidName(entry.name) || outputFile.exists()) {
+            TarStream.skipFully(dis, entry.size);
+            progress.transferred(done[0] += entry.size, totalSize);
+            return new IOException(Storage.isValidName(entry.name)
+                    ? outputFile + " already exists" : "Refusing unsafe name " + entry.name);
+        }
+        // A name with '/' is saved in the subdirectories it names
+        File parent = outputFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            TarStream.skipFully(dis, entry.size);
+            progress.transferred(done[0] += entry.size, totalSize);
+            return new IOException("Cannot create " + parent);
+        }
+        File partFile = new File(dir, entry.name + ".part");
+        MessageDigest digest = Checksums.newDigest();
+        try (OutputStream out = new FileOutputStream(partFile)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = entry.size;
+            while (remaining > 0) {
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead < 0) {
+                    throw new EOFException("Archive ended in the middle of " + entry.name);
+                }
+                out.write(buffer, 0, bytesRead);
+                digest.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+                progress.transferred(done[0] += bytesRead, totalSize);
+            }
+        } catch (IOException e) {
+            partFile.delete();
+            throw e;
+        }
+        if (entry.digest != null && !MessageDigest.isEqual(digest.digest(), entry.digest)) {
+            partFile.delete();
+            return new IOException(entry.name + " does not match its SHA-256");
+        }
+        partFile.setLastModified(entry.lastModified);
+        Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return null;
+    }
+}
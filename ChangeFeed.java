@@ -0,0 +1,182 @@
+import java.io.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+// Pushes changes to the stored files to subscribed clients, so they no longer poll LIST.
+// A client sends SUBSCRIBE on a request stream and, after OK, receives one event per change:
+// a byte type, then for ADDED the name, size and modification time, for REMOVED the name, and
+// nothing for CLEARED. ADDED also reports a replaced file's new size and time. A HEARTBEAT is sent
+// when nothing changed for a while, so the server notices subscribers that went away.
+// Each subscriber has a bounded queue; one that falls too far behind is disconnected, and like any
+// client that reconnects it fetches a full listing before following the feed again.
+// The server itself can follow the feed in-process too, as the Replicator does.
+public class ChangeFeed {
+    static final byte HEARTBEAT = 0;
+    static final byte ADDED = 1;
+    static final byte REMOVED = 2;
+    static final byte CLEARED = 3;
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final long HEARTBEAT_SECONDS = 30;
+    private static final long RECONNECT_DELAY_MS = 2000;
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    // One change to the stored files
+    static class Event {
+        final byte type;
+        final String name;
+        final long size;
+        final long lastModified;
+
+        Event(byte type, String name, long size, long lastModified) {
+            this.type = type;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        static Event added(Storage.FileInfo info) {
+            return new Event(ADDED, info.name, info.size, info.lastModified);
+        }
+
+        static Event removed(String name) {
+            return new Event(REMOVED, name, 0, 0);
+        }
+
+        static Event cleared() {
+            return new Event(CLEARED, null, 0, 0);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(type);
+            if (type == ADDED) {
+                out.writeUTF(name);
+                out.writeLong(size);
+                out.writeLong(lastModified);
+            } else if (type == REMOVED) {
+                out.writeUTF(name);
+            }
+        }
+
+        static Event read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == ADDED) {
+                return new Event(type, in.readUTF(), in.readLong(), in.readLong());
+            } else if (type == REMOVED) {
+                return removed(in.readUTF());
+            } else if (type == CLEARED || type == HEARTBEAT) {
+                return new Event(type, null, 0, 0);
+            }
+            throw new IOException("Unknown change event type: " + type);
+        }
+    }
+
+    // Receives the feed on the client
+    interface Listener {
+        // Called whenever the feed (re)connects, or once if the server cannot push changes;
+        // events may have been missed, so the listener should fetch a full listing
+        void subscribed();
+
+        // Called for every change after subscribed()
+        void changed(Event event);
+
+        // Called when follow() loses the feed or the server cannot push changes
+        default void unavailable(String message) {
+            System.err.println(message);
+        }
+    }
+
+    // Events waiting to be written to one subscriber
+    private static class Subscriber {
+        final BlockingQueue<Event> queue = new ArrayBlockingQueue<Event>(QUEUE_CAPACITY);
+        volatile boolean overflowed;
+    }
+
+    // Method to queue an event for every subscriber without ever blocking the caller
+    void publish(Event event) {
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.queue.offer(event)) {
+                subscriber.overflowed = true;
+            }
+        }
+        for (Listener listener : listeners) {
+            listener.changed(event);
+        }
+    }
+
+    // Method to follow the feed in-process. The listener is told subscribed() at once, then changed()
+    // for every event on the thread that made the change, while the index is locked, so it must not block.
+    void addListener(Listener listener) {
+        listeners.add(listener);
+        listener.subscribed();
+    }
+
+    // Method to stream events to one subscriber until it disconnects or falls behind
+    void serve(DataOutputStream dos) throws IOException {
+        Subscriber subscriber = new Subscriber();
+        subscribers.add(subscriber);
+        try {
+            dos.writeUTF("OK");
+            dos.flush();
+            ServerLog.debug("Client subscribed to changes (%d subscribers)", subscribers.size());
+            while (true) {
+                Event event = subscriber.queue.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (subscriber.overflowed) {
+                    ServerLog.warn("Dropping a subscriber that fell %d events behind", QUEUE_CAPACITY);
+                    return;
+                }
+                if (event == null) {
+                    dos.writeByte(HEARTBEAT);
+                } else {
+                    // Send everything already queued before flushing
+                    do {
+                        event.write(dos);
+                    } while ((event = subscriber.queue.poll()) != null);
+                }
+                dos.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscribers.remove(subscriber);
+        }
+    }
+
+    // Method to follow the feed on a daemon thread, reconnecting whenever the connection is lost
+    static void follow(final ConnectionPool pool, final Listener listener) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try (MuxStream stream = pool.openStream();
+                         DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+                         DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+                        dos.writeUTF("SUBSCRIBE");
+                        String response = dis.readUTF();
+                        if (!"OK".equals(response)) {
+                            // The server cannot push changes; the listing is only fetched on request
+                            listener.unavailable("Change notifications unavailable: " + response);
+                            listener.subscribed();
+                            return;
+                        }
+                        listener.subscribed();
+                        while (true) {
+                            Event event = Event.read(dis);
+                            if (event.type != HEARTBEAT) listener.changed(event);
+                        }
+                    } catch (IOException e) {
+                        listener.unavailable("Change notifications interrupted (" + e.getMessage() + "), reconnecting");
+                    }
+                    try {
+                        Thread.sleep(RECONNECT_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "change-feed");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
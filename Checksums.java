@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+// Checksums shared by client and server to verify transferred data end to end.
+// Every byte range sent with UPLOAD_RANGE, DOWNLOAD_RANGE or BATCH_UPLOAD is followed by the CRC32C
+// of its bytes, which both ends compute inside their copy loops, so a corrupted range is caught
+// and sent again on its own. A whole file is identified by its SHA-256: the server keeps one for
+// every stored file, and a transfer only counts as done once both ends agree on it.
+public class Checksums {
+    static final int DIGEST_LENGTH = 32;
+    // Reply to a range or file whose bytes do not match their checksum
+    static final String MISMATCH = "ERROR: Checksum mismatch";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private Checksums() {
+    }
+
+    // Method to create the checksum sent after every range
+    static Checksum newCrc() {
+        return new CRC32C();
+    }
+
+    // Method to create the whole-file digest
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Method to read a SHA-256 sent as its raw bytes
+    static byte[] readDigest(DataInputStream in) throws IOException {
+        byte[] digest = new byte[DIGEST_LENGTH];
+        in.readFully(digest);
+        return digest;
+    }
+
+    // Method to compute the SHA-256 of a whole file in one pass
+    static byte[] digest(SeekableByteChannel channel) throws IOException {
+        StreamingDigest digest = new StreamingDigest();
+        return digest.finish(channel, channel.size());
+    }
+
+    // SHA-256 of a file whose ranges may arrive in any order and from several threads.
+    // Bytes that continue the hashed prefix are hashed as they pass by; anything that arrived
+    // out of order is read back from the file once the gap before it has been filled.
+    static class StreamingDigest {
+        private final MessageDigest digest = newDigest();
+        // Length of the prefix hashed so far; guarded by this
+        private long hashed;
+
+        // Method to hash the part of the data at position that continues the hashed prefix
+        synchronized void update(ByteBuffer data, long position) {
+            long end = position + data.remaining();
+            if (position > hashed || end <= hashed) return;
+            ByteBuffer rest = data.duplicate();
+            rest.position(rest.position() + (int) (hashed - position));
+            digest.update(rest);
+            hashed = end;
+        }
+
+        // Method to hash the part of an array at position that continues the hashed prefix
+        void update(byte[] data, int offset, int length, long position) {
+            update(ByteBuffer.wrap(data, offset, length), position);
+        }
+
+        // Method to read and hash the bytes already in the file, up to upTo
+        synchronized void catchUp(SeekableByteChannel channel, long upTo) throws IOException {
+            if (hashed >= upTo) return;
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, upTo - hashed));
+            while (hashed < upTo) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), upTo - hashed));
+                int bytesRead = TransferEngine.read(channel, buffer, hashed);
+                if (bytesRead < 0) {
+                    throw new EOFException("File ended after " + hashed + " of " + upTo + " bytes");
+                }
+                buffer.flip();
+                digest.update(buffer);
+                hashed += bytesRead;
+            }
+        }
+
+        // Method to forget what was hashed from position on, e.g. after that range turned out to be corrupt
+        synchronized void rewind(long position) {
+            if (hashed > position) {
+                digest.reset();
+                hashed = 0;
+            }
+        }
+
+        // Method to hash whatever is still missing and return the digest of the first size bytes
+        synchronized byte[] finish(SeekableByteChannel channel, long size) throws IOException {
+            catchUp(channel, size);
+            // digest() starts the hash over, so the prefix has to be hashed again too
+            hashed = 0;
+            return digest.digest();
+        }
+    }
+}
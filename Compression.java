@@ -0,0 +1,221 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.*;
+
+// Per-request Deflate compression. A client that wants it sends COMPRESS and a level (1-9) before its
+// command; from then on both directions of that request are Deflate streams. Every command works
+// unchanged on top, and the transfer loops still count uncompressed bytes for progress.
+// Data that does not shrink is not compressed: the client skips files whose name or first bytes show
+// they are already compressed, and a compressor whose first 256 KB barely shrinks falls back to
+// stored blocks, so downloads of incompressible files cost almost nothing extra.
+// The client level is set with -Dtransfer.compression=<0-9> (0 turns compression off).
+public class Compression {
+    static final int LEVEL = Integer.getInteger("transfer.compression", Deflater.BEST_SPEED);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int SAMPLE_SIZE = 256 * 1024;
+    // Output above this share of the input is not worth the CPU
+    private static final double MAX_RATIO = 0.9;
+    private static final String[] COMPRESSED_EXTENSIONS = {
+            ".zip", ".gz", ".tgz", ".bz2", ".xz", ".zst", ".7z", ".rar", ".jar",
+            ".jpg", ".jpeg", ".png", ".gif", ".webp", ".mp3", ".mp4", ".mkv", ".mov", ".avi",
+            ".pdf", ".docx", ".xlsx", ".pptx"
+    };
+
+    private Compression() {
+    }
+
+    // Method to guess from its name whether a file is already compressed
+    static boolean isCompressedName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            if (lower.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    // Method to decide whether a local file is worth compressing, by deflating a sample of it
+    static boolean worthCompressing(File file) {
+        if (LEVEL <= 0 || isCompressedName(file.getName())) return false;
+        try (SeekableByteChannel channel = new FileInputStream(file).getChannel()) {
+            return worthCompressing(file.getName(), channel);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Method to decide the same for data read from a channel, e.g. a stored file a server replicates
+    static boolean worthCompressing(String name, SeekableByteChannel channel) throws IOException {
+        if (LEVEL <= 0 || isCompressedName(name)) return false;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, channel.size()));
+        while (buffer.hasRemaining() && TransferEngine.read(channel, buffer, buffer.position()) >= 0) {
+            // Read until the sample is full or the data ends
+        }
+        byte[] sample = Arrays.copyOf(buffer.array(), buffer.position());
+        if (sample.length == 0) return false;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] output = new byte[BUFFER_SIZE];
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(output);
+            }
+            return compressed < sample.length * MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // Method to open a request stream, compressed at the configured level when asked to
+    static Request open(ConnectionPool pool, boolean compress) throws IOException {
+        MuxStream stream = pool.openStream();
+        if (!compress || LEVEL <= 0) {
+            return new Request(stream, stream.getInputStream(), stream.getOutputStream());
+        }
+        try {
+            DataOutputStream header = new DataOutputStream(stream.getOutputStream());
+            header.writeUTF("COMPRESS");
+            header.writeByte(Math.min(LEVEL, Deflater.BEST_COMPRESSION));
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        Streams streams = new Streams(stream.getInputStream(), stream.getOutputStream(), LEVEL);
+        return new Request(stream, streams.in, streams.out);
+    }
+
+    // One request on a pooled stream, with the same methods as MuxStream
+    static class Request implements Closeable {
+        private final MuxStream stream;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Request(MuxStream stream, InputStream in, OutputStream out) {
+            this.stream = stream;
+            this.in = in;
+            this.out = out;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        // Method to signal that no more bytes will be written
+        public void shutdownOutput() throws IOException {
+            out.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    // Both directions of a compressed request. Like MuxStream, reading first flushes anything written,
+    // so request/response code needs no explicit flushes.
+    static class Streams {
+        final InputStream in;
+        final OutputStream out;
+
+        Streams(InputStream rawIn, OutputStream rawOut, int level) {
+            final CompressingOutputStream compressor = new CompressingOutputStream(rawOut, level);
+            this.out = compressor;
+            this.in = new InflaterInputStream(rawIn, new Inflater(), BUFFER_SIZE) {
+                private boolean inputEnded;
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    compressor.flush();
+                    try {
+                        return super.read(b, off, len);
+                    } catch (EOFException e) {
+                        // The peer closed after its last flush without an end-of-stream marker
+                        if (inputEnded) return -1;
+                        throw e;
+                    }
+                }
+
+                @Override
+                protected void fill() throws IOException {
+                    len = in.read(buf, 0, buf.length);
+                    if (len == -1) {
+                        inputEnded = true;
+                        throw new EOFException("Unexpected end of compressed stream");
+                    }
+                    inf.setInput(buf, 0, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inf.end();
+                    }
+                }
+            };
+        }
+    }
+
+    // Deflate stream that sync-flushes on flush() and stops compressing data that does not shrink
+    private static class CompressingOutputStream extends DeflaterOutputStream {
+        // Bytes written since the last flush
+        private boolean dirty;
+        private boolean sampled;
+        private boolean closed;
+
+        CompressingOutputStream(OutputStream out, int level) {
+            super(out, new Deflater(Math.max(Deflater.NO_COMPRESSION, Math.min(level, Deflater.BEST_COMPRESSION))),
+                    BUFFER_SIZE, true);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            dirty = true;
+            if (!sampled && def.getBytesRead() >= SAMPLE_SIZE) {
+                sampled = true;
+                if (def.getBytesWritten() > def.getBytesRead() * MAX_RATIO) {
+                    def.setLevel(Deflater.NO_COMPRESSION);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (dirty) {
+                super.flush();
+                dirty = false;
+            } else {
+                out.flush();
+            }
+        }
+
+        // Every protocol message is self-delimiting and readers treat the end of the underlying stream
+        // as the end, so the end-of-stream marker is only written when unflushed data still has to go out.
+        // A peer that already stopped reading is never sent anything.
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                if (dirty) finish();
+                out.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+}
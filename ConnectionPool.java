@@ -0,0 +1,84 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Pool of long-lived SESSION connections to one server.
+// Each request opens a stream on the least busy connection, so many requests share a few TCP connections.
+public class ConnectionPool implements Closeable {
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    // Command that opens a session: SESSION, or PEER_SESSION when one server replicates to another
+    private final String sessionCommand;
+    private final List<MuxConnection> connections = new ArrayList<MuxConnection>();
+
+    public ConnectionPool(String host, int port, int maxConnections) {
+        this(host, port, maxConnections, "SESSION");
+    }
+
+    ConnectionPool(String host, int port, int maxConnections, String sessionCommand) {
+        this.host = host;
+        this.port = port;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.sessionCommand = sessionCommand;
+    }
+
+    // Method to open a request stream, connecting only when every pooled connection is busy
+    public synchronized MuxStream openStream() throws IOException {
+        MuxConnection leastBusy = null;
+        for (int i = connections.size() - 1; i >= 0; i--) {
+            MuxConnection connection = connections.get(i);
+            if (!connection.isOpen()) {
+                // Drop connections the server closed; the next request reconnects
+                connections.remove(i);
+            } else if (leastBusy == null || connection.activeStreams() < leastBusy.activeStreams()) {
+                leastBusy = connection;
+            }
+        }
+        if (leastBusy == null || (leastBusy.activeStreams() > 0 && connections.size() < maxConnections)) {
+            leastBusy = connect();
+            connections.add(leastBusy);
+        }
+        return leastBusy.openStream();
+    }
+
+    // Method to open a new connection and switch it to the SESSION protocol
+    private MuxConnection connect() throws IOException {
+        final Socket socket = new Socket(host, port);
+        try {
+            socket.setTcpNoDelay(true);
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            dos.writeUTF(sessionCommand);
+            dos.flush();
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new IOException("Server does not support sessions: " + response);
+            }
+            final MuxConnection connection = new MuxConnection(dis, dos, socket, null);
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // A broken connection fails the requests still on it, and those report the error
+                    connection.run();
+                }
+            }, "session-reader-" + host + ":" + port);
+            reader.setDaemon(true);
+            reader.start();
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Method to close every pooled connection
+    @Override
+    public synchronized void close() {
+        for (MuxConnection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+    }
+}
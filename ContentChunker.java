@@ -0,0 +1,95 @@
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+// Splits data into content-defined chunks with a gear rolling hash (as in FastCDC).
+// Cut points depend only on the bytes around them, so inserting or removing data in a file
+// changes the chunks near the edit and the rest still match chunks stored for other files.
+// Client and server must use the same parameters to agree on chunk boundaries.
+public class ContentChunker {
+    static final int MIN_SIZE = 256 * 1024;
+    static final int MAX_SIZE = 4 * 1024 * 1024;
+    // A cut happens where the top 20 bits of the hash are zero, about one in every 1 MB past MIN_SIZE.
+    // The top bits depend on the last 64 bytes, which is the rolling window.
+    private static final long CUT_MASK = 0xFFFFF00000000000L;
+    static final int HASH_LENGTH = 32;
+
+    // Random value per byte, generated from a fixed seed so every JVM gets the same table
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6765617248617368L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    // Receives each chunk in file order; the array is reused after the call returns
+    interface ChunkHandler {
+        void chunk(byte[] data, int length, long offset) throws IOException;
+    }
+
+    private ContentChunker() {
+    }
+
+    // Method to read a stream to the end and pass every chunk to the handler
+    static void split(InputStream in, ChunkHandler handler) throws IOException {
+        byte[] buffer = new byte[MAX_SIZE];
+        int filled = 0;
+        long offset = 0;
+        while (true) {
+            int bytesRead;
+            while (filled < buffer.length && (bytesRead = in.read(buffer, filled, buffer.length - filled)) > 0) {
+                filled += bytesRead;
+            }
+            if (filled == 0) return;
+            int length = findCut(buffer, filled);
+            handler.chunk(buffer, length, offset);
+            offset += length;
+            // Keep the bytes after the cut for the next chunk
+            System.arraycopy(buffer, length, buffer, 0, filled - length);
+            filled -= length;
+        }
+    }
+
+    // Method to find the length of the next chunk among the first length bytes
+    private static int findCut(byte[] data, int length) {
+        if (length <= MIN_SIZE) return length;
+        long hash = 0;
+        for (int i = MIN_SIZE; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & CUT_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        // No cut point: the chunk ends at MAX_SIZE or at the end of the data
+        return length;
+    }
+
+    // Method to hash one chunk
+    static byte[] hash(byte[] data, int offset, int length) {
+        MessageDigest digest = newDigest();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    // Method to create the digest chunks are named by
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Method to print a hash as lowercase hex
+    static String toHex(byte[] hash) {
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,364 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+// Content-addressed storage: files are cut into content-defined chunks (see ContentChunker),
+// each distinct chunk is stored once under its SHA-256, and every file is a manifest listing its chunks.
+// Identical files and files that share large regions take the space of one copy.
+//
+// Layout under the root directory:
+//   chunks/<first two hex digits>/<sha-256 hex>   chunk contents
+//   manifests/<url-encoded file name>             long size, int count, then (hash, int length) per chunk
+public class DedupStorage implements Storage {
+    private final File chunkDir;
+    private final File manifestDir;
+    // Serialises manifest commits with CLEAR so no manifest can point at a deleted chunk
+    private final Object lock = new Object();
+
+    public DedupStorage(File root) {
+        this.chunkDir = new File(root, "chunks");
+        this.manifestDir = new File(root, "manifests");
+        chunkDir.mkdirs();
+        manifestDir.mkdirs();
+    }
+
+    // One chunk of a file: its hash and length
+    static class ChunkRef {
+        final byte[] hash;
+        final int length;
+
+        ChunkRef(byte[] hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(hash);
+            out.writeInt(length);
+        }
+
+        static ChunkRef read(DataInputStream in) throws IOException {
+            byte[] hash = new byte[ContentChunker.HASH_LENGTH];
+            in.readFully(hash);
+            int length = in.readInt();
+            if (length <= 0 || length > ContentChunker.MAX_SIZE) {
+                throw new IOException("Invalid chunk length: " + length);
+            }
+            return new ChunkRef(hash, length);
+        }
+    }
+
+    @Override
+    public boolean exists(String name) throws IOException {
+        return Storage.isValidName(name) && manifestFile(name).isFile();
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> names = new ArrayList<String>();
+        File[] manifests = manifestDir.listFiles();
+        if (manifests != null) {
+            for (File manifest : manifests) {
+                // Skip manifests still being written
+                if (manifest.getName().indexOf('~') >= 0) continue;
+                names.add(URLDecoder.decode(manifest.getName(), "UTF-8"));
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public FileInfo stat(String name) throws IOException {
+        if (!Storage.isValidName(name)) return null;
+        File manifest = manifestFile(name);
+        try (DataInputStream in = new DataInputStream(new FileInputStream(manifest))) {
+            // The size heads the manifest; a replaced file gets a new manifest, so its time is the file's
+            return new FileInfo(name, in.readLong(), manifest.lastModified());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        if (!Storage.isValidName(name)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile(name))))) {
+            long size = in.readLong();
+            int count = in.readInt();
+            ChunkRef[] chunks = new ChunkRef[count];
+            for (int i = 0; i < count; i++) {
+                chunks[i] = ChunkRef.read(in);
+            }
+            return new ManifestChannel(size, chunks);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void commit(String name, File tempFile) throws IOException {
+        store(name, tempFile, false);
+    }
+
+    @Override
+    public void replace(String name, File tempFile) throws IOException {
+        // Chunks only the old version used stay until the next CLEAR
+        store(name, tempFile, true);
+    }
+
+    // Method to chunk a temporary file into the store and publish its manifest
+    private void store(String name, File tempFile, boolean replace) throws IOException {
+        if (!Storage.isValidName(name)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        final List<ChunkRef> chunks = new ArrayList<ChunkRef>();
+        final long[] newBytes = new long[1];
+        try (InputStream in = new FileInputStream(tempFile)) {
+            ContentChunker.split(in, new ContentChunker.ChunkHandler() {
+                @Override
+                public void chunk(byte[] data, int length, long offset) throws IOException {
+                    byte[] hash = ContentChunker.hash(data, 0, length);
+                    if (storeChunk(hash, data, length)) newBytes[0] += length;
+                    chunks.add(new ChunkRef(hash, length));
+                }
+            });
+        }
+        long fileSize = tempFile.length();
+        commitManifest(name, fileSize, chunks, replace, tempFile.lastModified());
+        tempFile.delete();
+        ServerLog.debug("Stored %s: %d chunks, %d of %d bytes new", name, chunks.size(), newBytes[0], fileSize);
+    }
+
+    // Method to check whether a chunk is already stored
+    boolean hasChunk(byte[] hash) {
+        return chunkFile(hash).isFile();
+    }
+
+    // Method to store a chunk held in memory; returns false if it was already there
+    private boolean storeChunk(byte[] hash, byte[] data, int length) throws IOException {
+        File target = chunkFile(hash);
+        if (target.isFile()) return false;
+        File tempFile = tempChunkFile(target);
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(data, 0, length);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        moveIntoPlace(tempFile, target);
+        return true;
+    }
+
+    // Method to store a chunk read from a client, rejecting it unless it matches its hash
+    void storeChunk(byte[] hash, InputStream in, int length) throws IOException {
+        File target = chunkFile(hash);
+        File tempFile = tempChunkFile(target);
+        MessageDigest digest = ContentChunker.newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            int remaining = length;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                if (bytesRead < 0) {
+                    throw new EOFException("Chunk ended after " + (length - remaining) + " of " + length + " bytes");
+                }
+                digest.update(buffer, 0, bytesRead);
+                out.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (!MessageDigest.isEqual(digest.digest(), hash)) {
+            tempFile.delete();
+            throw new IOException("Chunk does not match its hash " + ContentChunker.toHex(hash));
+        }
+        moveIntoPlace(tempFile, target);
+    }
+
+    // Method to publish a file made of stored chunks, replacing an existing one only when asked
+    void commitManifest(String name, long size, List<ChunkRef> chunks, boolean replace, long lastModified) throws IOException {
+        if (!Storage.isValidName(name)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        long total = 0;
+        for (ChunkRef chunk : chunks) {
+            total += chunk.length;
+        }
+        if (total != size) {
+            throw new IOException("Chunks add up to " + total + " bytes, expected " + size);
+        }
+        synchronized (lock) {
+            File manifest = manifestFile(name);
+            if (!replace && manifest.exists()) {
+                throw new FileAlreadyExistsException(name);
+            }
+            for (ChunkRef chunk : chunks) {
+                if (!hasChunk(chunk.hash)) {
+                    throw new IOException("Chunk " + ContentChunker.toHex(chunk.hash) + " is missing");
+                }
+            }
+            File tempManifest = new File(manifestDir, manifest.getName() + "~tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempManifest)))) {
+                out.writeLong(size);
+                out.writeInt(chunks.size());
+                for (ChunkRef chunk : chunks) {
+                    chunk.write(out);
+                }
+            }
+            // The manifest's time is the file's modification time
+            tempManifest.setLastModified(lastModified);
+            Files.move(tempManifest.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    @Override
+    public int clear() throws IOException {
+        synchronized (lock) {
+            int deletedFiles = 0;
+            File[] manifests = manifestDir.listFiles();
+            if (manifests != null) {
+                for (File manifest : manifests) {
+                    String name = URLDecoder.decode(manifest.getName(), "UTF-8");
+                    if (manifest.delete()) {
+                        deletedFiles++;
+                        ServerLog.debug("Deleted file: %s", name);
+                    } else {
+                        ServerLog.warn("Failed to delete file: %s", name);
+                    }
+                }
+            }
+            // With no manifests left every chunk is unreferenced
+            File[] shards = chunkDir.listFiles();
+            if (shards != null) {
+                for (File shard : shards) {
+                    File[] chunks = shard.listFiles();
+                    if (chunks != null) {
+                        for (File chunk : chunks) {
+                            chunk.delete();
+                        }
+                    }
+                    shard.delete();
+                }
+            }
+            return deletedFiles;
+        }
+    }
+
+    // Method to find a file's manifest; the name is encoded so any character is safe on disk
+    private File manifestFile(String name) throws IOException {
+        return new File(manifestDir, URLEncoder.encode(name, "UTF-8"));
+    }
+
+    // Method to find where a chunk is stored, spread over 256 directories
+    private File chunkFile(byte[] hash) {
+        String hex = ContentChunker.toHex(hash);
+        return new File(new File(chunkDir, hex.substring(0, 2)), hex);
+    }
+
+    // Method to pick a unique temporary name next to a chunk
+    private static File tempChunkFile(File target) {
+        target.getParentFile().mkdirs();
+        return new File(target.getParentFile(), target.getName() + "~" + UUID.randomUUID());
+    }
+
+    // Method to rename a finished chunk into place; a racing writer of the same chunk wrote the same bytes
+    private static void moveIntoPlace(File tempFile, File target) throws IOException {
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Read-only view of a file's chunks as one channel
+    private class ManifestChannel implements SeekableByteChannel {
+        private final long size;
+        private final ChunkRef[] chunks;
+        private final long[] starts;
+        private long position;
+        private int openIndex = -1;
+        private FileChannel openChunk;
+        private boolean open = true;
+
+        ManifestChannel(long size, ChunkRef[] chunks) {
+            this.size = size;
+            this.chunks = chunks;
+            this.starts = new long[chunks.length];
+            long start = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                starts[i] = start;
+                start += chunks[i].length;
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (position >= size) return -1;
+            int index = Arrays.binarySearch(starts, position);
+            if (index < 0) index = -index - 2;
+            if (index != openIndex) {
+                if (openChunk != null) openChunk.close();
+                openChunk = null;
+                openIndex = -1;
+                openChunk = new FileInputStream(chunkFile(chunks[index].hash)).getChannel();
+                openIndex = index;
+            }
+            long within = position - starts[index];
+            int limit = dst.limit();
+            dst.limit(dst.position() + (int) Math.min(dst.remaining(), chunks[index].length - within));
+            int bytesRead;
+            try {
+                bytesRead = openChunk.read(dst, within);
+            } finally {
+                dst.limit(limit);
+            }
+            if (bytesRead < 0) {
+                throw new EOFException("Chunk " + ContentChunker.toHex(chunks[index].hash) + " is truncated");
+            }
+            position += bytesRead;
+            return bytesRead;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long newSize) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            if (openChunk != null) openChunk.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// Client side of UPLOAD_DEDUP: cuts the file into content-defined chunks, tells the server their
+// hashes and sends only the chunks it does not already store. An interrupted upload resumes on
+// its own, since every chunk that reached the server is kept and is not asked for again.
+public class DedupUpload {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Cleared once the server says it does not deduplicate, so later uploads skip straight to the normal path
+    private static volatile boolean supported = true;
+
+    private DedupUpload() {
+    }
+
+    // Method to upload a file under a name by chunk; returns false if the server does not support deduplication
+    static boolean upload(final ConnectionPool pool, final File file, final String name,
+                          final ParallelTransfer.Progress progress) throws IOException {
+        if (!supported) return false;
+        final boolean[] uploaded = new boolean[1];
+        ParallelTransfer.withRetries("Upload of " + name, progress, new ParallelTransfer.Attempt() {
+            @Override
+            public void run() throws IOException {
+                uploaded[0] = uploadMissingChunks(pool, file, name, progress);
+            }
+        });
+        return uploaded[0];
+    }
+
+    // Method to announce the file, list its chunks and send the ones the server asks for
+    private static boolean uploadMissingChunks(ConnectionPool pool, File file, String name,
+                                               ParallelTransfer.Progress progress) throws IOException {
+        long fileSize = file.length();
+        try (Compression.Request stream = Compression.open(pool, Compression.worthCompressing(file));
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(stream.getOutputStream()));
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("UPLOAD_DEDUP");
+            dos.writeUTF(name);
+            dos.writeLong(fileSize);
+            dos.flush();
+            String response = dis.readUTF();
+            if ("ERROR: Deduplication not supported".equals(response)) {
+                supported = false;
+                return false;
+            } else if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+
+            List<DedupStorage.ChunkRef> chunks = splitFile(file);
+            dos.writeInt(chunks.size());
+            for (DedupStorage.ChunkRef chunk : chunks) {
+                chunk.write(dos);
+            }
+            dos.flush();
+            response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            int[] missing = new int[dis.readInt()];
+            for (int i = 0; i < missing.length; i++) {
+                missing[i] = dis.readInt();
+            }
+
+            long[] offsets = new long[chunks.size()];
+            long offset = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                offsets[i] = offset;
+                offset += chunks.get(i).length;
+            }
+            // Chunks the server already has count as done straight away
+            long sent = fileSize;
+            for (int index : missing) {
+                sent -= chunks.get(index).length;
+            }
+            progress.transferred(sent, fileSize);
+
+            try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                for (int index : missing) {
+                    long position = offsets[index];
+                    long end = position + chunks.get(index).length;
+                    while (position < end) {
+                        buffer.clear();
+                        buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+                        int bytesRead = fileChannel.read(buffer, position);
+                        if (bytesRead < 0) {
+                            throw new EOFException("File shrank during upload");
+                        }
+                        dos.write(buffer.array(), 0, bytesRead);
+                        position += bytesRead;
+                        sent += bytesRead;
+                        progress.transferred(sent, fileSize);
+                    }
+                }
+            }
+            dos.flush();
+            response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            progress.finished("Uploaded " + name + ": " + missing.length + " of " + chunks.size()
+                    + " chunks were new");
+            return true;
+        }
+    }
+
+    // Method to hash the file into the same chunks the server would cut
+    private static List<DedupStorage.ChunkRef> splitFile(File file) throws IOException {
+        final List<DedupStorage.ChunkRef> chunks = new ArrayList<DedupStorage.ChunkRef>();
+        try (InputStream in = new FileInputStream(file)) {
+            ContentChunker.split(in, new ContentChunker.ChunkHandler() {
+                @Override
+                public void chunk(byte[] data, int length, long offset) {
+                    chunks.add(new DedupStorage.ChunkRef(ContentChunker.hash(data, 0, length), length));
+                }
+            });
+        }
+        return chunks;
+    }
+}
@@ -0,0 +1,417 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// rsync-style delta transfer used by SYNC to update a file the server already has.
+// The server describes its copy as fixed-size blocks, each with a weak rolling checksum and an MD5.
+// The client slides a window over its new version one byte at a time; where the rolling checksum
+// and then the MD5 match a block, it sends a reference to that block instead of the bytes.
+// The server rebuilds the new version from its old copy plus the delta and checks it against the
+// SHA-256 of the whole file before replacing the old one.
+public class DeltaSync {
+    static final int MIN_BLOCK_SIZE = 2 * 1024;
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+    private static final int STRONG_LENGTH = 16;
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Delta instructions
+    static final byte END = 0;
+    static final byte COPY = 1;
+    static final byte DATA = 2;
+
+    private DeltaSync() {
+    }
+
+    // Method to update the file the server has under a name, sending only what changed
+    static void sync(final ConnectionPool pool, final File file, final String name,
+                     final ParallelTransfer.Progress progress) throws IOException {
+        ParallelTransfer.withRetries("Update of " + name, progress, new ParallelTransfer.Attempt() {
+            @Override
+            public void run() throws IOException {
+                try (SeekableByteChannel source = new FileInputStream(file).getChannel()) {
+                    sendDelta(pool, source, name, -1, Compression.worthCompressing(file), progress);
+                }
+            }
+        });
+    }
+
+    // Method to update a peer's file from the contents of a channel a server replicates, sending the
+    // modification time the peer's copy should keep, as PEER_SESSION streams expect
+    static void sync(final ConnectionPool pool, final SeekableByteChannel source, final String name,
+                     final long lastModified, final ParallelTransfer.Progress progress) throws IOException {
+        final boolean compress = Compression.worthCompressing(name, source);
+        ParallelTransfer.withRetries("Update of " + name, progress, new ParallelTransfer.Attempt() {
+            @Override
+            public void run() throws IOException {
+                sendDelta(pool, source, name, lastModified, compress, progress);
+            }
+        });
+    }
+
+    // Method to fetch the server's block checksums and answer with the delta of the local data;
+    // a negative lastModified leaves the time out, as clients do
+    private static void sendDelta(ConnectionPool pool, SeekableByteChannel source, String name, long lastModified,
+                                  boolean compress, ParallelTransfer.Progress progress) throws IOException {
+        long fileSize = source.size();
+        try (Compression.Request stream = Compression.open(pool, compress);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(stream.getOutputStream()));
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(stream.getInputStream()))) {
+            dos.writeUTF("SYNC");
+            dos.writeUTF(name);
+            dos.writeLong(fileSize);
+            if (lastModified >= 0) dos.writeLong(lastModified);
+            dos.flush();
+            String response = dis.readUTF();
+            if ("ERROR: File not found".equals(response)) {
+                throw new FileNotFoundException("File not found on server.");
+            } else if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            Signatures signatures = Signatures.read(dis);
+            long literalBytes;
+            // Not closed here: the stream would close the caller's channel with it
+            source.position(0);
+            InputStream in = Channels.newInputStream(source);
+            literalBytes = writeDelta(in, fileSize, signatures, dos, progress);
+            dos.flush();
+            response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            progress.finished("Updated " + name + ": sent " + literalBytes + " of " + fileSize + " bytes");
+        }
+    }
+
+    // Method to choose the block size for a file: about the square root of its size, as rsync does
+    static int blockSize(long fileSize) {
+        long size = (long) Math.sqrt((double) fileSize);
+        size = (size + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    // Method to compute rsync's weak checksum: a plain and a position-weighted sum of the bytes, 16 bits each
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+    }
+
+    // Method to slide a weak checksum one byte forward without rereading the window
+    static int roll(int checksum, byte out, byte in, int length) {
+        int a = checksum & 0xFFFF;
+        int b = checksum >>> 16;
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    // Method to send the block size, file size and the checksums of every block of the server's copy
+    static void writeSignatures(SeekableByteChannel source, long fileSize, int blockSize, DataOutputStream out) throws IOException {
+        int blockCount = (int) ((fileSize + blockSize - 1) / blockSize);
+        out.writeInt(blockSize);
+        out.writeLong(fileSize);
+        out.writeInt(blockCount);
+        MessageDigest md5 = newDigest("MD5");
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        for (int block = 0; block < blockCount; block++) {
+            long position = (long) block * blockSize;
+            buffer.clear();
+            buffer.limit((int) Math.min(blockSize, fileSize - position));
+            while (buffer.hasRemaining()) {
+                if (TransferEngine.read(source, buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("File shrank while computing checksums");
+                }
+            }
+            out.writeInt(weakChecksum(buffer.array(), 0, buffer.limit()));
+            md5.update(buffer.array(), 0, buffer.limit());
+            out.write(md5.digest());
+        }
+    }
+
+    // Block checksums of the server's copy, as received by the client
+    static class Signatures {
+        final int blockSize;
+        final long fileSize;
+        final int[] weak;
+        final byte[][] strong;
+        // Full-size blocks by weak checksum, plus a 16-bit filter so most positions skip the map
+        private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<Integer, List<Integer>>();
+        private final BitSet weakFilter = new BitSet(1 << 16);
+
+        Signatures(int blockSize, long fileSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.fileSize = fileSize;
+            this.weak = weak;
+            this.strong = strong;
+            for (int block = 0; block < weak.length; block++) {
+                if (length(block) != blockSize) continue;
+                List<Integer> blocks = blocksByWeak.get(weak[block]);
+                if (blocks == null) {
+                    blocks = new ArrayList<Integer>(1);
+                    blocksByWeak.put(weak[block], blocks);
+                }
+                blocks.add(block);
+                weakFilter.set(filterKey(weak[block]));
+            }
+        }
+
+        // Method to read checksums written by writeSignatures
+        static Signatures read(DataInputStream in) throws IOException {
+            int blockSize = in.readInt();
+            long fileSize = in.readLong();
+            int blockCount = in.readInt();
+            if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+                    || blockCount != (fileSize + blockSize - 1) / blockSize) {
+                throw new IOException("Invalid block checksums from server");
+            }
+            int[] weak = new int[blockCount];
+            byte[][] strong = new byte[blockCount][STRONG_LENGTH];
+            for (int block = 0; block < blockCount; block++) {
+                weak[block] = in.readInt();
+                in.readFully(strong[block]);
+            }
+            return new Signatures(blockSize, fileSize, weak, strong);
+        }
+
+        // Method to find the length of a block; only the last one can be short
+        int length(int block) {
+            return (int) Math.min(blockSize, fileSize - (long) block * blockSize);
+        }
+
+        // Method to find a full-size block with the same contents as the window, or -1
+        int find(int checksum, byte[] data, int offset, MessageDigest md5) {
+            if (!weakFilter.get(filterKey(checksum))) return -1;
+            List<Integer> blocks = blocksByWeak.get(checksum);
+            if (blocks == null) return -1;
+            md5.update(data, offset, blockSize);
+            byte[] digest = md5.digest();
+            for (int block : blocks) {
+                if (Arrays.equals(strong[block], digest)) return block;
+            }
+            return -1;
+        }
+
+        private static int filterKey(int checksum) {
+            return (checksum ^ (checksum >>> 16)) & 0xFFFF;
+        }
+    }
+
+    // Method to scan the new version and write the delta, ending with its SHA-256; returns the literal byte count
+    static long writeDelta(InputStream in, long fileSize, Signatures signatures, DataOutputStream out,
+                           ParallelTransfer.Progress progress) throws IOException {
+        int blockSize = signatures.blockSize;
+        byte[] buffer = new byte[Math.max(SCAN_BUFFER_SIZE, 4 * blockSize)];
+        MessageDigest whole = newDigest("SHA-256");
+        MessageDigest md5 = newDigest("MD5");
+        DeltaWriter writer = new DeltaWriter(out);
+        int length = 0;      // Bytes in the buffer
+        int window = 0;      // Start of the window in the buffer
+        int literal = 0;     // Start of the bytes not yet sent or matched
+        long bufferStart = 0;
+        boolean endOfFile = false;
+        boolean rolling = false;
+        int checksum = 0;
+        while (true) {
+            if (window + blockSize > length && !endOfFile) {
+                // Send the pending literal bytes and move the window to the front before reading more
+                writer.data(buffer, literal, window - literal);
+                System.arraycopy(buffer, window, buffer, 0, length - window);
+                bufferStart += window;
+                length -= window;
+                window = 0;
+                literal = 0;
+                while (length < buffer.length) {
+                    int bytesRead = in.read(buffer, length, buffer.length - length);
+                    if (bytesRead < 0) {
+                        endOfFile = true;
+                        break;
+                    }
+                    whole.update(buffer, length, bytesRead);
+                    length += bytesRead;
+                }
+                progress.transferred(bufferStart, fileSize);
+                continue;
+            }
+            if (length - window < blockSize) break;
+            if (!rolling) {
+                checksum = weakChecksum(buffer, window, blockSize);
+                rolling = true;
+            }
+            int block = signatures.find(checksum, buffer, window, md5);
+            if (block >= 0) {
+                writer.data(buffer, literal, window - literal);
+                writer.copy(block);
+                window += blockSize;
+                literal = window;
+                rolling = false;
+            } else if (window + blockSize < length) {
+                checksum = roll(checksum, buffer[window], buffer[window + blockSize], blockSize);
+                window++;
+            } else {
+                // The next byte is not buffered yet; recompute after the refill
+                window++;
+                rolling = false;
+            }
+        }
+
+        // The tail may be the server's short last block
+        int tail = length - window;
+        int lastBlock = signatures.weak.length - 1;
+        if (tail > 0 && lastBlock >= 0 && signatures.length(lastBlock) == tail
+                && signatures.weak[lastBlock] == weakChecksum(buffer, window, tail)) {
+            md5.update(buffer, window, tail);
+            if (Arrays.equals(signatures.strong[lastBlock], md5.digest())) {
+                writer.data(buffer, literal, window - literal);
+                writer.copy(lastBlock);
+                literal = length;
+            }
+        }
+        writer.data(buffer, literal, length - literal);
+        writer.finish(whole.digest());
+        progress.transferred(fileSize, fileSize);
+        return writer.literalBytes;
+    }
+
+    // Writes delta instructions, merging references to consecutive blocks into one COPY
+    private static class DeltaWriter {
+        private final DataOutputStream out;
+        private int copyFirst;
+        private int copyCount;
+        private long literalBytes;
+
+        DeltaWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void data(byte[] data, int offset, int length) throws IOException {
+            if (length == 0) return;
+            flushCopy();
+            out.writeByte(DATA);
+            out.writeInt(length);
+            out.write(data, offset, length);
+            literalBytes += length;
+        }
+
+        void copy(int block) throws IOException {
+            if (copyCount > 0 && copyFirst + copyCount == block) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = block;
+            copyCount = 1;
+        }
+
+        void finish(byte[] hash) throws IOException {
+            flushCopy();
+            out.writeByte(END);
+            out.write(hash);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyCount == 0) return;
+            out.writeByte(COPY);
+            out.writeInt(copyFirst);
+            out.writeInt(copyCount);
+            copyCount = 0;
+        }
+    }
+
+    // What applyDelta rebuilt: the bytes the client sent and the verified SHA-256 of the new version
+    static class Rebuilt {
+        final long literalBytes;
+        final byte[] digest;
+
+        Rebuilt(long literalBytes, byte[] digest) {
+            this.literalBytes = literalBytes;
+            this.digest = digest;
+        }
+    }
+
+    // Method to rebuild the new version from the old copy and the client's delta
+    static Rebuilt applyDelta(DataInputStream in, SeekableByteChannel source, long oldSize, int blockSize,
+                           long newSize, OutputStream target) throws IOException {
+        long blockCount = (oldSize + blockSize - 1) / blockSize;
+        MessageDigest whole = newDigest("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+        byte[] data = buffer.array();
+        long written = 0;
+        long literalBytes = 0;
+        while (true) {
+            byte type = in.readByte();
+            if (type == END) break;
+            if (type == COPY) {
+                int first = in.readInt();
+                int count = in.readInt();
+                if (first < 0 || count <= 0 || (long) first + count > blockCount) {
+                    throw new IOException("Invalid block reference " + first + "+" + count);
+                }
+                long position = (long) first * blockSize;
+                long end = Math.min(oldSize, position + (long) count * blockSize);
+                if (written + end - position > newSize) {
+                    throw new IOException("Delta is longer than the file");
+                }
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int bytesRead = TransferEngine.read(source, buffer, position);
+                    if (bytesRead < 0) {
+                        throw new EOFException("Stored file shrank during update");
+                    }
+                    whole.update(data, 0, bytesRead);
+                    target.write(data, 0, bytesRead);
+                    position += bytesRead;
+                    written += bytesRead;
+                }
+            } else if (type == DATA) {
+                int length = in.readInt();
+                if (length < 0 || written + length > newSize) {
+                    throw new IOException("Delta is longer than the file");
+                }
+                int remaining = length;
+                while (remaining > 0) {
+                    int bytesRead = in.read(data, 0, Math.min(data.length, remaining));
+                    if (bytesRead < 0) {
+                        throw new EOFException("Delta ended early");
+                    }
+                    whole.update(data, 0, bytesRead);
+                    target.write(data, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
+                written += length;
+                literalBytes += length;
+            } else {
+                throw new IOException("Unknown delta instruction " + type);
+            }
+        }
+        byte[] expected = new byte[32];
+        in.readFully(expected);
+        if (written != newSize) {
+            throw new IOException("Delta rebuilt " + written + " of " + newSize + " bytes");
+        }
+        byte[] digest = whole.digest();
+        if (!MessageDigest.isEqual(digest, expected)) {
+            throw new IOException("Rebuilt file does not match the client's checksum");
+        }
+        return new Rebuilt(literalBytes, digest);
+    }
+
+    // Method to create a digest every Java platform provides
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
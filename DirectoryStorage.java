@@ -0,0 +1,136 @@
+import java.io.*;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+// Stores every file as-is in one directory (the original server_files layout). A name with '/'
+// is kept in the subdirectories it names, which are created as needed.
+public class DirectoryStorage implements Storage {
+    private final File dir;
+
+    public DirectoryStorage(File dir) {
+        this.dir = dir;
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    // Method to map a name to its file, or null for names that are not allowed
+    private File resolve(String name) {
+        return Storage.isValidName(name) ? new File(dir, name) : null;
+    }
+
+    @Override
+    public boolean exists(String name) {
+        File file = resolve(name);
+        return file != null && file.isFile();
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        final List<String> names = new ArrayList<String>();
+        final Path root = dir.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) names.add(nameOf(root, path));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                // Deleted during the walk
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return names;
+    }
+
+    @Override
+    public FileInfo stat(String name) {
+        File file = resolve(name);
+        if (file == null || !file.isFile()) return null;
+        return new FileInfo(name, file.length(), file.lastModified());
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        File file = resolve(name);
+        if (file == null || !file.isFile()) return null;
+        try {
+            return new FileInputStream(file).getChannel();
+        } catch (FileNotFoundException e) {
+            // Deleted since the check
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void commit(String name, File tempFile) throws IOException {
+        File target = resolve(name);
+        if (target == null) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        if (target.exists()) {
+            throw new FileAlreadyExistsException(name);
+        }
+        createParent(target);
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void replace(String name, File tempFile) throws IOException {
+        File target = resolve(name);
+        if (target == null) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        createParent(target);
+        // Readers that already opened the old file keep reading the old contents
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public int clear() throws IOException {
+        final Path root = dir.toPath();
+        final int[] deletedFiles = new int[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                if (path.toFile().delete()) {
+                    deletedFiles[0]++;
+                    ServerLog.debug("Deleted file: %s", nameOf(root, path));
+                } else {
+                    ServerLog.warn("Failed to delete file: %s", nameOf(root, path));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path path, IOException e) {
+                // Subdirectories go with their files; one a new upload is using is not empty and stays
+                if (!path.equals(root)) path.toFile().delete();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return deletedFiles[0];
+    }
+
+    // Method to create the directories a file's name puts it in
+    private void createParent(File target) throws IOException {
+        File parent = target.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Cannot create directory for " + target.getName()
+                    + "; part of its name is already a file");
+        }
+    }
+
+    // Method to turn a path under the storage directory into its stored name
+    static String nameOf(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+}
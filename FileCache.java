@@ -0,0 +1,240 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Storage decorator that keeps the contents of small, recently downloaded files in direct buffers.
+// A hit skips the stat, open and read system calls of the backend entirely. Entries are evicted in
+// least-recently-used order once the cache holds more than its byte budget, and every commit,
+// replace or clear that goes through this storage invalidates the affected entries.
+public class FileCache implements Storage {
+    private final Storage storage;
+    private final long maxBytes;
+    private final int maxFileSize;
+
+    // Cached contents in access order, guarded by this
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    private long cachedBytes;
+    // Loads in progress; an invalidation removes the token so a load that read the old contents is not cached
+    private final Map<String, Object> pendingLoads = new HashMap<String, Object>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public FileCache(Storage storage, long maxBytes, int maxFileSize) {
+        this.storage = storage;
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+    }
+
+    @Override
+    public boolean exists(String name) throws IOException {
+        synchronized (this) {
+            if (entries.containsKey(name)) return true;
+        }
+        return storage.exists(name);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return storage.list();
+    }
+
+    @Override
+    public FileInfo stat(String name) throws IOException {
+        return storage.stat(name);
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        ByteBuffer contents;
+        Object token = new Object();
+        synchronized (this) {
+            contents = entries.get(name);
+            if (contents == null) pendingLoads.put(name, token);
+        }
+        if (contents != null) {
+            hits.incrementAndGet();
+            return new CachedChannel(contents);
+        }
+        misses.incrementAndGet();
+
+        SeekableByteChannel source = storage.openRead(name);
+        if (source == null || source.size() > maxFileSize) {
+            synchronized (this) {
+                if (pendingLoads.get(name) == token) pendingLoads.remove(name);
+            }
+            return source;
+        }
+        try {
+            contents = readFully(source);
+        } finally {
+            source.close();
+        }
+        synchronized (this) {
+            if (pendingLoads.get(name) == token) {
+                pendingLoads.remove(name);
+                put(name, contents);
+            }
+        }
+        return new CachedChannel(contents);
+    }
+
+    @Override
+    public void commit(String name, File tempFile) throws IOException {
+        storage.commit(name, tempFile);
+        invalidate(name);
+    }
+
+    @Override
+    public void replace(String name, File tempFile) throws IOException {
+        storage.replace(name, tempFile);
+        invalidate(name);
+    }
+
+    @Override
+    public int clear() throws IOException {
+        try {
+            return storage.clear();
+        } finally {
+            synchronized (this) {
+                entries.clear();
+                pendingLoads.clear();
+                cachedBytes = 0;
+            }
+        }
+    }
+
+    // Method to drop a file from the cache after its contents changed
+    synchronized void invalidate(String name) {
+        ByteBuffer removed = entries.remove(name);
+        if (removed != null) cachedBytes -= removed.capacity();
+        pendingLoads.remove(name);
+    }
+
+    // Method to add an entry and evict the least recently used ones until the cache fits its budget
+    private void put(String name, ByteBuffer contents) {
+        ByteBuffer previous = entries.put(name, contents);
+        if (previous != null) cachedBytes -= previous.capacity();
+        cachedBytes += contents.capacity();
+        Iterator<ByteBuffer> eldest = entries.values().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().capacity();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Method to copy a small file into a new direct buffer
+    private static ByteBuffer readFully(SeekableByteChannel source) throws IOException {
+        ByteBuffer contents = ByteBuffer.allocateDirect((int) source.size());
+        while (contents.hasRemaining()) {
+            if (TransferEngine.read(source, contents, contents.position()) < 0) {
+                throw new EOFException("File shrank while caching");
+            }
+        }
+        contents.flip();
+        return contents;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    // Read-only channel over cached contents; each reader gets its own position
+    static class CachedChannel implements SeekableByteChannel {
+        private final ByteBuffer contents;
+        private long position;
+        private boolean open = true;
+
+        CachedChannel(ByteBuffer contents) {
+            this.contents = contents;
+        }
+
+        // Method to write part of the contents straight from the cached buffer
+        long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer slice = contents.duplicate();
+            slice.position((int) position);
+            slice.limit((int) (position + count));
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+            return count;
+        }
+
+        // Method to get the bytes from a position to the end, without copying
+        ByteBuffer remaining(long position) {
+            ByteBuffer slice = contents.duplicate();
+            slice.position((int) position);
+            return slice;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) throw new ClosedChannelException();
+            if (position >= contents.limit()) return -1;
+            ByteBuffer slice = contents.duplicate();
+            slice.position((int) position);
+            slice.limit((int) Math.min(contents.limit(), position + dst.remaining()));
+            int count = slice.remaining();
+            dst.put(slice);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) {
+            if (newPosition < 0) throw new IllegalArgumentException("Negative position");
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return contents.limit();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -2,16 +2,44 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
 import java.net.*;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.datatransfer.*;
 
 public class FileClient {
-    // Server connection details
-    private static final String SERVER_HOST = "localhost";
-    private static final int SERVER_PORT = 42069;
+    // Requests share a few long-lived session connections instead of one socket per command,
+    // with at least one connection per parallel range of a large transfer
+    private static final int MAX_CONNECTIONS = Math.max(4, ParallelTransfer.PARALLELISM);
+    // All protocol work goes through the client library; the GUI only shows its results
+    private static final TransferClient client = new TransferClient(TransferClient.DEFAULT_HOST, TransferClient.DEFAULT_PORT,
+            MAX_CONNECTIONS, UploadScheduler.CONCURRENCY + 4);
+    // Files fetched per LIST_PAGE request; more are fetched with the Load More button
+    private static final int PAGE_SIZE = 500;
+    // Name prefix the file list is filtered by, and the cursor of its next page ("" when fully listed).
+    // Both are only used on the event dispatch thread.
+    private static String listPrefix = "";
+    private static String listCursor = "";
+    // Listing requests in flight, and the change events held back until they are applied (event dispatch thread only)
+    private static int listLoads;
+    private static final List<ChangeFeed.Event> heldEvents = new ArrayList<ChangeFeed.Event>();
+    // Uploads wait here and run a few at a time, with small files batched; created with the GUI
+    private static UploadScheduler uploadScheduler;
+    // Samples the byte counts of running transfers into the table a few times a second; created with the GUI
+    private static ProgressTracker progressTracker;
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
@@ -32,7 +60,7 @@ public class FileClient {
 
         // Table model to display files and their statuses
         final DefaultTableModel model = new DefaultTableModel(
-            new String[]{"File Name", "Action", "Progress", "Status"}, 0) {
+            new String[]{"File Name", "Action", "Progress", "Status", "Size", "Modified", "Rate", "ETA"}, 0) {
             @Override
             // Prevent editing of table cells
             public boolean isCellEditable(int row, int column) {
@@ -40,24 +68,29 @@ public class FileClient {
             }
         };
 
+        progressTracker = new ProgressTracker(model, progressBar, 2, 6, 7);
+        uploadScheduler = client.newUploadScheduler(UploadScheduler.CONCURRENCY, uploadHandler(model));
+
         // Table to display files
         final JTable table = new JTable(model);
-        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION); // Allow single row selection
+        table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION); // Several rows are downloaded as one archive
 
         // Buttons for various actions
         JButton uploadButton = new JButton("Upload File"); //Button to upload files
         JButton downloadButton = new JButton("Download File"); //Button to download files
         JButton refreshButton = new JButton("Refresh File List"); //Button to refresh the list of files
         JButton clearButton = new JButton("Clear Files"); // Button to clear files from the server
+        JButton loadMoreButton = new JButton("Load More"); // Button to fetch the next page of files
+        final JTextField filterField = new JTextField(10); // Only files whose names start with this are listed
 
         // Panel for drag-and-drop functionality
-        JPanel dragAndDropPanel = createDragAndDropPanel(progressBar, model);
+        JPanel dragAndDropPanel = createDragAndDropPanel();
 
         // Action listener for the upload button
         uploadButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                uploadFile(progressBar, model);
+                uploadFile();
             }
         });
 
@@ -65,13 +98,30 @@ public class FileClient {
         downloadButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                int selectedRow = table.getSelectedRow();
-                if (selectedRow == -1) {
+                int[] selectedRows = table.getSelectedRows();
+                if (selectedRows.length == 0 && !listPrefix.isEmpty()) {
+                    // Nothing selected in a filtered list: offer every file matching the filter
+                    int confirm = JOptionPane.showConfirmDialog(frame,
+                            "Download every file whose name starts with \"" + listPrefix + "\"?",
+                            "Download Files", JOptionPane.YES_NO_OPTION);
+                    if (confirm == JOptionPane.YES_OPTION) {
+                        downloadFiles(new ArrayList<String>(), listPrefix, model);
+                    }
+                    return;
+                }
+                if (selectedRows.length == 0) {
                     JOptionPane.showMessageDialog(frame, "Please select a file to download.", "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
-                String fileName = (String) model.getValueAt(selectedRow, 0);
-                downloadFile(fileName, progressBar, model);
+                if (selectedRows.length == 1) {
+                    downloadFile((String) model.getValueAt(selectedRows[0], 0), model);
+                    return;
+                }
+                List<String> fileNames = new ArrayList<String>();
+                for (int row : selectedRows) {
+                    fileNames.add((String) model.getValueAt(row, 0));
+                }
+                downloadFiles(fileNames, "", model);
             }
         });
 
@@ -83,6 +133,27 @@ public class FileClient {
             }
         });
 
+        // Action listener for the load more button
+        loadMoreButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (listCursor.isEmpty()) {
+                    JOptionPane.showMessageDialog(frame, "All files are listed.");
+                    return;
+                }
+                loadFilePage(model, listPrefix, listCursor, false);
+            }
+        });
+
+        // Action listener for the filter field, applied when Enter is pressed
+        filterField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                listPrefix = filterField.getText();
+                updateFileList(model);
+            }
+        });
+
         // Action listener for the clear button
         clearButton.addActionListener(new ActionListener() {
             @Override
@@ -105,6 +176,9 @@ public class FileClient {
         buttonsPanel.add(downloadButton); //Add the download button to the panel
         buttonsPanel.add(refreshButton); //Add the refresh button to the panel
         buttonsPanel.add(clearButton); // Add the clear button to the panel
+        buttonsPanel.add(loadMoreButton); // Add the load more button to the panel
+        buttonsPanel.add(new JLabel("Filter:"));
+        buttonsPanel.add(filterField); // Add the filter field to the panel
 
         // Set up the frame layout
         frame.setLayout(new BorderLayout());
@@ -113,14 +187,40 @@ public class FileClient {
         frame.add(progressBar, BorderLayout.SOUTH);
         frame.add(buttonsPanel, BorderLayout.PAGE_END);
 
-        // Fetch and display the file list when the GUI starts
-        updateFileList(model);
+        // Follow changes pushed by the server; the full file list is fetched when the feed connects
+        // and again only after it reconnects
+        client.subscribe(new ChangeFeed.Listener() {
+            @Override
+            public void subscribed() {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateFileList(model);
+                    }
+                });
+            }
+
+            @Override
+            public void changed(final ChangeFeed.Event event) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (listLoads > 0) {
+                            // Replayed once the listing in flight has replaced the rows
+                            heldEvents.add(event);
+                        } else {
+                            applyChange(model, event);
+                        }
+                    }
+                });
+            }
+        });
 
         frame.setVisible(true);
     }
 
     // Method to create the drag-and-drop panel
-    private static JPanel createDragAndDropPanel(final JProgressBar progressBar, final DefaultTableModel model) {
+    private static JPanel createDragAndDropPanel() {
         JPanel panel = new JPanel();
         panel.setBorder(BorderFactory.createTitledBorder("Drag and Drop Files Here"));
         panel.setTransferHandler(new TransferHandler() {
@@ -135,20 +235,8 @@ public class FileClient {
                 try {
                     // Get the list of files dropped
                     List<File> files = (List<File>) support.getTransferable().getTransferData(DataFlavor.javaFileListFlavor);
-                    for (File file : files) {
-                        if (file.isDirectory()) {
-                            // If it's a directory, upload all files inside
-                            File[] innerFiles = file.listFiles();
-                            if (innerFiles != null) {
-                                for (File innerFile : innerFiles) {
-                                    uploadFile(innerFile, progressBar, model);
-                                }
-                            }
-                        } else {
-                            // Upload the file
-                            uploadFile(file, progressBar, model);
-                        }
-                    }
+                    // Queue the files, and every file in dropped directories at any depth
+                    uploadScheduler.uploadAll(files);
                     return true;
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -161,210 +249,329 @@ public class FileClient {
     }
 
     // Method to initiate file upload using a file chooser
-    private static void uploadFile(final JProgressBar progressBar, final DefaultTableModel model) {
+    private static void uploadFile() {
         JFileChooser fileChooser = new JFileChooser();
         int result = fileChooser.showOpenDialog(null);
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            uploadFile(file, progressBar, model);
+            uploadScheduler.uploadAll(Collections.singletonList(file));
         }
     }
 
-    // Method to upload a specific file
-    private static void uploadFile(final File file, final JProgressBar progressBar, final DefaultTableModel model) {
-        // Find or add the file in the table and get the row index
-        int rowIndex = -1;
-        for (int i = 0; i < model.getRowCount(); i++) {
-            if (model.getValueAt(i, 0).equals(file.getName())) {
-                rowIndex = i;
-                break;
+    // Method to create the handler that shows scheduled uploads in the table and reports how they ended.
+    // Files the server already has are set aside; once every queued file has finished, the user is
+    // asked once whether to update all of them, and the updates are then queued together.
+    private static UploadScheduler.Handler uploadHandler(final DefaultTableModel model) {
+        return new UploadScheduler.Handler() {
+            // The last refusal from the server, shown when a single upload fails
+            private volatile String lastServerError;
+            // Files that already exist on the server, by name, waiting for the user's decision; guarded by itself
+            private final Map<String, File> existing = new LinkedHashMap<String, File>();
+
+            @Override
+            public void queued(File file, String name) {
+                updateRow(model, name, "Upload", "0%", "Queued");
             }
-        }
-        if (rowIndex == -1) {
-            // Add new row if file not in table
-            model.addRow(new Object[]{file.getName(), "Upload", "0%", "In Progress"});
-            rowIndex = model.getRowCount() - 1;
-        } else {
-            // Update existing row
-            model.setValueAt("Upload", rowIndex, 1);
-            model.setValueAt("0%", rowIndex, 2);
-            model.setValueAt("In Progress", rowIndex, 3);
-        }
 
-        final int finalRowIndex = rowIndex;
+            @Override
+            public void upload(File file, String name) throws IOException {
+                updateRow(model, name, "Upload", "0%", "In Progress");
+                ProgressTracker.Transfer transfer = progressTracker.start(name);
+                try {
+                    TransferClient.await(client.upload(file, name, transfer));
+                } finally {
+                    transfer.finish();
+                }
+            }
 
-        // Start a new thread for uploading to prevent GUI freezing
-        Thread uploadThread = new Thread(new Runnable() {
             @Override
-            public void run() {
-                boolean uploadSuccessful = false;
-                try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-                     DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                     DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-
-                    // Send upload command and file details to the server
-                    dos.writeUTF("UPLOAD");
-                    dos.writeUTF(file.getName());
-                    dos.writeLong(file.length());
-
-                    // Read server response
-                    String response = dis.readUTF();
-                    if (!"OK".equals(response)) {
-                        // Server indicates failure (e.g., file already exists)
-                        JOptionPane.showMessageDialog(null, response);
-                        model.setValueAt("Failed", finalRowIndex, 3);
-                        return;
+            public boolean finished(File file, String name, IOException error) {
+                if (error instanceof ServerException && TransferClient.FILE_EXISTS.equals(error.getMessage())) {
+                    // Decided together with the other existing files once the scheduler is idle
+                    synchronized (existing) {
+                        existing.put(name, file);
                     }
+                    updateRow(model, name, "Upload", null, "Exists");
+                    return false;
+                }
+                if (error == null) {
+                    // Update status to completed
+                    updateRow(model, name, "Upload", "100%", "Completed");
+                    return true;
+                }
+                if (error instanceof ServerException) {
+                    // Server indicates failure (e.g., file already exists)
+                    lastServerError = error.getMessage();
+                } else {
+                    error.printStackTrace();
+                }
+                updateRow(model, name, "Upload", null, "Failed");
+                return false;
+            }
 
-                    // Proceed to send the file data
-                    try (FileInputStream fis = new FileInputStream(file)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        long totalSent = 0;
-                        while ((bytesRead = fis.read(buffer)) > 0) {
-                            dos.write(buffer, 0, bytesRead);
-                            totalSent += bytesRead;
-                            // Update progress
-                            final int progress = (int) ((totalSent * 100) / file.length());
-                            SwingUtilities.invokeLater(new Runnable() {
-                                @Override
-                                public void run() {
-                                    progressBar.setValue(progress);
-                                    model.setValueAt(progress + "%", finalRowIndex, 2);
-                                }
-                            });
+            @Override
+            public void idle(final int succeeded, final int failed) {
+                final String serverError = lastServerError;
+                lastServerError = null;
+                final Map<String, File> toUpdate;
+                synchronized (existing) {
+                    toUpdate = new LinkedHashMap<String, File>(existing);
+                    existing.clear();
+                }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        // The existing files were counted as failed until the user decides
+                        int othersFailed = failed - toUpdate.size();
+                        if (!toUpdate.isEmpty() && confirmUpdate(toUpdate.keySet())) {
+                            updateAll(model, toUpdate, succeeded, othersFailed, serverError);
+                            return;
+                        }
+                        for (String name : toUpdate.keySet()) {
+                            updateRow(model, name, "Upload", null, "Failed");
                         }
+                        showUploadSummary(succeeded, failed, toUpdate.isEmpty() ? serverError : TransferClient.FILE_EXISTS);
                     }
-                    // Update status to completed
-                    model.setValueAt("Completed", finalRowIndex, 3);
-                    JOptionPane.showMessageDialog(null, "File uploaded successfully!");
-                    uploadSuccessful = true;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    model.setValueAt("Failed", finalRowIndex, 3);
-                } finally {
-                    if (uploadSuccessful) {
-                        // Refresh the file list only if the upload was successful
-                        updateFileList(model);
+                });
+            }
+        };
+    }
+
+    // Method to replace the server's copies of files with the local versions, sending only the blocks that
+    // changed, then report the whole drop; the updates run on the client's workers
+    private static void updateAll(final DefaultTableModel model, Map<String, File> files, final int succeeded,
+                                  final int failed, final String serverError) {
+        final int count = files.size();
+        final AtomicInteger remaining = new AtomicInteger(count);
+        final AtomicInteger updated = new AtomicInteger();
+        final AtomicReference<String> lastError = new AtomicReference<String>(serverError);
+        for (Map.Entry<String, File> entry : files.entrySet()) {
+            final String name = entry.getKey();
+            updateRow(model, name, "Upload", "0%", "In Progress");
+            final ProgressTracker.Transfer transfer = progressTracker.start(name);
+            client.sync(entry.getValue(), name, transfer).whenComplete(new BiConsumer<Void, Throwable>() {
+                @Override
+                public void accept(Void result, Throwable error) {
+                    transfer.finish();
+                    if (error == null) {
+                        updated.incrementAndGet();
+                        updateRow(model, name, "Upload", "100%", "Completed");
+                    } else {
+                        error = TransferClient.cause(error);
+                        if (error instanceof ServerException) {
+                            lastError.set(error.getMessage());
+                        } else {
+                            error.printStackTrace();
+                        }
+                        updateRow(model, name, "Upload", null, "Failed");
                     }
+                    if (remaining.decrementAndGet() == 0) {
+                        final int updatedCount = updated.get();
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                showUploadSummary(succeeded + updatedCount, failed + count - updatedCount, lastError.get());
+                            }
+                        });
+                    }
+                }
+            });
+        }
+    }
+
+    // Method to tell the user how a drop of uploads ended; runs on the event dispatch thread
+    private static void showUploadSummary(int succeeded, int failed, String serverError) {
+        if (succeeded == 1 && failed == 0) {
+            JOptionPane.showMessageDialog(null, "File uploaded successfully!");
+        } else if (succeeded == 0 && failed == 1) {
+            if (serverError != null) JOptionPane.showMessageDialog(null, serverError);
+        } else if (succeeded + failed > 1) {
+            JOptionPane.showMessageDialog(null, "Uploaded " + succeeded + " of " + (succeeded + failed) + " files."
+                    + (failed > 0 ? "\nSee the Status column for the files that failed." : ""));
+        }
+    }
+
+    // Method to show a transfer's action, progress and status in its row, adding the row if the file is not listed.
+    // Runs on the event dispatch thread; a null progress leaves the progress column as it is.
+    private static void updateRow(final DefaultTableModel model, final String fileName, final String action,
+                                  final String progress, final String status) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                int rowIndex = findRow(model, fileName);
+                if (rowIndex == -1) {
+                    // Add new row if file not in table
+                    model.addRow(new Object[]{fileName, action, progress != null ? progress : "", status});
+                    return;
                 }
+                // Update existing row
+                model.setValueAt(action, rowIndex, 1);
+                if (progress != null) model.setValueAt(progress, rowIndex, 2);
+                model.setValueAt(status, rowIndex, 3);
             }
         });
-        uploadThread.start();
+    }
+
+    // Method to find the row of a file in the table, or -1
+    private static int findRow(DefaultTableModel model, String fileName) {
+        for (int i = 0; i < model.getRowCount(); i++) {
+            if (model.getValueAt(i, 0).equals(fileName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Method to ask once whether files that already exist on the server should all be updated with the
+    // local versions; runs on the event dispatch thread
+    private static boolean confirmUpdate(Set<String> names) {
+        if (names.size() == 1) {
+            return JOptionPane.showConfirmDialog(null,
+                    names.iterator().next() + " already exists on the server. Update it with this version?\n"
+                            + "Only the parts that changed will be sent.",
+                    "Update File", JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION;
+        }
+        StringBuilder message = new StringBuilder(names.size() + " files already exist on the server:\n");
+        int shown = 0;
+        for (String name : names) {
+            if (shown++ == 10) {
+                message.append("... and ").append(names.size() - 10).append(" more\n");
+                break;
+            }
+            message.append(name).append('\n');
+        }
+        message.append("Update all of them with these versions? Only the parts that changed will be sent.");
+        Object[] options = {"Update All", "Skip All"};
+        return JOptionPane.showOptionDialog(null, message.toString(), "Update Files", JOptionPane.YES_NO_OPTION,
+                JOptionPane.QUESTION_MESSAGE, null, options, options[0]) == 0;
     }
 
     // Method to download a selected file
-    private static void downloadFile(final String fileName, final JProgressBar progressBar, final DefaultTableModel model) {
+    private static void downloadFile(final String fileName, final DefaultTableModel model) {
         // Let the user choose a directory to save the file
         JFileChooser folderChooser = new JFileChooser();
         folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
         int result = folderChooser.showOpenDialog(null);
         if (result != JFileChooser.APPROVE_OPTION) return;
 
-        final File selectedFolder = folderChooser.getSelectedFile();
-        // Start a new thread for downloading
-        Thread downloadThread = new Thread(new Runnable() {
+        final File outputFile = new File(folderChooser.getSelectedFile(), fileName);
+        if (outputFile.exists()) {
+            // File already exists locally
+            JOptionPane.showMessageDialog(null, "File already exists in the directory.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        // Update table to reflect download action
+        updateRow(model, fileName, "Download", "0%", "In Progress");
+
+        final ProgressTracker.Transfer transfer = progressTracker.start(fileName);
+        // Ranges of large files are fetched over several connections at once
+        client.download(fileName, outputFile, transfer).whenComplete(new BiConsumer<Void, Throwable>() {
             @Override
-            public void run() {
-                int tempRowIndex = -1;
-                // Find the row index of the file in the table
-                for (int i = 0; i < model.getRowCount(); i++) {
-                    if (model.getValueAt(i, 0).equals(fileName)) {
-                        tempRowIndex = i;
-                        break;
-                    }
-                }
-                final int rowIndex = tempRowIndex;
-                if (rowIndex == -1) {
-                    return;
+            public void accept(Void result, Throwable error) {
+                transfer.finish();
+                error = TransferClient.cause(error);
+                if (error == null) {
+                    // Update status to completed
+                    updateRow(model, fileName, "Download", "100%", "Completed");
+                    showMessage("File downloaded successfully!");
+                } else if (error instanceof FileNotFoundException) {
+                    // Server indicates failure (e.g., file not found)
+                    updateRow(model, fileName, "Download", null, "Failed");
+                    showMessage("File not found on server.");
+                } else {
+                    error.printStackTrace();
+                    updateRow(model, fileName, "Download", null, "Failed");
                 }
-                // Update table to reflect download action
-                model.setValueAt("Download", rowIndex, 1);
-                model.setValueAt("In Progress", rowIndex, 3);
-                try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-                     DataInputStream dis = new DataInputStream(socket.getInputStream());
-                     DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-
-                    // Send download command and file name to the server
-                    dos.writeUTF("DOWNLOAD");
-                    dos.writeUTF(fileName);
-
-                    // Read server response
-                    String response = dis.readUTF();
-                    if (!"OK".equals(response)) {
-                        // Server indicates failure (e.g., file not found)
-                        JOptionPane.showMessageDialog(null, "File not found on server.");
-                        model.setValueAt("Failed", rowIndex, 3);
-                        return;
-                    }
+            }
+        });
+    }
 
-                    // Get the file size from the server
-                    long fileSize = dis.readLong();
-                    File outputFile = new File(selectedFolder, fileName);
+    // Method to download several files, or every file starting with prefix if none are named,
+    // as one archive that is extracted as it arrives
+    private static void downloadFiles(final List<String> fileNames, String prefix, final DefaultTableModel model) {
+        // Let the user choose one directory for all of them
+        JFileChooser folderChooser = new JFileChooser();
+        folderChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        int result = folderChooser.showOpenDialog(null);
+        if (result != JFileChooser.APPROVE_OPTION) return;
 
-                    if (outputFile.exists()) {
-                        // File already exists locally
-                        JOptionPane.showMessageDialog(null, "File already exists in the directory.", "Error", JOptionPane.ERROR_MESSAGE);
-                        model.setValueAt("Failed", rowIndex, 3);
-                        return;
+        for (String fileName : fileNames) {
+            updateRow(model, fileName, "Download", "0%", "In Progress");
+        }
+        // The archive's progress shows on the progress bar; rows are updated as their files are saved
+        final ProgressTracker.Transfer transfer = progressTracker.start("");
+        final Set<String> finished = ConcurrentHashMap.newKeySet();
+        final BundleDownload.Listener listener = new BundleDownload.Listener() {
+            @Override
+            public void extracted(String fileName, IOException error) {
+                finished.add(fileName);
+                if (error == null) {
+                    updateRow(model, fileName, "Download", "100%", "Completed");
+                } else {
+                    System.err.println("Failed to download " + fileName + ": " + error.getMessage());
+                    updateRow(model, fileName, "Download", null, "Failed");
+                }
+            }
+        };
+        client.downloadMany(fileNames, prefix, folderChooser.getSelectedFile(), listener, transfer)
+                .whenComplete(new BiConsumer<List<String>, Throwable>() {
+            @Override
+            public void accept(List<String> missing, Throwable error) {
+                transfer.finish();
+                error = TransferClient.cause(error);
+                if (error == null) {
+                    for (String fileName : missing) {
+                        updateRow(model, fileName, "Download", null, "Failed");
                     }
-
-                    // Proceed to receive the file data
-                    try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        long totalReceived = 0;
-                        while ((totalReceived < fileSize) && (bytesRead = dis.read(buffer)) > 0) {
-                            fos.write(buffer, 0, bytesRead);
-                            totalReceived += bytesRead;
-                            // Update progress
-                            final int progress = (int) ((totalReceived * 100) / fileSize);
-                            SwingUtilities.invokeLater(new Runnable() {
-                                @Override
-                                public void run() {
-                                    progressBar.setValue(progress);
-                                    model.setValueAt(progress + "%", rowIndex, 2);
-                                }
-                            });
-                        }
-                        // Update status to completed
-                        model.setValueAt("Completed", rowIndex, 3);
-                        JOptionPane.showMessageDialog(null, "File downloaded successfully!");
+                    showMessage(missing.isEmpty() ? "Files downloaded successfully!"
+                            : missing.size() + " of the files were not found on the server.");
+                } else {
+                    error.printStackTrace();
+                    for (String fileName : fileNames) {
+                        if (!finished.contains(fileName)) updateRow(model, fileName, "Download", null, "Failed");
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    model.setValueAt("Failed", rowIndex, 3);
+                    showMessage("Download failed: " + error.getMessage());
                 }
             }
         });
-        downloadThread.start();
     }
 
-    // Method to update the file list from the server
+    // Method to show a message from a background thread without blocking it
+    private static void showMessage(final String message) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JOptionPane.showMessageDialog(null, message);
+            }
+        });
+    }
+
+    // Method to update the file list from the server, starting again from its first page
     private static void updateFileList(final DefaultTableModel model) {
+        loadFilePage(model, listPrefix, "", true);
+    }
+
+    // Method to fetch one page of the file list and add its rows to the table, replacing the old rows if asked
+    private static void loadFilePage(final DefaultTableModel model, final String prefix, final String cursor, final boolean replace) {
+        listLoads++;
         // Use SwingWorker to perform background tasks without freezing the GUI
         SwingWorker<Object[][], Void> worker = new SwingWorker<Object[][], Void>() {
+            private String nextCursor;
+
             @Override
             protected Object[][] doInBackground() throws Exception {
-                try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-                     DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                     DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-
-                    // Send list command to the server
-                    dos.writeUTF("LIST");
-                    int fileCount = dis.readInt();
-                    System.out.println("Received file count: " + fileCount);
-
-                    // Read the list of files from the server
-                    Object[][] data = new Object[fileCount][4];
-                    for (int i = 0; i < fileCount; i++) {
-                        String fileName = dis.readUTF();
-                        System.out.println("Received file name: " + fileName);
-                        data[i][0] = fileName;
-                        data[i][1] = "";
-                        data[i][2] = "";
-                        data[i][3] = "Available";
+                try {
+                    // Ask the server for the next page of files matching the filter
+                    FileIndex.Page page = TransferClient.await(client.listPage(prefix, cursor, PAGE_SIZE));
+
+                    // Show the files with their sizes and modification times
+                    DateFormat dateFormat = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+                    Object[][] data = new Object[page.files.size()][];
+                    for (int i = 0; i < data.length; i++) {
+                        Storage.FileInfo info = page.files.get(i);
+                        data[i] = fileRow(info.name, info.size, info.lastModified, dateFormat);
                     }
+                    nextCursor = page.nextCursor;
                     return data;
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -376,64 +583,115 @@ public class FileClient {
             protected void done() {
                 try {
                     Object[][] data = get();
-                    // Clear the table and repopulate with new data
-                    model.setRowCount(0);
+                    // Start over for a refresh; a further page is only appended
+                    if (replace) model.setRowCount(0);
                     for (Object[] row : data) {
                         model.addRow(row);
                     }
+                    listCursor = nextCursor;
                 } catch (Exception e) {
                     e.printStackTrace();
                     JOptionPane.showMessageDialog(null, "Failed to refresh file list:\n" + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                } finally {
+                    // Changes that arrived meanwhile may predate the listing; replaying them in order is harmless
+                    if (--listLoads == 0) {
+                        for (ChangeFeed.Event event : heldEvents) {
+                            applyChange(model, event);
+                        }
+                        heldEvents.clear();
+                    }
                 }
             }
         };
         worker.execute();
     }
 
-     
-    private static void clearFilesOnServer(final DefaultTableModel model) {
-        // Start a new thread to communicate with the server
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try (Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-                     DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                     DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+    // Method to build a table row for a file on the server
+    private static Object[] fileRow(String name, long size, long lastModified, DateFormat dateFormat) {
+        return new Object[]{name, "", "", "Available", formatSize(size), dateFormat.format(new Date(lastModified))};
+    }
 
-                    // Send clear command to the server
-                    dos.writeUTF("CLEAR");
+    // Method to apply one pushed change to the table. Only rows inside the filter and the pages
+    // already fetched are added, and rows of queued or running transfers are left alone.
+    private static void applyChange(DefaultTableModel model, ChangeFeed.Event event) {
+        if (event.type == ChangeFeed.CLEARED) {
+            for (int i = model.getRowCount() - 1; i >= 0; i--) {
+                if (!isBusy(model, i)) model.removeRow(i);
+            }
+            listCursor = "";
+            return;
+        }
+        int rowIndex = findRow(model, event.name);
+        if (event.type == ChangeFeed.REMOVED) {
+            if (rowIndex != -1 && !isBusy(model, rowIndex)) model.removeRow(rowIndex);
+            return;
+        }
+        Object[] row = fileRow(event.name, event.size, event.lastModified,
+                DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT));
+        if (rowIndex != -1) {
+            // Keep the row's action and status, e.g. a just completed upload
+            model.setValueAt(row[4], rowIndex, 4);
+            model.setValueAt(row[5], rowIndex, 5);
+        } else if (event.name.startsWith(listPrefix) && (listCursor.isEmpty() || event.name.compareTo(listCursor) <= 0)) {
+            // Insert in name order, like the listing
+            int insertAt = 0;
+            while (insertAt < model.getRowCount() && ((String) model.getValueAt(insertAt, 0)).compareTo(event.name) < 0) {
+                insertAt++;
+            }
+            model.insertRow(insertAt, row);
+        }
+    }
 
-                    // Read server response
-                    String response = dis.readUTF();
-                    if ("OK".equals(response)) {
-                        int deletedFiles = dis.readInt();
-                        SwingUtilities.invokeLater(new Runnable() {
-                            @Override
-                            public void run() {
-                                model.setRowCount(0); 
-                                JOptionPane.showMessageDialog(null, "Cleared " + deletedFiles + " files from the server.");
-                            }
-                        });
-                    } else {
-                        final String errorMsg = "Failed to clear files on the server.";
-                        SwingUtilities.invokeLater(new Runnable() {
-                            @Override
-                            public void run() {
-                                JOptionPane.showMessageDialog(null, errorMsg, "Error", JOptionPane.ERROR_MESSAGE);
-                            }
-                        });
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    final String errorMsg = "Error communicating with the server:\n" + e.getMessage();
+    // Method to check whether a row belongs to a transfer that is queued or running
+    private static boolean isBusy(DefaultTableModel model, int rowIndex) {
+        Object status = model.getValueAt(rowIndex, 3);
+        return "In Progress".equals(status) || "Queued".equals(status);
+    }
+
+    // Method to show a byte count in the largest unit that keeps it above one
+    private static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        String[] units = {"KB", "MB", "GB", "TB"};
+        double size = bytes;
+        int unit = -1;
+        while (size >= 1024 && unit < units.length - 1) {
+            size /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", size, units[unit]);
+    }
+
+    // Method to delete every file on the server
+    private static void clearFilesOnServer(final DefaultTableModel model) {
+        client.clear().whenComplete(new BiConsumer<Integer, Throwable>() {
+            @Override
+            public void accept(final Integer deletedFiles, Throwable error) {
+                error = TransferClient.cause(error);
+                if (error == null) {
                     SwingUtilities.invokeLater(new Runnable() {
                         @Override
                         public void run() {
-                            JOptionPane.showMessageDialog(null, errorMsg, "Error", JOptionPane.ERROR_MESSAGE);
+                            model.setRowCount(0); 
+                            listCursor = "";
+                            JOptionPane.showMessageDialog(null, "Cleared " + deletedFiles + " files from the server.");
                         }
                     });
+                    return;
+                }
+                final String errorMsg;
+                if (error instanceof ServerException) {
+                    errorMsg = "Failed to clear files on the server.";
+                } else {
+                    error.printStackTrace();
+                    errorMsg = "Error communicating with the server:\n" + error.getMessage();
                 }
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        JOptionPane.showMessageDialog(null, errorMsg, "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
             }
-        }).start();
+        });
     }
 }
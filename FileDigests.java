@@ -0,0 +1,121 @@
+import java.io.*;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The SHA-256 of every stored file, so DOWNLOAD_RANGE can report a file's digest without reading it.
+// Digests are computed while uploads and updates are received and saved in server_files_digests as <name>.sha256,
+// in subdirectories for names with '/'.
+// Each one records the size and modification time it was computed for; a digest that no longer
+// matches its file, e.g. after an edit outside the server, is computed again on first use. Deduplicated
+// uploads are hashed that way too, since most of their chunks are never sent.
+public class FileDigests {
+    static final String DIGEST_DIR = FileServer.STORAGE_DIR + "_digests";
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private FileDigests() {
+    }
+
+    // Method to record the digest of a file just published under a name
+    static void put(String name, byte[] digest) {
+        try {
+            Storage.FileInfo info = FileServer.storage.stat(name);
+            if (info != null) save(name, new Entry(info.size, info.lastModified, digest));
+        } catch (IOException e) {
+            // The digest is computed again on first use
+            ServerLog.warn("Failed to save the digest of %s: %s", name, e.getMessage());
+        }
+    }
+
+    // Method to get a stored file's digest, computing it if it is missing or stale; null if there is no such file
+    static byte[] get(String name) throws IOException {
+        Storage.FileInfo info = FileServer.storage.stat(name);
+        if (info == null) return null;
+        Entry entry = entries.get(name);
+        if (entry == null) entry = load(name);
+        if (entry != null && entry.matches(info)) return entry.digest;
+
+        SeekableByteChannel source = FileServer.storage.openRead(name);
+        if (source == null) return null;
+        byte[] digest;
+        try (SeekableByteChannel channel = source) {
+            digest = Checksums.digest(channel);
+        }
+        ServerLog.debug("Computed the digest of %s", name);
+        save(name, new Entry(info.size, info.lastModified, digest));
+        return digest;
+    }
+
+    // Method to forget a file's digest, e.g. when the file is replaced
+    static void remove(String name) {
+        entries.remove(name);
+        digestFile(name).delete();
+    }
+
+    // Method to forget every digest after the stored files were cleared. The directory is renamed
+    // out of the way at once and deleted in the background, together with any a restart left behind.
+    static void clear() {
+        entries.clear();
+        File dir = FileServer.dataFile(DIGEST_DIR).getAbsoluteFile();
+        dir.renameTo(new File(dir.getPath() + ".cleared-" + System.currentTimeMillis()));
+        File[] cleared = dir.getParentFile().listFiles();
+        if (cleared == null) return;
+        for (File file : cleared) {
+            if (file.getName().startsWith(dir.getName() + ".cleared-")) ShardedStorage.sweep(file);
+        }
+    }
+
+    // Method to read a saved digest, or return null if there is none
+    private static Entry load(String name) {
+        File file = digestFile(name);
+        if (!file.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Entry entry = new Entry(in.readLong(), in.readLong(), Checksums.readDigest(in));
+            entries.put(name, entry);
+            return entry;
+        } catch (IOException e) {
+            ServerLog.warn("Ignoring unreadable digest of %s: %s", name, e.getMessage());
+            return null;
+        }
+    }
+
+    // Method to keep a digest in memory and write it out
+    private static void save(String name, Entry entry) throws IOException {
+        entries.put(name, entry);
+        File file = digestFile(name);
+        if (!file.getParentFile().exists()) file.getParentFile().mkdirs();
+        // Two threads may compute the same digest at once, so each writes a temporary file of its own
+        File tempFile = new File(file.getPath() + "." + UUID.randomUUID() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeLong(entry.size);
+            out.writeLong(entry.lastModified);
+            out.write(entry.digest);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Method to find the file holding a stored file's digest
+    private static File digestFile(String name) {
+        return new File(FileServer.dataFile(DIGEST_DIR), name + ".sha256");
+    }
+
+    // A digest and the version of the file it was computed for
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final byte[] digest;
+
+        Entry(long size, long lastModified, byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+
+        boolean matches(Storage.FileInfo info) {
+            return info.size == size && info.lastModified == lastModified;
+        }
+    }
+}
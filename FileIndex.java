@@ -0,0 +1,248 @@
+import java.io.*;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Storage decorator that keeps the name, size and modification time of every stored file in memory,
+// sorted by name. It is loaded from the backend once at startup and updated by every commit, replace
+// and clear that goes through it, so LIST and existence checks never touch the disk. Files changed
+// in a watched directory or any folder below it behind the server's back are picked up by a WatchService thread.
+// Every change to the index is published on its ChangeFeed.
+public class FileIndex implements Storage {
+    // Largest page LIST_PAGE returns, whatever the client asks for
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final Storage storage;
+    private final ConcurrentSkipListMap<String, FileInfo> files = new ConcurrentSkipListMap<String, FileInfo>();
+    private final ChangeFeed changeFeed = new ChangeFeed();
+
+    public FileIndex(Storage storage) throws IOException {
+        this.storage = storage;
+        reload();
+        ServerLog.info("Indexed %d stored files", files.size());
+    }
+
+    // One page of a listing: the files in name order and the cursor to continue from ("" at the end)
+    static class Page {
+        final List<FileInfo> files;
+        final String nextCursor;
+
+        Page(List<FileInfo> files, String nextCursor) {
+            this.files = files;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    ChangeFeed getChangeFeed() {
+        return changeFeed;
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return name != null && files.containsKey(name);
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<String>(files.keySet());
+    }
+
+    @Override
+    public FileInfo stat(String name) {
+        return name == null ? null : files.get(name);
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        return storage.openRead(name);
+    }
+
+    @Override
+    public void commit(String name, File tempFile) throws IOException {
+        storage.commit(name, tempFile);
+        refresh(name);
+    }
+
+    @Override
+    public void replace(String name, File tempFile) throws IOException {
+        storage.replace(name, tempFile);
+        refresh(name);
+    }
+
+    @Override
+    public int clear() throws IOException {
+        try {
+            return storage.clear();
+        } finally {
+            afterClear();
+        }
+    }
+
+    // Method to empty the index after a clear. Every entry is checked again rather than dropped,
+    // so a file committed during the clear stays listed and is announced again after CLEARED.
+    private synchronized void afterClear() throws IOException {
+        List<FileInfo> survivors = new ArrayList<FileInfo>();
+        for (String name : files.keySet()) {
+            FileInfo info = storage.stat(name);
+            if (info != null) survivors.add(info);
+        }
+        files.clear();
+        changeFeed.publish(ChangeFeed.Event.cleared());
+        for (FileInfo info : survivors) {
+            put(info);
+        }
+    }
+
+    // Method to list up to limit files whose names start with prefix, after the cursor name
+    Page page(String prefix, String cursor, int limit) {
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        NavigableMap<String, FileInfo> tail = cursor.compareTo(prefix) >= 0
+                ? files.tailMap(cursor, false)
+                : files.tailMap(prefix, true);
+        List<FileInfo> page = new ArrayList<FileInfo>(Math.min(limit, 64));
+        for (FileInfo info : tail.values()) {
+            // Names sharing the prefix are contiguous in name order
+            if (!info.name.startsWith(prefix)) break;
+            if (page.size() == limit) {
+                return new Page(page, page.get(page.size() - 1).name);
+            }
+            page.add(info);
+        }
+        return new Page(page, "");
+    }
+
+    // Method to bring one entry up to date with the backend
+    synchronized void refresh(String name) throws IOException {
+        FileInfo info = storage.stat(name);
+        if (info == null) {
+            remove(name);
+        } else {
+            put(info);
+        }
+    }
+
+    // Method to rebuild the whole index from the backend
+    synchronized void reload() throws IOException {
+        Set<String> stale = new HashSet<String>(files.keySet());
+        for (String name : storage.list()) {
+            FileInfo info = storage.stat(name);
+            if (info != null) {
+                put(info);
+                stale.remove(name);
+            }
+        }
+        for (String name : stale) {
+            remove(name);
+        }
+    }
+
+    // Method to add or update an entry and announce it if anything changed; callers hold this
+    private void put(FileInfo info) {
+        FileInfo previous = files.put(info.name, info);
+        if (previous == null || previous.size != info.size || previous.lastModified != info.lastModified) {
+            changeFeed.publish(ChangeFeed.Event.added(info));
+        }
+    }
+
+    // Method to drop an entry and announce it if it was there; callers hold this
+    private void remove(String name) {
+        if (files.remove(name) != null) {
+            changeFeed.publish(ChangeFeed.Event.removed(name));
+        }
+    }
+
+    // Method to follow changes made directly in the backend's directory and every folder below it, on
+    // a daemon thread. A WatchService only reports a directory's own entries, so each folder is
+    // registered, and folders that appear later are registered as they are created.
+    void watch(final File dir) throws IOException {
+        final Path root = dir.toPath();
+        final WatchService watcher = FileSystems.getDefault().newWatchService();
+        // The folder each key watches; only used by the watcher thread once it runs
+        final Map<WatchKey, Path> folders = new HashMap<WatchKey, Path>();
+        watchTree(watcher, root, root, folders, false);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    WatchKey key;
+                    try {
+                        key = watcher.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Path folder = folders.get(key);
+                    try {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW || folder == null) {
+                                // Events were lost; only a full rescan is safe
+                                reload();
+                                continue;
+                            }
+                            Path path = folder.resolve((Path) event.context());
+                            String name = DirectoryStorage.nameOf(root, path);
+                            if (!Storage.isValidName(name)) continue;
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                                    && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                                // A folder made or moved in: watch it and index what it already holds
+                                watchTree(watcher, root, path, folders, true);
+                            } else {
+                                refresh(name);
+                                // A deleted or moved-away folder takes every file below it along
+                                if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) refreshFolder(name);
+                            }
+                        }
+                    } catch (IOException e) {
+                        ServerLog.warn("Failed to update file index: %s", e.getMessage());
+                    }
+                    if (!key.reset()) {
+                        folders.remove(key);
+                        if (root.equals(folder)) {
+                            ServerLog.warn("Stopped watching %s", dir);
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "file-index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Method to register a folder and every folder below it with the watcher, optionally indexing the files found
+    private void watchTree(final WatchService watcher, final Path root, Path start, final Map<WatchKey, Path> folders,
+                           final boolean indexFiles) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path folder, BasicFileAttributes attributes) throws IOException {
+                WatchKey key = folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                folders.put(key, folder);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                String name = DirectoryStorage.nameOf(root, path);
+                if (indexFiles && attributes.isRegularFile() && Storage.isValidName(name)) refresh(name);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                // Deleted during the walk
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Method to bring every entry in a folder and the folders below it up to date with the backend
+    private synchronized void refreshFolder(String folder) throws IOException {
+        // '0' is the character after '/', so the range holds exactly the names starting with folder + "/"
+        NavigableMap<String, FileInfo> below = files.subMap(folder + "/", true, folder + "0", false);
+        for (String name : new ArrayList<String>(below.keySet())) {
+            refresh(name);
+        }
+    }
+}
@@ -1,72 +1,574 @@
 import java.io.*;
+import java.lang.reflect.Method;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.security.MessageDigest;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
 public class FileServer {
-    // Server port and storage directory
-    private static final int PORT = 42069;
-    private static final String STORAGE_DIR = "server_files";
-    // Thread pool to handle multiple clients concurrently
-    private static final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+    // Default server port and storage directory
+    static final int PORT = 42069;
+    static final String STORAGE_DIR = "server_files";
+    // Root of the content-addressed store used with --storage=dedup
+    static final String DEDUP_DIR = "server_store";
+    static final String SHARDED_DIR = "server_shards";
+    // Port this server listens on, set by --port so several servers can run on one machine
+    static int port = PORT;
+    // Directory the storage directories above are kept in, set by --dir; null is the working directory
+    static File dataDir;
+    // Backend holding committed files, behind the file index and the hot file cache when it is enabled
+    static Storage storage;
+    // In-memory index of the stored files that answers LIST, LIST_PAGE and existence checks
+    static FileIndex fileIndex;
+    // The content-addressed backend when running with --storage=dedup, otherwise null
+    static DedupStorage dedupStorage;
+    // Hot file cache, null when --cache-size=0
+    static FileCache fileCache;
+    // Defaults for the hot file cache: total megabytes and largest cached file in kilobytes
+    private static final int DEFAULT_CACHE_SIZE_MB = 64;
+    private static final int DEFAULT_CACHE_MAX_FILE_KB = 1024;
+    // Highest Deflate level the server compresses replies with, set by --max-compression (0 sends stored blocks)
+    static int maxCompressionLevel = 9;
+    // Most request streams one session may run at once, set by --max-streams
+    static int maxStreams = MuxConnection.DEFAULT_MAX_STREAMS;
+    // Thread pool to handle multiple clients concurrently; connections wait in its queue for a free thread
+    private static final int POOL_THREADS = 10;
+    // Unbounded pool for session readers, their request streams and connections handed over by the NIO and async engines
+    static ExecutorService sessionPool = Executors.newCachedThreadPool();
+    // True when connections run on the bounded pool, which transfers then leave for sessionPool
+    private static boolean transferLane;
+    // Default cap on concurrent connections when every connection gets its own virtual thread
+    private static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    // Most files, and largest file, one BATCH_UPLOAD may carry
+    static final int MAX_BATCH_FILES = 1000;
+    static final long MAX_BATCH_FILE_SIZE = 4 * 1024 * 1024;
+    // Most files one DOWNLOAD_MANY may send
+    static final int MAX_BUNDLE_FILES = 100000;
 
     public static void main(String[] args) {
+        // Per-request messages are only logged with --log-level=debug
+        ServerLog.setLevel(option(args, "log-level", "info"));
+        port = Integer.parseInt(option(args, "port", String.valueOf(PORT)));
+        String dir = option(args, "dir", null);
+        if (dir != null) {
+            dataDir = new File(dir);
+            if (!dataDir.isDirectory() && !dataDir.mkdirs()) {
+                ServerLog.error("Cannot create the data directory %s", dataDir);
+                return;
+            }
+        }
+        // Keep files as-is in the storage directory, deduplicated by content with --storage=dedup,
+        // or hash-sharded with a metadata log for millions of files with --storage=sharded
+        String storageType = option(args, "storage", "flat");
+        if ("dedup".equalsIgnoreCase(storageType)) {
+            dedupStorage = new DedupStorage(dataFile(DEDUP_DIR));
+            storage = dedupStorage;
+            ServerLog.info("Storing files deduplicated in %s", DEDUP_DIR);
+        } else if ("sharded".equalsIgnoreCase(storageType)) {
+            try {
+                storage = new ShardedStorage(dataFile(SHARDED_DIR));
+            } catch (IOException e) {
+                ServerLog.error("Failed to open the sharded storage in " + SHARDED_DIR, e);
+                return;
+            }
+        } else {
+            storage = new DirectoryStorage(dataFile(STORAGE_DIR));
+        }
+        boolean watchStorageDir = storage instanceof DirectoryStorage;
+        // Keep small hot files in memory, sized by --cache-size=MB and --cache-max-file=KB
+        long cacheSize = Long.parseLong(option(args, "cache-size", String.valueOf(DEFAULT_CACHE_SIZE_MB))) * 1024 * 1024;
+        int cacheMaxFile = Integer.parseInt(option(args, "cache-max-file", String.valueOf(DEFAULT_CACHE_MAX_FILE_KB))) * 1024;
+        if (cacheSize > 0) {
+            fileCache = new FileCache(storage, cacheSize, cacheMaxFile);
+            storage = fileCache;
+        }
+        // Index the stored files once; uploads, updates and clears keep it current from then on
+        try {
+            fileIndex = new FileIndex(storage);
+            if (watchStorageDir) fileIndex.watch(dataFile(STORAGE_DIR));
+        } catch (IOException e) {
+            ServerLog.error("Failed to index stored files", e);
+            return;
+        }
+        storage = fileIndex;
+        maxCompressionLevel = Integer.parseInt(option(args, "max-compression", String.valueOf(maxCompressionLevel)));
+        maxStreams = Integer.parseInt(option(args, "max-streams", String.valueOf(maxStreams)));
+        // Sync received files to disk never (default), before each commit, or every --fsync-interval ms
+        PartialUploads.setFsyncPolicy(option(args, "fsync", PartialUploads.FSYNC_NONE),
+                Long.parseLong(option(args, "fsync-interval", "1000")));
+        // Limit each connection to --connection-rate MB/s and all transfers to --total-rate MB/s (0 is
+        // unlimited), and run at most --max-transfers transfers at once
+        TrafficShaper.configure(Double.parseDouble(option(args, "connection-rate", "0")),
+                Double.parseDouble(option(args, "total-rate", "0")),
+                Integer.parseInt(option(args, "max-transfers", String.valueOf(TrafficShaper.DEFAULT_MAX_TRANSFERS))));
+        // --max-file-size=MB caps what an upload may declare; partial uploads untouched for --upload-expiry hours are deleted
+        PartialUploads.setLimits(
+                Long.parseLong(option(args, "max-file-size", String.valueOf(PartialUploads.DEFAULT_MAX_FILE_SIZE_MB))) * 1024 * 1024,
+                TimeUnit.HOURS.toMillis(Long.parseLong(option(args, "upload-expiry",
+                        String.valueOf(PartialUploads.DEFAULT_EXPIRY_HOURS)))));
+        // Pick up uploads a previous run left unfinished
+        PartialUploads.load();
+        // Publish metrics over JMX, and as plain text over HTTP with --metrics-port=N
+        ServerMetrics.registerMBeans();
+        int metricsPort = Integer.parseInt(option(args, "metrics-port", "0"));
+        if (metricsPort > 0) {
+            try {
+                ServerMetrics.serveHttp(metricsPort);
+            } catch (IOException e) {
+                ServerLog.error("Failed to start the metrics endpoint on port " + metricsPort, e);
+            }
+        }
+        // Pass every change on to the servers listed in --peers=host:port,...
+        String peers = option(args, "peers", "");
+        if (!peers.isEmpty()) {
+            Replicator.start(peers.split(","));
+        }
+
+        // Run the selector-based engine when requested with --engine=nio
+        String engine = option(args, "engine", "threads");
+        if ("nio".equalsIgnoreCase(engine)) {
+            int eventLoops = Integer.parseInt(option(args, "event-loops",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            try {
+                new NioFileServer(port, eventLoops).run();
+            } catch (IOException e) {
+                ServerLog.error("Server exception", e);
+            }
+            return;
+        }
+        // Run the completion-based engine when requested with --engine=async
+        if ("async".equalsIgnoreCase(engine)) {
+            int threads = Integer.parseInt(option(args, "event-loops",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            try {
+                new AsyncFileServer(port, threads).run();
+            } catch (IOException e) {
+                ServerLog.error("Server exception", e);
+            }
+            return;
+        }
+
+        // With --engine=virtual each connection runs on its own virtual thread, bounded by --max-connections
+        ExecutorService executor;
+        Semaphore connectionLimit = null;
+        if (!"virtual".equalsIgnoreCase(engine)) {
+            // --pool-queue=N bounds how many connections may wait; beyond that they are closed and counted
+            int queueCapacity = Integer.parseInt(option(args, "pool-queue", String.valueOf(Integer.MAX_VALUE)));
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(Math.max(1, queueCapacity)));
+            ServerMetrics.monitorPool(threadPool);
+            executor = threadPool;
+            transferLane = true;
+        } else {
+            executor = newVirtualThreadExecutor();
+            sessionPool = executor;
+            connectionLimit = new Semaphore(Integer.parseInt(
+                    option(args, "max-connections", String.valueOf(DEFAULT_MAX_CONNECTIONS))));
+        }
+
         // Start the server and listen for connections
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Server is running on port " + PORT);
-            // Ensure the storage directory exists
-            File storageDir = new File(STORAGE_DIR);
-            if (!storageDir.exists()) storageDir.mkdir();
+        // A blocking ServerSocketChannel gives every client socket a channel for zero-copy downloads
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            ServerLog.info("Server is running on port %d", port);
 
             while (true) {
+                // At the connection cap, stop accepting and let new clients wait in the backlog
+                if (connectionLimit != null) connectionLimit.acquireUninterruptibly();
                 // Accept client connections
-                Socket clientSocket = serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
+                Socket clientSocket = serverChannel.accept().socket();
+                ServerLog.debug("Client connected: %s", clientSocket.getInetAddress());
                 // Handle each client in a separate thread
-                threadPool.execute(new ClientHandler(clientSocket));
+                try {
+                    executor.execute(new ClientHandler(clientSocket, connectionLimit));
+                } catch (RejectedExecutionException e) {
+                    // Every pool thread is busy and the queue is full
+                    ServerMetrics.poolRejected();
+                    ServerLog.warn("Connection pool full, closing connection from %s", clientSocket.getInetAddress());
+                    if (connectionLimit != null) connectionLimit.release();
+                    ClientHandler.closeQuietly(clientSocket);
+                }
             }
         } catch (IOException e) {
-            System.err.println("Server exception:");
-            e.printStackTrace();
+            ServerLog.error("Server exception", e);
+        }
+    }
+
+    // Method to create a virtual-thread-per-task executor, reflectively so the server still builds before Java 21
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ServerLog.info("Running each connection on a virtual thread");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ServerLog.warn("Virtual threads need Java 21 or newer, using a cached thread pool instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    // Method to find a file or directory of the server's state under --dir
+    static File dataFile(String name) {
+        return new File(dataDir, name);
+    }
+
+    // Method to read a --name=value option from the command line
+    static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
         }
+        return defaultValue;
     }
 
     // Inner class to handle client interactions
     static class ClientHandler implements Runnable {
         private final Socket socket;
+        // Request streams; null means the socket's own streams
+        private final InputStream in;
+        private final OutputStream out;
+        // True when this handler serves one request stream of a SESSION connection
+        private final boolean sessionStream;
+        // True when the request stream belongs to a PEER_SESSION, over which another server replicates its changes
+        private boolean peer;
+        // True once COMPRESS has wrapped the request streams; file data must then go through them
+        private boolean compressed;
+        // Rate limit of the connection, shared by all requests of a session; null when unlimited
+        private final TokenBucket connectionBucket;
+        // Rate limits the current request's file data is subject to
+        private TrafficShaper.Throttle throttle = TrafficShaper.Throttle.NONE;
+        // True once the request moved to a thread of its own, which then owns the connection
+        private boolean detached;
+        // --max-connections permit the connection holds until it closes, or null when connections are not capped
+        private final Semaphore connectionPermit;
 
         public ClientHandler(Socket socket) {
+            this(socket, null);
+        }
+
+        ClientHandler(Socket socket, Semaphore connectionPermit) {
+            this(socket, null, null, false, TrafficShaper.newConnectionBucket(), connectionPermit);
+        }
+
+        ClientHandler(Socket socket, InputStream in, OutputStream out, boolean sessionStream) {
+            this(socket, in, out, sessionStream, TrafficShaper.newConnectionBucket(), null);
+        }
+
+        ClientHandler(Socket socket, InputStream in, OutputStream out, boolean sessionStream,
+                      TokenBucket connectionBucket, Semaphore connectionPermit) {
             this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.sessionStream = sessionStream;
+            this.connectionBucket = connectionBucket;
+            this.connectionPermit = connectionPermit;
         }
 
         @Override
         public void run() {
             // Handle client commands
-            try (DataInputStream dis = new DataInputStream(socket.getInputStream());
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
+            DataInputStream dis = null;
+            DataOutputStream dos = null;
+            boolean sessionStarted = false;
+            // Session streams belong to a connection that is already counted
+            if (!sessionStream) ServerMetrics.connectionOpened();
+            try {
+                dis = new DataInputStream(in != null ? in : ServerMetrics.countIn(socket.getInputStream()));
+                dos = new DataOutputStream(out != null ? out : ServerMetrics.countOut(socket.getOutputStream()));
 
                 String command = dis.readUTF();
-                System.out.println("Received command: " + command);
-
-                if ("UPLOAD".equalsIgnoreCase(command)) {
-                    // Handle file upload
-                    receiveFile(dis, dos);
-                } else if ("DOWNLOAD".equalsIgnoreCase(command)) {
-                    // Handle file download
-                    sendFile(dis, dos);
-                } else if ("LIST".equalsIgnoreCase(command)) {
-                    // Send list of files to the client
-                    sendFileList(dos);
-                } else if ("CLEAR".equalsIgnoreCase(command)) {
-                    // Clear all files from the server
-                    clearFiles(dos);
+                ServerLog.debug("Received command: %s", command);
+
+                if (("SESSION".equalsIgnoreCase(command) || "PEER_SESSION".equalsIgnoreCase(command)) && !sessionStream) {
+                    // Keep the connection open and serve many framed requests over it
+                    startSession(dis, dos, "PEER_SESSION".equalsIgnoreCase(command));
+                    sessionStarted = true;
+                } else if (peer) {
+                    // A peer's changes were made on another server already, so they are not passed on again
+                    Replicator.setServingPeer(true);
+                    try {
+                        dispatch(command, dis, dos);
+                    } finally {
+                        Replicator.setServingPeer(false);
+                    }
                 } else {
-                    // Unknown command received
-                    System.out.println("Unknown command: " + command);
-                    dos.writeUTF("ERROR: Unknown command");
+                    dispatch(command, dis, dos);
                 }
             } catch (IOException e) {
-                System.err.println("Exception in client handler:");
-                e.printStackTrace();
+                ServerLog.error("Exception in client handler", e);
+            } finally {
+                // A session's reader, or the thread a request moved to, owns the connection from here on
+                if (!sessionStarted && !detached) {
+                    closeQuietly(dos);
+                    closeQuietly(dis);
+                    closeQuietly(socket);
+                    if (!sessionStream) connectionClosed();
+                }
+            }
+        }
+
+        // Method to account for the end of the connection, on whichever thread ended up owning it:
+        // it stops being counted and hands back its --max-connections permit
+        private void connectionClosed() {
+            ServerMetrics.connectionClosed();
+            if (connectionPermit != null) connectionPermit.release();
+        }
+
+        // Method to run a single command, counting it and timing it. Small requests run right here;
+        // transfers of file data and long-lived requests go to the transfer lane.
+        private void dispatch(final String command, final DataInputStream dis, final DataOutputStream dos)
+                throws IOException {
+            ServerMetrics.CommandStats stats = ServerMetrics.command(command);
+            long start = System.nanoTime();
+            Request request;
+            boolean transfer;
+            if ("DOWNLOAD".equalsIgnoreCase(command)) {
+                // Whether a download is small depends on the file, so its name is read up front
+                final String fileName = dis.readUTF();
+                request = new Request() {
+                    @Override
+                    public void run() throws IOException {
+                        sendFile(fileName, dos);
+                    }
+                };
+                transfer = TrafficShaper.isLargeTransfer(storedSize(fileName, 0, Long.MAX_VALUE));
+            } else if ("DOWNLOAD_RANGE".equalsIgnoreCase(command)) {
+                final String fileName = dis.readUTF();
+                final long offset = dis.readLong();
+                final long length = dis.readLong();
+                request = new Request() {
+                    @Override
+                    public void run() throws IOException {
+                        sendFileRange(fileName, offset, length, dos);
+                    }
+                };
+                transfer = TrafficShaper.isLargeTransfer(storedSize(fileName, offset, length));
+            } else {
+                request = new Request() {
+                    @Override
+                    public void run() throws IOException {
+                        handle(command, dis, dos);
+                    }
+                };
+                transfer = TrafficShaper.isTransfer(command);
+            }
+
+            if (transfer || TrafficShaper.isLongLived(command)) {
+                if (transfer) throttle = TrafficShaper.transferThrottle(connectionBucket);
+                runOnTransferLane(request, transfer, stats, start, dis, dos);
+            } else {
+                throttle = TrafficShaper.smallThrottle(connectionBucket);
+                timed(request, stats, start);
+            }
+        }
+
+        // Method to find how many bytes a download of a stored file would send, or 0 if there is no such file
+        private long storedSize(String fileName, long offset, long length) throws IOException {
+            Storage.FileInfo info = Storage.isValidName(fileName) ? storage.stat(fileName) : null;
+            if (info == null || offset < 0 || offset > info.size) return 0;
+            return Math.min(length, info.size - offset);
+        }
+
+        // Method to run a transfer or long-lived request off the connection pool, so it never holds the
+        // threads that answer small requests. A transfer is queued until one of the --max-transfers permits
+        // is free and only then gets a thread. Session streams, and connections not on the bounded pool,
+        // already have a thread of their own and wait for the permit on it.
+        private void runOnTransferLane(final Request request, final boolean transfer,
+                                       final ServerMetrics.CommandStats stats, final long start,
+                                       final DataInputStream dis, final DataOutputStream dos) throws IOException {
+            if (sessionStream || !transferLane) {
+                runLimited(request, transfer, stats, start);
+                return;
+            }
+            detached = true;
+            Runnable work = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        timed(request, stats, start);
+                    } catch (IOException e) {
+                        ServerLog.error("Exception in client handler", e);
+                    } finally {
+                        closeQuietly(dos);
+                        closeQuietly(dis);
+                        closeQuietly(socket);
+                        connectionClosed();
+                    }
+                }
+            };
+            if (transfer) {
+                TrafficShaper.submitTransfer(sessionPool, work);
+            } else {
+                sessionPool.execute(work);
+            }
+        }
+
+        // Method to run a request, holding a transfer permit while it runs if it is a transfer
+        private void runLimited(Request request, boolean transfer, ServerMetrics.CommandStats stats, long start)
+                throws IOException {
+            if (!transfer) {
+                timed(request, stats, start);
+                return;
+            }
+            TrafficShaper.startTransfer();
+            try {
+                timed(request, stats, start);
+            } finally {
+                TrafficShaper.endTransfer();
+            }
+        }
+
+        // Method to run a request and record how long it took since start
+        private static void timed(Request request, ServerMetrics.CommandStats stats, long start) throws IOException {
+            boolean failed = true;
+            try {
+                request.run();
+                failed = false;
+            } finally {
+                stats.record(System.nanoTime() - start, failed);
+            }
+        }
+
+        // Work of one command, run on whichever lane the command belongs to
+        interface Request {
+            void run() throws IOException;
+        }
+
+        // Method to run the handler of a command
+        private void handle(String command, DataInputStream dis, DataOutputStream dos) throws IOException {
+            if ("UPLOAD".equalsIgnoreCase(command)) {
+                // Handle file upload
+                receiveFile(dis, dos);
+            } else if ("LIST".equalsIgnoreCase(command)) {
+                // Send list of files to the client
+                sendFileList(dos);
+            } else if ("LIST_PAGE".equalsIgnoreCase(command)) {
+                // Send one page of files with their sizes and modification times
+                sendFilePage(dis, dos);
+            } else if ("CLEAR".equalsIgnoreCase(command) && peer) {
+                // Apply a CLEAR made on a peer, unless this server was cleared later
+                clearPeerFiles(dis, dos);
+            } else if ("CLEAR".equalsIgnoreCase(command)) {
+                // Clear all files from the server
+                clearFiles(dos);
+            } else if ("CLEARED_AT".equalsIgnoreCase(command)) {
+                // Report when the files were last cleared, so peers can tell whether a CLEAR passed them by
+                dos.writeUTF("OK");
+                dos.writeLong(Replicator.clearEpoch());
+            } else if ("SUBSCRIBE".equalsIgnoreCase(command)) {
+                // Push every change to the stored files until the client goes away
+                fileIndex.getChangeFeed().serve(dos);
+            } else if ("UPLOAD_BEGIN".equalsIgnoreCase(command)) {
+                // Start an upload that arrives as separate byte ranges
+                beginRangedUpload(dis, dos);
+            } else if ("UPLOAD_RESUME".equalsIgnoreCase(command)) {
+                // Continue an interrupted upload, or start a new ranged one
+                resumeUpload(dis, dos);
+            } else if ("UPLOAD_RANGE".equalsIgnoreCase(command)) {
+                // Write one byte range of a ranged upload
+                receiveFileRange(dis, dos);
+            } else if ("UPLOAD_COMMIT".equalsIgnoreCase(command)) {
+                // Publish a fully received ranged upload
+                commitRangedUpload(dis, dos);
+            } else if ("BATCH_UPLOAD".equalsIgnoreCase(command)) {
+                // Receive many small files in one request
+                receiveBatch(throttled(dis), dos);
+            } else if ("UPLOAD_DEDUP".equalsIgnoreCase(command)) {
+                // Receive a file as chunk hashes plus only the chunks the server lacks
+                receiveDedupFile(throttled(dis), dos);
+            } else if ("SYNC".equalsIgnoreCase(command)) {
+                // Update an existing file from a delta against its current version
+                syncFile(throttled(dis), dos);
+            } else if ("DOWNLOAD_MANY".equalsIgnoreCase(command)) {
+                // Send many files as one tar archive, built while it is sent
+                sendBundle(dis, dos);
+            } else if ("CACHE_STATS".equalsIgnoreCase(command)) {
+                // Report how well the hot file cache is doing
+                sendCacheStats(dos);
+            } else if ("COMPRESS".equalsIgnoreCase(command) && !compressed) {
+                // Run the next command over Deflate streams
+                runCompressed(dis, dos);
+            } else {
+                // Unknown command received
+                ServerLog.debug("Unknown command: %s", command);
+                dos.writeUTF("ERROR: Unknown command");
+            }
+        }
+
+        // Method to turn the connection into a session: every request stream gets its own handler
+        private void startSession(DataInputStream dis, DataOutputStream dos, final boolean peer) throws IOException {
+            dos.writeUTF("OK");
+            Closeable transport = socket != null ? socket : dos;
+            final MuxConnection connection = new MuxConnection(dis, dos, transport, new MuxConnection.StreamAcceptor() {
+                @Override
+                public void accept(MuxStream stream) {
+                    ClientHandler handler = new ClientHandler(null, stream.getInputStream(), stream.getOutputStream(), true,
+                            connectionBucket, null);
+                    handler.peer = peer;
+                    sessionPool.execute(handler);
+                }
+            }, maxStreams);
+            // Read frames on the session pool so a long-lived session never holds a bounded pool thread
+            sessionPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    IOException failure = connection.run();
+                    if (failure != null) {
+                        ServerLog.warn("Session connection failed: %s", failure.getMessage());
+                    }
+                    connectionClosed();
+                    ServerLog.debug("Session closed");
+                }
+            });
+        }
+
+        // Method to read the client's compression level and run its command over Deflate streams.
+        // Replies use the client's level, capped by --max-compression.
+        private void runCompressed(DataInputStream dis, DataOutputStream dos) throws IOException {
+            int level = Math.min(dis.readByte(), maxCompressionLevel);
+            Compression.Streams streams = new Compression.Streams(dis, dos, level);
+            compressed = true;
+            DataInputStream compressedIn = new DataInputStream(streams.in);
+            DataOutputStream compressedOut = new DataOutputStream(streams.out);
+            String command = compressedIn.readUTF();
+            ServerLog.debug("Received compressed command: %s", command);
+            dispatch(command, compressedIn, compressedOut);
+            // Push out the rest of the compressed reply, unless the command moved to the transfer lane
+            if (!detached) compressedOut.close();
+        }
+
+        // Method to pick the socket file data may bypass the streams on, or null when it must not
+        private Socket zeroCopySocket() {
+            return compressed ? null : socket;
+        }
+
+        // Method to pick the channel to read file data from: the socket's own channel when nothing
+        // sits between it and the request stream, otherwise the stream itself
+        private ReadableByteChannel receiveChannel(DataInputStream dis) {
+            SocketChannel channel = socket != null ? socket.getChannel() : null;
+            if (in == null && !compressed && channel != null && channel.isBlocking()) {
+                return throttle.wrap(ServerMetrics.countIn(channel));
+            }
+            return throttle.wrap(Channels.newChannel(dis));
+        }
+
+        // Method to put the request's rate limits on the file data read from a request stream
+        private DataInputStream throttled(DataInputStream dis) {
+            return throttle.isLimited() ? new DataInputStream(throttle.wrap(dis)) : dis;
+        }
+
+        // Method to close a stream or socket, ignoring errors
+        static void closeQuietly(Closeable closeable) {
+            if (closeable == null) return;
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing left to do with a connection that fails to close
             }
         }
 
@@ -74,94 +576,554 @@ public class FileServer {
         private void receiveFile(DataInputStream dis, DataOutputStream dos) throws IOException {
             String fileName = dis.readUTF();
             long fileSize = dis.readLong();
-            File outputFile = new File(STORAGE_DIR, fileName);
+            String error = PartialUploads.sizeError(fileSize);
+            if (error == null) error = uploadError(fileName);
 
-            if (outputFile.exists()) {
-                // File already exists on the server
-                dos.writeUTF("ERROR: File already exists on the server.");
-                System.out.println("File already exists: " + fileName);
+            if (error != null) {
+                // File already exists on the server, the name is not allowed or the size is too large
+                dos.writeUTF(error);
+                ServerLog.debug("Upload refused: %s (%s)", fileName, error);
                 return;
-            } else {
+            }
+            // Each UPLOAD gets a partial upload of its own, published only once every byte has arrived
+            PartialUploads.PartialUpload upload;
+            try {
+                upload = PartialUploads.begin(fileName, fileSize);
+            } catch (IOException e) {
+                // Another client is uploading the same name
+                dos.writeUTF("ERROR: " + e.getMessage());
+                ServerLog.debug("Upload refused: %s (%s)", fileName, e.getMessage());
+                return;
+            }
+            dos.writeUTF("OK");
+
+            try {
+                upload.receive(receiveChannel(dis), 0, fileSize);
+                PartialUploads.commit(upload.getId());
+                ServerLog.debug("File received: %s", fileName);
+            } catch (IOException e) {
+                // Nothing can resume a plain UPLOAD, so what arrived is dropped
+                PartialUploads.abort(upload);
+                ServerLog.error("Error receiving file: " + fileName, e);
+            }
+        }
+
+        // Method to receive many small files in one request. The client lists every name and size,
+        // the server answers OK or an error for each, the client sends the accepted files back to back,
+        // and the server answers again for each accepted file once it is stored.
+        private void receiveBatch(DataInputStream dis, DataOutputStream dos) throws IOException {
+            int count = dis.readInt();
+            if (count < 0 || count > MAX_BATCH_FILES) {
+                dos.writeUTF("ERROR: Invalid batch size");
+                return;
+            }
+            String[] names = new String[count];
+            long[] sizes = new long[count];
+            String[] errors = new String[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = dis.readUTF();
+                sizes[i] = dis.readLong();
+                if (sizes[i] < 0 || sizes[i] > MAX_BATCH_FILE_SIZE) {
+                    errors[i] = "ERROR: Invalid file size";
+                } else {
+                    errors[i] = uploadError(names[i]);
+                }
+            }
+            dos.writeUTF("OK");
+            for (String error : errors) {
+                dos.writeUTF(error != null ? error : "OK");
+            }
+            dos.flush();
+
+            File partialDir = dataFile(PartialUploads.PARTIAL_DIR);
+            if (!partialDir.exists()) partialDir.mkdirs();
+            byte[] buffer = new byte[64 * 1024];
+            int stored = 0;
+            for (int i = 0; i < count; i++) {
+                if (errors[i] != null) continue;
+                File tempFile = new File(partialDir, UUID.randomUUID() + ".batch");
+                try {
+                    // Each file is followed by its CRC32C; its SHA-256 is kept for later downloads
+                    Checksum crc = Checksums.newCrc();
+                    MessageDigest digest = Checksums.newDigest();
+                    try (FileOutputStream out = new FileOutputStream(tempFile)) {
+                        long remaining = sizes[i];
+                        while (remaining > 0) {
+                            int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (bytesRead < 0) {
+                                throw new EOFException("Batch ended inside " + names[i]);
+                            }
+                            crc.update(buffer, 0, bytesRead);
+                            digest.update(buffer, 0, bytesRead);
+                            long writeStart = System.nanoTime();
+                            out.write(buffer, 0, bytesRead);
+                            ServerMetrics.recordDiskWrite(System.nanoTime() - writeStart);
+                            remaining -= bytesRead;
+                        }
+                        PartialUploads.syncOnClose(out.getChannel());
+                    }
+                    if (dis.readInt() != (int) crc.getValue()) {
+                        tempFile.delete();
+                        dos.writeUTF(Checksums.MISMATCH);
+                        ServerLog.warn("Batch file %s does not match its checksum", names[i]);
+                        continue;
+                    }
+                    storage.commit(names[i], tempFile);
+                    FileDigests.put(names[i], digest.digest());
+                    dos.writeUTF("OK");
+                    stored++;
+                } catch (FileAlreadyExistsException e) {
+                    // Another client committed the name since the check
+                    tempFile.delete();
+                    dos.writeUTF("ERROR: File already exists on the server.");
+                } catch (IOException e) {
+                    tempFile.delete();
+                    throw e;
+                }
+            }
+            ServerLog.debug("Batch received: %d of %d files stored", stored, count);
+        }
+
+        // Method to send a file to the client
+        private void sendFile(String fileName, DataOutputStream dos) throws IOException {
+            SeekableByteChannel source = storage.openRead(fileName);
+            if (source == null) {
+                // File not found on the server
+                dos.writeUTF("ERROR: File not found");
+                ServerLog.debug("File not found: %s", fileName);
+                return;
+            }
+
+            // Send file data to the client straight from the storage channel
+            try (SeekableByteChannel channel = source) {
+                dos.writeUTF("OK");
+                long fileSize = channel.size();
+                dos.writeLong(fileSize);
+                TransferEngine.sendFile(channel, 0, fileSize, zeroCopySocket(), dos, throttle);
+            }
+            ServerLog.debug("File sent: %s", fileName);
+        }
+
+        // Method to send one byte range of a file to the client
+        private void sendFileRange(String fileName, long offset, long length, DataOutputStream dos) throws IOException {
+            SeekableByteChannel source = storage.openRead(fileName);
+            if (source == null) {
+                // File not found on the server
+                dos.writeUTF("ERROR: File not found");
+                ServerLog.debug("File not found: %s", fileName);
+                return;
+            }
+
+            try (SeekableByteChannel channel = source) {
+                long fileSize = channel.size();
+                if (offset < 0 || length < 0 || offset > fileSize) {
+                    dos.writeUTF("ERROR: Invalid range");
+                    return;
+                }
+                byte[] digest = FileDigests.get(fileName);
+                if (digest == null) {
+                    // Deleted since it was opened
+                    dos.writeUTF("ERROR: File not found");
+                    return;
+                }
+                long count = Math.min(length, fileSize - offset);
                 dos.writeUTF("OK");
+                dos.writeLong(fileSize);
+                dos.writeLong(count);
+                dos.write(digest);
+                // The range's CRC32C is computed on its way out, so it cannot take the zero-copy path
+                CheckedOutputStream checked = new CheckedOutputStream(dos, Checksums.newCrc());
+                TransferEngine.sendFile(channel, offset, count, null, checked, throttle);
+                dos.writeInt((int) checked.getChecksum().getValue());
+            }
+            ServerLog.debug("Range sent: %s [%d, +%d)", fileName, offset, length);
+        }
+
+        // Method to send many files as one tar archive, written file by file as it goes out, so nothing
+        // is staged on disk. The request names the files, or gives a prefix and no names for every file
+        // whose name starts with it. The reply is OK, the file count and total size, then the archive;
+        // names that do not exist, or files deleted before their turn, are left out.
+        private void sendBundle(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String prefix = dis.readUTF();
+            int count = dis.readInt();
+            if (count < 0 || count > MAX_BUNDLE_FILES) {
+                dos.writeUTF("ERROR: Too many files");
+                return;
+            }
+            List<Storage.FileInfo> files = new ArrayList<Storage.FileInfo>();
+            if (count == 0) {
+                String cursor = "";
+                do {
+                    FileIndex.Page page = fileIndex.page(prefix, cursor, FileIndex.MAX_PAGE_SIZE);
+                    files.addAll(page.files);
+                    cursor = page.nextCursor;
+                } while (!cursor.isEmpty() && files.size() <= MAX_BUNDLE_FILES);
+            } else {
+                Set<String> names = new LinkedHashSet<String>();
+                for (int i = 0; i < count; i++) {
+                    names.add(dis.readUTF());
+                }
+                for (String name : names) {
+                    Storage.FileInfo info = Storage.isValidName(name) ? storage.stat(name) : null;
+                    if (info != null) files.add(info);
+                }
+            }
+            if (files.size() > MAX_BUNDLE_FILES) {
+                dos.writeUTF("ERROR: Too many files");
+                return;
+            }
+            long totalSize = 0;
+            for (Storage.FileInfo info : files) {
+                totalSize += info.size;
+            }
+            dos.writeUTF("OK");
+            dos.writeInt(files.size());
+            dos.writeLong(totalSize);
+
+            // Headers and small files collect in the buffer; sendFile flushes it before a large file
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(dos, TransferEngine.BUFFER_SIZE));
+            int sent = 0;
+            for (Storage.FileInfo info : files) {
+                if (sendBundleEntry(info.name, out)) sent++;
             }
+            TarStream.writeEnd(out);
+            out.flush();
+            ServerLog.debug("Bundle sent: %d of %d files", sent, files.size());
+        }
 
-            // Receive file data from the client
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                long totalRead = 0;
-                while (totalRead < fileSize && (bytesRead = dis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, bytesRead);
-                    totalRead += bytesRead;
+        // Method to add one file to a bundle; false if it is gone
+        private boolean sendBundleEntry(String fileName, DataOutputStream out) throws IOException {
+            SeekableByteChannel source = storage.openRead(fileName);
+            if (source == null) return false;
+            try (SeekableByteChannel channel = source) {
+                byte[] digest = FileDigests.get(fileName);
+                Storage.FileInfo info = storage.stat(fileName);
+                if (digest == null || info == null) return false;
+                long fileSize = channel.size();
+                TarStream.writeHeader(out, fileName, fileSize, info.lastModified, digest);
+                if (fileSize < TransferEngine.BUFFER_SIZE) {
+                    // Not worth a flush and a system call of its own
+                    WritableByteChannel target = Channels.newChannel(out);
+                    long position = 0;
+                    while (position < fileSize) {
+                        long slice = throttle.take(fileSize - position);
+                        position += TransferEngine.transferBuffered(channel, position, slice, target);
+                    }
+                } else {
+                    TransferEngine.sendFile(channel, 0, fileSize, zeroCopySocket(), out, throttle);
                 }
-                System.out.println("File received: " + fileName);
+                TarStream.writePadding(out, fileSize);
+            }
+            return true;
+        }
+
+        // Method to start a ranged upload and give the client its upload id
+        private void beginRangedUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            String error = PartialUploads.sizeError(fileSize);
+            if (error != null) {
+                dos.writeUTF(error);
+                return;
+            }
+            error = uploadError(fileName);
+            if (error != null) {
+                // File already exists on the server, or the name is not allowed
+                dos.writeUTF(error);
+                ServerLog.debug("Upload refused: %s (%s)", fileName, error);
+                return;
+            }
+            PartialUploads.PartialUpload upload;
+            try {
+                upload = PartialUploads.begin(fileName, fileSize);
             } catch (IOException e) {
-                System.err.println("Error receiving file: " + fileName);
-                e.printStackTrace();
+                dos.writeUTF("ERROR: " + e.getMessage());
+                return;
             }
+            dos.writeUTF("OK");
+            dos.writeUTF(upload.getId());
+            ServerLog.debug("Ranged upload started: %s (%s)", fileName, upload.getId());
         }
 
-        // Method to send a file to the client
-        private void sendFile(DataInputStream dis, DataOutputStream dos) throws IOException {
+        // Method to find the partial upload for a name, size and version and report what has already arrived
+        private void resumeUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
             String fileName = dis.readUTF();
-            File file = new File(STORAGE_DIR, fileName);
-            if (!file.exists()) {
+            long fileSize = dis.readLong();
+            long version = dis.readLong();
+            String error = PartialUploads.sizeError(fileSize);
+            if (error != null) {
+                dos.writeUTF(error);
+                return;
+            }
+            error = uploadError(fileName);
+            if (error != null) {
+                // File already exists on the server, or the name is not allowed
+                dos.writeUTF(error);
+                ServerLog.debug("Upload refused: %s (%s)", fileName, error);
+                return;
+            }
+            PartialUploads.PartialUpload upload;
+            try {
+                upload = PartialUploads.resume(fileName, fileSize, version);
+            } catch (IOException e) {
+                dos.writeUTF("ERROR: " + e.getMessage());
+                return;
+            }
+            RangeSet received = upload.getReceived();
+            dos.writeUTF("OK");
+            dos.writeUTF(upload.getId());
+            dos.writeLong(received.contiguousLength());
+            received.write(dos);
+            ServerLog.debug("Upload resumed: %s at %d of %d bytes", fileName, received.contiguousLength(), fileSize);
+        }
+
+        // Method to receive one byte range and write it at its offset
+        private void receiveFileRange(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String uploadId = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            PartialUploads.PartialUpload upload = PartialUploads.get(uploadId);
+            if (upload == null) {
+                dos.writeUTF("ERROR: Unknown upload");
+                return;
+            }
+            if (offset < 0 || length < 0 || offset + length > upload.getFileSize()) {
+                dos.writeUTF("ERROR: Invalid range");
+                return;
+            }
+            dos.writeUTF("OK");
+            int crc = upload.receive(receiveChannel(dis), offset, length);
+            if (dis.readInt() != crc) {
+                // Forget the range so the client can send it again
+                upload.discard(offset, length);
+                dos.writeUTF(Checksums.MISMATCH);
+                ServerLog.warn("Range [%d, +%d) of upload %s does not match its checksum", offset, length, uploadId);
+                return;
+            }
+            // Confirm the range is on disk
+            dos.writeUTF("OK");
+        }
+
+        // Method to publish a ranged upload once every byte has arrived and its SHA-256 matches the client's
+        private void commitRangedUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String uploadId = dis.readUTF();
+            byte[] digest = Checksums.readDigest(dis);
+            try {
+                // A peer's upload keeps the origin's modification time, which it sent as the version
+                PartialUploads.commit(uploadId, digest, peer);
+            } catch (IOException e) {
+                dos.writeUTF("ERROR: " + e.getMessage());
+                ServerLog.warn("Commit failed for upload %s: %s", uploadId, e.getMessage());
+                return;
+            }
+            dos.writeUTF("OK");
+            ServerLog.debug("Ranged upload committed: %s", uploadId);
+        }
+
+        // Method to receive a deduplicated upload. The client announces the file, then lists its
+        // content-defined chunks by hash; the server answers with the chunks it does not store yet
+        // and the client sends only those, so repeated data never crosses the network twice.
+        private void receiveDedupFile(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            DedupStorage store = dedupStorage;
+            if (store == null) {
+                dos.writeUTF("ERROR: Deduplication not supported");
+                return;
+            }
+            String error = PartialUploads.sizeError(fileSize);
+            if (error != null) {
+                dos.writeUTF(error);
+                return;
+            }
+            error = uploadError(fileName);
+            if (error != null) {
+                // File already exists on the server, or the name is not allowed
+                dos.writeUTF(error);
+                ServerLog.debug("Upload refused: %s (%s)", fileName, error);
+                return;
+            }
+            dos.writeUTF("OK");
+
+            int count = dis.readInt();
+            if (count < 0 || (long) count * ContentChunker.MIN_SIZE > fileSize + ContentChunker.MIN_SIZE) {
+                dos.writeUTF("ERROR: Invalid chunk count");
+                return;
+            }
+            // The count comes from the client, so it only sizes the list up to a point
+            List<DedupStorage.ChunkRef> chunks = new ArrayList<DedupStorage.ChunkRef>(Math.min(count, 4096));
+            List<Integer> missing = new ArrayList<Integer>();
+            Set<String> requested = new HashSet<String>();
+            for (int i = 0; i < count; i++) {
+                DedupStorage.ChunkRef chunk = DedupStorage.ChunkRef.read(dis);
+                chunks.add(chunk);
+                // A chunk repeated inside the file is only sent once
+                if (!store.hasChunk(chunk.hash) && requested.add(ContentChunker.toHex(chunk.hash))) {
+                    missing.add(i);
+                }
+            }
+            dos.writeUTF("OK");
+            dos.writeInt(missing.size());
+            for (int index : missing) {
+                dos.writeInt(index);
+            }
+            dos.flush();
+
+            long received = 0;
+            for (int index : missing) {
+                DedupStorage.ChunkRef chunk = chunks.get(index);
+                store.storeChunk(chunk.hash, dis, chunk.length);
+                received += chunk.length;
+            }
+            // Most chunks are never sent, so the digest is left to FileDigests.get to compute on first use
+            try {
+                store.commitManifest(fileName, fileSize, chunks, false, System.currentTimeMillis());
+                fileIndex.refresh(fileName);
+            } catch (FileAlreadyExistsException e) {
+                dos.writeUTF("ERROR: File already exists on the server.");
+                return;
+            } catch (IOException e) {
+                dos.writeUTF("ERROR: " + e.getMessage());
+                ServerLog.warn("Deduplicated upload failed for %s: %s", fileName, e.getMessage());
+                return;
+            }
+            dos.writeUTF("OK");
+            ServerLog.debug("File received: %s (%d of %d bytes sent, the rest deduplicated)", fileName, received, fileSize);
+        }
+
+        // Method to update a stored file with the blocks that changed. The server sends block checksums
+        // of its copy, the client answers with block references and literal bytes, and the rebuilt
+        // file replaces the old one only if it matches the client's SHA-256. A peer also sends the
+        // origin's modification time, which the new version keeps.
+        private void syncFile(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long newSize = dis.readLong();
+            long lastModified = peer ? dis.readLong() : 0;
+            String error = PartialUploads.sizeError(newSize);
+            if (error != null) {
+                dos.writeUTF(error);
+                return;
+            }
+            SeekableByteChannel source = storage.openRead(fileName);
+            if (source == null) {
                 // File not found on the server
                 dos.writeUTF("ERROR: File not found");
-                System.out.println("File not found: " + fileName);
+                ServerLog.debug("File not found: %s", fileName);
                 return;
             }
-            dos.writeUTF("OK");
-            dos.writeLong(file.length());
 
-            // Send file data to the client
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) > 0) {
-                    dos.write(buffer, 0, bytesRead);
+            File partialDir = dataFile(PartialUploads.PARTIAL_DIR);
+            if (!partialDir.exists()) partialDir.mkdirs();
+            File tempFile = new File(partialDir, UUID.randomUUID() + ".sync");
+            DeltaSync.Rebuilt rebuilt;
+            try (SeekableByteChannel old = source) {
+                long oldSize = old.size();
+                int blockSize = DeltaSync.blockSize(oldSize);
+                dos.writeUTF("OK");
+                DeltaSync.writeSignatures(old, oldSize, blockSize, dos);
+                dos.flush();
+                try (FileOutputStream file = new FileOutputStream(tempFile)) {
+                    OutputStream out = new BufferedOutputStream(file);
+                    rebuilt = DeltaSync.applyDelta(dis, old, oldSize, blockSize, newSize, out);
+                    out.flush();
+                    PartialUploads.syncOnClose(file.getChannel());
                 }
+                if (peer) tempFile.setLastModified(lastModified);
+                storage.replace(fileName, tempFile);
+                FileDigests.put(fileName, rebuilt.digest);
+            } catch (IOException e) {
+                tempFile.delete();
+                ServerLog.warn("Update failed for %s: %s", fileName, e.getMessage());
+                dos.writeUTF("ERROR: " + e.getMessage());
+                return;
             }
-            System.out.println("File sent: " + fileName);
+            dos.writeUTF("OK");
+            ServerLog.debug("File updated: %s (%d of %d bytes sent, the rest copied from the old version)",
+                    fileName, rebuilt.literalBytes, newSize);
+        }
+
+        // Method to decide whether an upload may use a name; returns the error to reply, or null
+        static String uploadError(String fileName) throws IOException {
+            if (!Storage.isValidName(fileName)) {
+                return "ERROR: Invalid file name";
+            }
+            if (storage.exists(fileName)) {
+                return "ERROR: File already exists on the server.";
+            }
+            return null;
+        }
+
+        // Method to send the hot file cache's hit, miss and eviction counts and its current size
+        static void sendCacheStats(DataOutputStream dos) throws IOException {
+            FileCache cache = fileCache;
+            if (cache == null) {
+                dos.writeUTF("ERROR: Cache disabled");
+                return;
+            }
+            dos.writeUTF("OK");
+            dos.writeLong(cache.getHits());
+            dos.writeLong(cache.getMisses());
+            dos.writeLong(cache.getEvictions());
+            dos.writeInt(cache.getEntryCount());
+            dos.writeLong(cache.getCachedBytes());
         }
 
         // Method to send the list of files to the client
-        private void sendFileList(DataOutputStream dos) throws IOException {
-            File storageDir = new File(STORAGE_DIR);
-            File[] files = storageDir.listFiles();
-            if (files == null || files.length == 0) {
+        static void sendFileList(DataOutputStream dos) throws IOException {
+            List<String> names = storage.list();
+            if (names.isEmpty()) {
                 dos.writeInt(0);
-                System.out.println("No files found in storage directory.");
+                ServerLog.debug("No files found in storage directory.");
                 return;
             }
-            dos.writeInt(files.length);
-            System.out.println("Sending file list to client. File count: " + files.length);
-            for (File file : files) {
-                dos.writeUTF(file.getName());
-                System.out.println("Sent file name: " + file.getName());
+            dos.writeInt(names.size());
+            ServerLog.debug("Sending file list to client. File count: %d", names.size());
+            for (String name : names) {
+                dos.writeUTF(name);
             }
         }
 
-        // Method to clear all files from the server's storage directory
-        private void clearFiles(DataOutputStream dos) throws IOException {
-            File storageDir = new File(STORAGE_DIR);
-            File[] files = storageDir.listFiles();
-            int deletedFiles = 0;
-
-            if (files != null) {
-                for (File file : files) {
-                    if (file.delete()) {
-                        deletedFiles++;
-                        System.out.println("Deleted file: " + file.getName());
-                    } else {
-                        System.err.println("Failed to delete file: " + file.getName());
-                    }
-                }
+        // Method to send the files whose names start with a prefix, in name order after a cursor.
+        // The reply lists each file's name, size and modification time, then the cursor for the
+        // next page, which is empty once the listing is complete.
+        static void sendFilePage(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String prefix = dis.readUTF();
+            String cursor = dis.readUTF();
+            int limit = dis.readInt();
+            FileIndex.Page page = fileIndex.page(prefix, cursor, limit);
+            dos.writeUTF("OK");
+            dos.writeInt(page.files.size());
+            for (Storage.FileInfo info : page.files) {
+                dos.writeUTF(info.name);
+                dos.writeLong(info.size);
+                dos.writeLong(info.lastModified);
             }
+            dos.writeUTF(page.nextCursor);
+        }
 
+        // Method to clear all files from the server's storage
+        static void clearFiles(DataOutputStream dos) throws IOException {
+            // Files made before this moment are gone on every server once the peers catch up
+            Replicator.recordClear(System.currentTimeMillis());
+            int deletedFiles = storage.clear();
+            FileDigests.clear();
+
+            dos.writeUTF("OK");
+            dos.writeInt(deletedFiles);
+            ServerLog.info("Cleared %d files from the server.", deletedFiles);
+        }
+
+        // Method to apply a CLEAR a peer made at the time it sends; one older than this server's last CLEAR changes nothing
+        private void clearPeerFiles(DataInputStream dis, DataOutputStream dos) throws IOException {
+            long epoch = dis.readLong();
+            int deletedFiles = 0;
+            if (Replicator.recordClear(epoch)) {
+                deletedFiles = storage.clear();
+                FileDigests.clear();
+            }
             dos.writeUTF("OK");
             dos.writeInt(deletedFiles);
-            System.out.println("Cleared " + deletedFiles + " files from the server.");
+            ServerLog.info("Cleared %d files for a peer.", deletedFiles);
         }
     }
 }
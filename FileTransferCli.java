@@ -0,0 +1,269 @@
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Command-line front end to TransferClient, for scripting transfers without a display:
+//   java FileTransferCli [options] upload <file or directory>...
+//   java FileTransferCli [options] download <name>...
+//   java FileTransferCli [options] --bundle [--prefix=<prefix>] download [name]...
+//   java FileTransferCli [options] list [prefix]
+//   java FileTransferCli [options] sync <file>...
+// Exits with status 1 if any file failed.
+public class FileTransferCli {
+    private static final String USAGE = "Usage: java FileTransferCli [options] <command> [arguments]\n"
+            + "Commands:\n"
+            + "  upload <file or directory>...  Upload files, and directories with everything in them\n"
+            + "  download <name>...             Download files into --dir\n"
+            + "  list [prefix]                  List the files whose names start with prefix\n"
+            + "  sync <file>...                 Update files the server already has, sending only what changed\n"
+            + "Options:\n"
+            + "  --host=<host> --port=<port>    Server to use (localhost:42069)\n"
+            + "  --replicas=<host:port>,...     Peers of the server that downloads and listings may use too\n"
+            + "  --jobs=<n>                     Files transferred at once (4)\n"
+            + "  --parallelism=<n>              Connections per large file (4)\n"
+            + "  --chunk-size=<bytes>           Range size of large files (8388608)\n"
+            + "  --compression=<0-9>            Deflate level, 0 for none (1)\n"
+            + "  --dir=<directory>              Where downloads are saved (.)\n"
+            + "  --update                       Let upload sync files that already exist instead of failing\n"
+            + "  --bundle                       Let download fetch all its files as one archive stream\n"
+            + "  --prefix=<prefix>              With --bundle and no names, download every file whose name starts with prefix";
+
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) arguments.add(arg);
+        }
+        if (arguments.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        // The transfer classes read their tunables once, so set them before any of them is used
+        setProperty(args, "parallelism", "transfer.parallelism");
+        setProperty(args, "chunk-size", "transfer.chunkSize");
+        setProperty(args, "compression", "transfer.compression");
+        setProperty(args, "jobs", "transfer.uploads");
+
+        String host = option(args, "host", TransferClient.DEFAULT_HOST);
+        int port = Integer.parseInt(option(args, "port", String.valueOf(TransferClient.DEFAULT_PORT)));
+        int jobs = Integer.parseInt(option(args, "jobs", "4"));
+        int connections = Math.max(4, Integer.getInteger("transfer.parallelism", 4));
+        List<String> replicas = new ArrayList<String>();
+        for (String replica : option(args, "replicas", "").split(",")) {
+            if (!replica.trim().isEmpty()) replicas.add(replica.trim());
+        }
+        String command = arguments.remove(0);
+
+        int failures;
+        try (TransferClient client = new TransferClient(host, port, replicas, connections, jobs)) {
+            if ("upload".equals(command)) {
+                failures = upload(client, arguments, jobs, hasFlag(args, "update"));
+            } else if ("download".equals(command) && hasFlag(args, "bundle")) {
+                failures = downloadBundle(client, arguments, option(args, "prefix", ""), new File(option(args, "dir", ".")));
+            } else if ("download".equals(command)) {
+                failures = download(client, arguments, new File(option(args, "dir", ".")));
+            } else if ("list".equals(command)) {
+                failures = list(client, arguments.isEmpty() ? "" : arguments.get(0));
+            } else if ("sync".equals(command)) {
+                failures = sync(client, arguments);
+            } else {
+                System.err.println("Unknown command: " + command + "\n" + USAGE);
+                failures = 1;
+            }
+        }
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // Method to upload files and directory trees through the upload scheduler; returns the number that failed
+    private static int upload(final TransferClient client, List<String> paths, int jobs, final boolean update) throws InterruptedException {
+        List<File> roots = new ArrayList<File>();
+        for (String path : paths) {
+            roots.add(new File(path));
+        }
+        final CountDownLatch idle = new CountDownLatch(1);
+        final AtomicInteger failed = new AtomicInteger();
+        UploadScheduler scheduler = client.newUploadScheduler(jobs, new UploadScheduler.Handler() {
+            @Override
+            public void queued(File file, String name) {
+            }
+
+            @Override
+            public void upload(File file, String name) throws IOException {
+                TransferClient.await(client.upload(file, name, new ConsoleProgress(name)));
+            }
+
+            @Override
+            public boolean finished(File file, String name, IOException error) {
+                if (error instanceof ServerException && TransferClient.FILE_EXISTS.equals(error.getMessage()) && update) {
+                    try {
+                        TransferClient.await(client.sync(file, name, new ConsoleProgress(name)));
+                        error = null;
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                report("Uploaded", file.getPath(), error);
+                return error == null;
+            }
+
+            @Override
+            public void idle(int succeeded, int failedCount) {
+                System.out.println("Uploaded " + succeeded + " of " + (succeeded + failedCount) + " files");
+                failed.set(failedCount);
+                idle.countDown();
+            }
+        });
+        scheduler.uploadAll(roots);
+        idle.await();
+        return failed.get();
+    }
+
+    // Method to download files by name, jobs at a time; returns the number that failed
+    private static int download(TransferClient client, List<String> names, File dir) {
+        List<CompletableFuture<Void>> downloads = new ArrayList<CompletableFuture<Void>>();
+        int failures = 0;
+        for (String name : names) {
+            File outputFile = new File(dir, name);
+            if (outputFile.exists()) {
+                report("Downloaded", name, new IOException(outputFile + " already exists"));
+                failures++;
+                downloads.add(null);
+                continue;
+            }
+            downloads.add(client.download(name, outputFile, new ConsoleProgress(name)));
+        }
+        for (int i = 0; i < names.size(); i++) {
+            if (downloads.get(i) == null) continue;
+            IOException error = null;
+            try {
+                TransferClient.await(downloads.get(i));
+            } catch (IOException e) {
+                error = e;
+                failures++;
+            }
+            report("Downloaded", names.get(i), error);
+        }
+        return failures;
+    }
+
+    // Method to download files in one DOWNLOAD_MANY request, extracting them as they arrive;
+    // returns the number that failed
+    private static int downloadBundle(TransferClient client, List<String> names, String prefix, File dir) {
+        final AtomicInteger saved = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        String label = names.isEmpty() ? "files starting with '" + prefix + "'" : names.size() + " files";
+        try {
+            List<String> missing = TransferClient.await(client.downloadMany(names, prefix, dir, new BundleDownload.Listener() {
+                @Override
+                public void extracted(String name, IOException error) {
+                    report("Downloaded", name, error);
+                    (error == null ? saved : failed).incrementAndGet();
+                }
+            }, new ConsoleProgress(label)));
+            for (String name : missing) {
+                report("Downloaded", name, new FileNotFoundException("File not found on server."));
+            }
+            failed.addAndGet(missing.size());
+        } catch (IOException e) {
+            report("Downloaded", label, e);
+            failed.incrementAndGet();
+        }
+        System.out.println("Downloaded " + saved.get() + " of " + (saved.get() + failed.get()) + " files");
+        return failed.get();
+    }
+
+    // Method to print the files whose names start with prefix: size, modification time and name
+    private static int list(TransferClient client, String prefix) {
+        try {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+            for (Storage.FileInfo info : TransferClient.await(client.list(prefix))) {
+                System.out.println(String.format("%14d  %s  %s", info.size, dateFormat.format(new Date(info.lastModified)), info.name));
+            }
+            return 0;
+        } catch (IOException e) {
+            report("Listed", prefix, e);
+            return 1;
+        }
+    }
+
+    // Method to update files the server already has; returns the number that failed
+    private static int sync(TransferClient client, List<String> paths) {
+        List<CompletableFuture<Void>> syncs = new ArrayList<CompletableFuture<Void>>();
+        for (String path : paths) {
+            File file = new File(path);
+            syncs.add(client.sync(file, new ConsoleProgress(file.getName())));
+        }
+        int failures = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            IOException error = null;
+            try {
+                TransferClient.await(syncs.get(i));
+            } catch (IOException e) {
+                error = e;
+                failures++;
+            }
+            report("Updated", paths.get(i), error);
+        }
+        return failures;
+    }
+
+    // Method to print how one file ended
+    private static void report(String done, String name, IOException error) {
+        if (error == null) {
+            System.out.println(done + " " + name);
+        } else if (error instanceof ServerException || error instanceof FileNotFoundException) {
+            System.err.println("Failed " + name + ": " + error.getMessage());
+        } else {
+            System.err.println("Failed " + name + ": " + error);
+        }
+    }
+
+    // Method to read a --name=value option
+    private static String option(String[] args, String name, String defaultValue) {
+        String prefix = "--" + name + "=";
+        for (String arg : args) {
+            if (arg.startsWith(prefix)) {
+                return arg.substring(prefix.length());
+            }
+        }
+        return defaultValue;
+    }
+
+    // Method to check for a --name flag without a value
+    private static boolean hasFlag(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals("--" + name)) return true;
+        }
+        return false;
+    }
+
+    // Method to pass an option on as a system property
+    private static void setProperty(String[] args, String name, String property) {
+        String value = option(args, name, null);
+        if (value != null) System.setProperty(property, value);
+    }
+
+    // Prints a transfer's progress to stderr in steps of 10%, with its average rate
+    private static class ConsoleProgress implements ParallelTransfer.Progress {
+        private final String name;
+        private final long start = System.nanoTime();
+        private int lastStep;
+
+        ConsoleProgress(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized void transferred(long bytes, long total) {
+            int step = total == 0 ? 10 : (int) (bytes * 10 / total);
+            if (step <= lastStep) return;
+            lastStep = step;
+            double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+            System.err.println(String.format("%s: %d%% (%.1f MB/s)", name, step * 10, bytes / seconds / (1024 * 1024)));
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Load generator that runs many clients against a server and reports, per command, the operations
+// and bytes per second and the p50/p99/p999 latency. Every operation opens its own connection, as
+// the original client did, so the latencies include waiting for a server thread.
+// Each client picks commands from the mix with its own fixed seed, and the first seconds are a
+// warm-up that is not counted, so runs with the same arguments are comparable.
+// Run it against a scratch server: the uploaded files are left behind.
+// Usage: java LoadGenerator [clients] [seconds] [fileSizeKB] [mix] [host] [port]
+//   mix is a list of command weights, e.g. UPLOAD=1,DOWNLOAD=4,LIST=1,LIST_PAGE=4
+public class LoadGenerator {
+    private static final String[] COMMANDS = {"UPLOAD", "DOWNLOAD", "LIST", "LIST_PAGE"};
+    private static final String DEFAULT_MIX = "UPLOAD=1,DOWNLOAD=4,LIST=1,LIST_PAGE=4";
+    private static final int WARM_UP_SECONDS = 2;
+    private static final int PAGE_SIZE = 500;
+
+    private final String host;
+    private final int port;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final byte[] contents;
+    private final int[] weights = new int[COMMANDS.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private final AtomicLong[] bytes = new AtomicLong[COMMANDS.length];
+    private final AtomicLong[] errors = new AtomicLong[COMMANDS.length];
+    private volatile boolean measuring;
+
+    LoadGenerator(String host, int port, int fileSizeKb, String mix) {
+        this.host = host;
+        this.port = port;
+        this.contents = new byte[fileSizeKb * 1024];
+        new Random(42).nextBytes(contents);
+        for (int i = 0; i < COMMANDS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+            bytes[i] = new AtomicLong();
+            errors[i] = new AtomicLong();
+        }
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            int command = indexOf(parts[0].trim());
+            if (command < 0 || parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            weights[command] = Integer.parseInt(parts[1].trim());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int fileSizeKb = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        String mix = args.length > 3 ? args[3] : DEFAULT_MIX;
+        String host = args.length > 4 ? args[4] : "localhost";
+        int port = args.length > 5 ? Integer.parseInt(args[5]) : FileServer.PORT;
+
+        LoadGenerator generator = new LoadGenerator(host, port, fileSizeKb, mix);
+        System.out.println("Clients: " + clients + ", duration: " + seconds + " s after a " + WARM_UP_SECONDS
+                + " s warm-up, file size: " + fileSizeKb + " KB, mix: " + mix);
+        generator.run(clients, seconds);
+    }
+
+    // Method to run the clients for the warm-up and the measured seconds, then print the report
+    void run(int clients, int seconds) throws Exception {
+        // Downloads all fetch one file uploaded up front
+        upload(seedName());
+        final long end = System.nanoTime() + (WARM_UP_SECONDS + seconds) * 1000000000L;
+        final CountDownLatch finished = new CountDownLatch(clients);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; i++) {
+            final int client = i;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runClient(client, end);
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "load-client-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        Thread.sleep(WARM_UP_SECONDS * 1000L);
+        measuring = true;
+        long start = System.nanoTime();
+        finished.await();
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    // Method to issue commands from one client until the end time
+    private void runClient(int client, long end) {
+        Random random = new Random(client);
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+        int uploads = 0;
+        while (System.nanoTime() < end) {
+            int pick = random.nextInt(totalWeight);
+            int command = 0;
+            while (pick >= weights[command]) {
+                pick -= weights[command++];
+            }
+            boolean counted = measuring;
+            long start = System.nanoTime();
+            try {
+                long moved;
+                switch (COMMANDS[command]) {
+                    case "UPLOAD":
+                        moved = upload("loadgen-" + runId + "-" + client + "-" + uploads++);
+                        break;
+                    case "DOWNLOAD":
+                        moved = download(seedName());
+                        break;
+                    case "LIST":
+                        moved = list();
+                        break;
+                    default:
+                        moved = listPage();
+                        break;
+                }
+                if (counted) {
+                    latencies[command].record(System.nanoTime() - start);
+                    bytes[command].addAndGet(moved);
+                }
+            } catch (IOException e) {
+                if (counted) errors[command].incrementAndGet();
+            }
+        }
+    }
+
+    // Method to upload the test contents under a name; returns the bytes sent
+    private long upload(String name) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            dos.writeUTF("UPLOAD");
+            dos.writeUTF(name);
+            dos.writeLong(contents.length);
+            dos.flush();
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            dos.write(contents);
+            dos.flush();
+            // The server closes the connection once the file is stored
+            socket.shutdownOutput();
+            dis.read();
+            return contents.length;
+        }
+    }
+
+    // Method to download a file and discard it; returns the bytes received
+    private long download(String name) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            dos.writeUTF("DOWNLOAD");
+            dos.writeUTF(name);
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            long fileSize = dis.readLong();
+            byte[] buffer = new byte[64 * 1024];
+            long received = 0;
+            while (received < fileSize) {
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileSize - received));
+                if (bytesRead < 0) {
+                    throw new EOFException("Download ended after " + received + " of " + fileSize + " bytes");
+                }
+                received += bytesRead;
+            }
+            return received;
+        }
+    }
+
+    // Method to fetch the full file list; throughput does not apply
+    private long list() throws IOException {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            dos.writeUTF("LIST");
+            int fileCount = dis.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                dis.readUTF();
+            }
+            return 0;
+        }
+    }
+
+    // Method to fetch the first page of the file list with sizes and times; throughput does not apply
+    private long listPage() throws IOException {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            dos.writeUTF("LIST_PAGE");
+            dos.writeUTF("");
+            dos.writeUTF("");
+            dos.writeInt(PAGE_SIZE);
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            int fileCount = dis.readInt();
+            for (int i = 0; i < fileCount; i++) {
+                dis.readUTF();
+                dis.readLong();
+                dis.readLong();
+            }
+            dis.readUTF();
+            return 0;
+        }
+    }
+
+    // Method to print one line per command that ran
+    private void report(double seconds) {
+        System.out.printf("%-10s %9s %9s %9s %10s %10s %10s %10s %7s%n",
+                "command", "ops", "ops/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            if (weights[i] == 0) continue;
+            System.out.printf("%-10s %9d %9.1f %9.1f %10.3f %10.3f %10.3f %10.3f %7d%n", COMMANDS[i],
+                    histogram.getCount(), histogram.getCount() / seconds, bytes[i].get() / seconds / (1024 * 1024),
+                    histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6,
+                    histogram.percentile(0.999) / 1e6, histogram.getMax() / 1e6, errors[i].get());
+        }
+    }
+
+    private String seedName() {
+        return "loadgen-" + runId + "-seed";
+    }
+
+    private static int indexOf(String command) {
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equalsIgnoreCase(command)) return i;
+        }
+        return -1;
+    }
+}
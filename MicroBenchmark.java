@@ -0,0 +1,251 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+
+// In-process microbenchmarks of the server's hot loops: copying file bytes with different buffer
+// sizes, and listing the file index at different sizes. Each case is warmed up, then run for a
+// fixed time; the report gives the mean and the p50/p99 time of one operation and its throughput.
+// Usage: java MicroBenchmark [fileSizeMB] [seconds per case]
+public class MicroBenchmark {
+    private static final int[] BUFFER_SIZES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final int[] INDEX_SIZES = {1000, 10000, 100000};
+    private static final int PAGE_SIZE = 500;
+    // Results nothing else reads are stored here so the JIT cannot drop the work that made them
+    static volatile long consumed;
+
+    // One timed operation; returns the bytes it moved, or 0 if throughput does not apply
+    interface Operation {
+        long run() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileSizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+        final File file = createTestFile(fileSizeMb);
+        try {
+            System.out.println("File size: " + fileSizeMb + " MB, " + seconds + " s per case");
+            printHeader();
+            for (final int bufferSize : BUFFER_SIZES) {
+                run("stream copy, " + bufferSize / 1024 + " KB byte[]", seconds, new Operation() {
+                    @Override
+                    public long run() throws IOException {
+                        return streamCopy(file, bufferSize);
+                    }
+                });
+            }
+            for (final int bufferSize : BUFFER_SIZES) {
+                run("channel copy, " + bufferSize / 1024 + " KB direct", seconds, new Operation() {
+                    final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+
+                    @Override
+                    public long run() throws IOException {
+                        return channelCopy(file, buffer);
+                    }
+                });
+            }
+            run("TransferEngine.transferBuffered", seconds, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                        return TransferEngine.transferBuffered(channel, 0, channel.size(), new Sink());
+                    }
+                }
+            });
+        } finally {
+            file.delete();
+        }
+
+        for (int size : INDEX_SIZES) {
+            final FileIndex index = new FileIndex(new MemoryStorage(size));
+            final String middle = String.format("file-%08d", size / 2);
+            run("LIST of " + size + " files", seconds, new Operation() {
+                @Override
+                public long run() throws IOException {
+                    // What the server does for LIST: copy the names and write them out
+                    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new NullOutputStream()));
+                    List<String> names = index.list();
+                    dos.writeInt(names.size());
+                    for (String name : names) {
+                        dos.writeUTF(name);
+                    }
+                    dos.flush();
+                    return 0;
+                }
+            });
+            run("LIST_PAGE of " + size + ", first page", seconds, new Operation() {
+                @Override
+                public long run() {
+                    consumed = index.page("", "", PAGE_SIZE).files.size();
+                    return 0;
+                }
+            });
+            run("LIST_PAGE of " + size + ", mid cursor", seconds, new Operation() {
+                @Override
+                public long run() {
+                    consumed = index.page("", middle, PAGE_SIZE).files.size();
+                    return 0;
+                }
+            });
+        }
+    }
+
+    // Method to copy a file the way the original blocking loops did, through a heap byte[]
+    private static long streamCopy(File file, int bufferSize) throws IOException {
+        OutputStream out = new NullOutputStream();
+        long copied = 0;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] buffer = new byte[bufferSize];
+            int bytesRead;
+            while ((bytesRead = fis.read(buffer)) > 0) {
+                out.write(buffer, 0, bytesRead);
+                copied += bytesRead;
+            }
+        }
+        return copied;
+    }
+
+    // Method to copy a file through a direct buffer into a channel
+    private static long channelCopy(File file, ByteBuffer buffer) throws IOException {
+        WritableByteChannel sink = new Sink();
+        long copied = 0;
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            int bytesRead;
+            while ((bytesRead = channel.read(buffer)) > 0) {
+                buffer.flip();
+                sink.write(buffer);
+                buffer.clear();
+                copied += bytesRead;
+            }
+        }
+        buffer.clear();
+        return copied;
+    }
+
+    // Method to warm an operation up for a second, then time it for the given seconds and print a report line
+    private static void run(String name, double seconds, Operation operation) throws IOException {
+        long warmUpEnd = System.nanoTime() + 1000000000L;
+        while (System.nanoTime() < warmUpEnd) {
+            operation.run();
+        }
+        LatencyHistogram histogram = new LatencyHistogram();
+        long bytes = 0;
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        long now = start;
+        while (now < end) {
+            bytes += operation.run();
+            long finished = System.nanoTime();
+            histogram.record(finished - now);
+            now = finished;
+        }
+        double elapsed = (now - start) / 1e9;
+        String throughput = bytes > 0 ? String.format("%10.1f MB/s", bytes / elapsed / (1024 * 1024)) : "";
+        System.out.printf("%-36s %10d %12s %12s %12s %s%n", name, histogram.getCount(),
+                formatNanos(histogram.getMean()), formatNanos(histogram.percentile(0.5)),
+                formatNanos(histogram.percentile(0.99)), throughput);
+    }
+
+    private static void printHeader() {
+        System.out.printf("%-36s %10s %12s %12s %12s %s%n", "case", "ops", "mean", "p50", "p99", "throughput");
+    }
+
+    // Method to show a time with a unit that keeps it readable
+    static String formatNanos(long nanos) {
+        if (nanos < 10000) return nanos + " ns";
+        if (nanos < 10000000) return String.format("%.1f us", nanos / 1e3);
+        return String.format("%.1f ms", nanos / 1e6);
+    }
+
+    // Method to create a file of random-ish content of the given size
+    private static File createTestFile(int sizeMb) throws IOException {
+        File file = File.createTempFile("micro-benchmark", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(42).nextBytes(block);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) {
+                fos.write(block);
+            }
+        }
+        return file;
+    }
+
+    // Output stream that discards everything
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    // Channel that consumes and discards everything
+    private static class Sink implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Storage holding only names, sizes and times, for building large file indexes without a disk
+    private static class MemoryStorage implements Storage {
+        private final Map<String, FileInfo> files = new TreeMap<String, FileInfo>();
+
+        MemoryStorage(int fileCount) {
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < fileCount; i++) {
+                String name = String.format("file-%08d", i);
+                files.put(name, new FileInfo(name, i * 1024L, now));
+            }
+        }
+
+        @Override
+        public boolean exists(String name) {
+            return files.containsKey(name);
+        }
+
+        @Override
+        public List<String> list() {
+            return new ArrayList<String>(files.keySet());
+        }
+
+        @Override
+        public FileInfo stat(String name) {
+            return files.get(name);
+        }
+
+        @Override
+        public SeekableByteChannel openRead(String name) {
+            return null;
+        }
+
+        @Override
+        public void commit(String name, File tempFile) throws IOException {
+            throw new IOException("Read-only storage");
+        }
+
+        @Override
+        public void replace(String name, File tempFile) throws IOException {
+            throw new IOException("Read-only storage");
+        }
+
+        @Override
+        public int clear() {
+            return 0;
+        }
+    }
+}
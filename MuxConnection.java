@@ -0,0 +1,178 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One long-lived connection carrying many request streams (the SESSION protocol).
+// Every frame is: int streamId, byte type, int length, then length payload bytes.
+// Each stream carries exactly the bytes a single-command connection would, so the
+// existing command handlers run unchanged on top of it.
+public class MuxConnection implements Closeable {
+    // Frame types
+    static final byte OPEN = 1;    // Client starts a new request stream
+    static final byte DATA = 2;    // Payload bytes for a stream
+    static final byte CLOSE = 3;   // Sender has finished writing to the stream
+    static final byte WINDOW = 4;  // Receiver consumed bytes: payload is an int credit increment
+    static final byte STOP = 5;    // Receiver no longer reads the stream, sender should stop writing
+
+    // Largest DATA payload, so one big transfer cannot hold the connection for long
+    static final int MAX_FRAME_SIZE = 64 * 1024;
+    // Bytes a sender may have in flight on one stream before the receiver grants more credit
+    static final int STREAM_WINDOW = 1024 * 1024;
+    // Default cap on streams the peer may have open at once on one connection
+    static final int DEFAULT_MAX_STREAMS = 100;
+
+    // Callback for streams opened by the peer
+    interface StreamAcceptor {
+        void accept(MuxStream stream);
+    }
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Closeable transport;
+    private final StreamAcceptor acceptor;
+    private final int maxStreams;
+    private final Map<Integer, MuxStream> streams = new ConcurrentHashMap<Integer, MuxStream>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private volatile boolean open = true;
+
+    public MuxConnection(InputStream in, OutputStream out, Closeable transport, StreamAcceptor acceptor) {
+        this(in, out, transport, acceptor, DEFAULT_MAX_STREAMS);
+    }
+
+    public MuxConnection(InputStream in, OutputStream out, Closeable transport, StreamAcceptor acceptor, int maxStreams) {
+        this.maxStreams = maxStreams;
+        this.in = new DataInputStream(new BufferedInputStream(in, MAX_FRAME_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(out, MAX_FRAME_SIZE + 9));
+        this.transport = transport;
+        this.acceptor = acceptor;
+    }
+
+    // Method to start a new request stream
+    public MuxStream openStream() throws IOException {
+        if (!open) throw new IOException("Connection closed");
+        MuxStream stream = new MuxStream(this, nextStreamId.getAndAdd(2));
+        streams.put(stream.getId(), stream);
+        writeFrame(stream.getId(), OPEN, null, 0, 0);
+        return stream;
+    }
+
+    // Method to read and dispatch frames until the connection ends; returns the error that broke it,
+    // or null if the peer or this side closed it, and leaves reporting the error to the caller
+    public IOException run() {
+        try {
+            while (true) {
+                int streamId = in.readInt();
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length: " + length);
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+
+                if (type == OPEN) {
+                    if (acceptor == null || streams.containsKey(streamId)) {
+                        throw new IOException("Unexpected OPEN for stream " + streamId);
+                    }
+                    if (streams.size() >= maxStreams) {
+                        refuseStream(streamId);
+                        continue;
+                    }
+                    MuxStream stream = new MuxStream(this, streamId);
+                    streams.put(streamId, stream);
+                    acceptor.accept(stream);
+                    continue;
+                }
+                MuxStream stream = streams.get(streamId);
+                if (stream == null) {
+                    // Late frame for a stream both sides already finished
+                    continue;
+                }
+                if (type == DATA) {
+                    stream.received(payload);
+                } else if (type == CLOSE) {
+                    stream.remoteClosed();
+                } else if (type == WINDOW) {
+                    stream.addCredit(new DataInputStream(new ByteArrayInputStream(payload)).readInt());
+                } else if (type == STOP) {
+                    stream.remoteStopped();
+                } else {
+                    throw new IOException("Unknown frame type: " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // Peer closed the connection
+            return null;
+        } catch (IOException e) {
+            return open ? e : null;
+        } finally {
+            close();
+        }
+    }
+
+    // Method to write one frame; frames from different streams interleave but never split
+    synchronized void writeFrame(int streamId, byte type, byte[] payload, int offset, int length) throws IOException {
+        if (!open) throw new IOException("Connection closed");
+        try {
+            out.writeInt(streamId);
+            out.writeByte(type);
+            out.writeInt(length);
+            if (length > 0) out.write(payload, offset, length);
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Method to answer an OPEN over the stream limit with an error reply, then end the stream both ways.
+    // Frames the peer already sent on it are dropped like those of any unknown stream.
+    private void refuseStream(int streamId) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        new DataOutputStream(reply).writeUTF("ERROR: Too many streams");
+        writeFrame(streamId, DATA, reply.toByteArray(), 0, reply.size());
+        writeFrame(streamId, CLOSE, null, 0, 0);
+        writeFrame(streamId, STOP, null, 0, 0);
+    }
+
+    // Method to write a frame whose payload is a single int
+    void writeIntFrame(int streamId, byte type, int value) throws IOException {
+        byte[] payload = {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        writeFrame(streamId, type, payload, 0, payload.length);
+    }
+
+    // Method to forget a stream once both directions are finished
+    void remove(MuxStream stream) {
+        streams.remove(stream.getId());
+    }
+
+    // Method to report whether the connection can still carry streams
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Method to count the streams currently in use
+    public int activeStreams() {
+        return streams.size();
+    }
+
+    // Method to close the connection and fail every stream still using it
+    @Override
+    public void close() {
+        if (!open) return;
+        open = false;
+        List<MuxStream> remaining = new ArrayList<MuxStream>(streams.values());
+        streams.clear();
+        for (MuxStream stream : remaining) {
+            stream.connectionLost();
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            // Already closing
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.*;
+import java.util.ArrayDeque;
+
+// One request stream inside a MuxConnection, exposed as a pair of blocking streams.
+// Output is buffered into frames and flushed automatically before the owner blocks on input,
+// so request/response code written for a plain socket works unchanged.
+public class MuxStream implements Closeable {
+    private final MuxConnection connection;
+    private final int id;
+
+    // Inbound state, guarded by this
+    private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+    private int chunkPosition;
+    private int unacknowledged;
+    private long receiveWindow = MuxConnection.STREAM_WINDOW;
+    private boolean remoteClosed;
+    private boolean inputClosed;
+    private boolean lost;
+
+    // Outbound state, guarded by sendLock (held across frame writes, so never taken by the reader thread)
+    private final Object sendLock = new Object();
+    private final byte[] sendBuffer = new byte[MuxConnection.MAX_FRAME_SIZE];
+    private int sendCount;
+    private volatile boolean outputClosed;
+
+    // Credit state, guarded by creditLock, which is only held briefly and never across a write
+    private final Object creditLock = new Object();
+    private long sendCredit = MuxConnection.STREAM_WINDOW;
+    private volatile boolean stopped;
+
+    private final InputStream input = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readInput(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (MuxStream.this) {
+                return chunks.isEmpty() ? 0 : chunks.peek().length - chunkPosition;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeInput();
+        }
+    };
+
+    private final OutputStream output = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeOutput(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushOutput();
+        }
+
+        @Override
+        public void close() throws IOException {
+            shutdownOutput();
+        }
+    };
+
+    MuxStream(MuxConnection connection, int id) {
+        this.connection = connection;
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    // Method to read bytes the peer sent on this stream
+    private int readInput(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        boolean willBlock;
+        synchronized (this) {
+            willBlock = chunks.isEmpty() && !remoteClosed && !lost && !inputClosed;
+        }
+        if (willBlock) {
+            // About to wait for the peer: make sure it has seen everything we wrote
+            flushOutput();
+        }
+        int credit;
+        int copied;
+        synchronized (this) {
+            while (chunks.isEmpty() && !remoteClosed && !lost && !inputClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (inputClosed) throw new IOException("Stream closed");
+            if (chunks.isEmpty()) {
+                if (lost) throw new IOException("Connection lost");
+                return -1;
+            }
+            byte[] chunk = chunks.peek();
+            copied = Math.min(len, chunk.length - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, b, off, copied);
+            chunkPosition += copied;
+            if (chunkPosition == chunk.length) {
+                chunks.poll();
+                chunkPosition = 0;
+            }
+            // Grant the sender more credit once half the window has been consumed
+            unacknowledged += copied;
+            credit = 0;
+            if (unacknowledged >= MuxConnection.STREAM_WINDOW / 2 && !remoteClosed) {
+                credit = unacknowledged;
+                unacknowledged = 0;
+                receiveWindow += credit;
+            }
+        }
+        if (credit > 0) {
+            connection.writeIntFrame(id, MuxConnection.WINDOW, credit);
+        }
+        return copied;
+    }
+
+    // Method to buffer bytes for the peer, sending full frames as they fill up
+    private void writeOutput(byte[] b, int off, int len) throws IOException {
+        synchronized (sendLock) {
+            while (len > 0) {
+                if (outputClosed || stopped) throw new IOException("Stream closed");
+                int copied = Math.min(len, sendBuffer.length - sendCount);
+                System.arraycopy(b, off, sendBuffer, sendCount, copied);
+                sendCount += copied;
+                off += copied;
+                len -= copied;
+                if (sendCount == sendBuffer.length) {
+                    sendBuffered();
+                }
+            }
+        }
+    }
+
+    // Method to send any buffered bytes now
+    private void flushOutput() throws IOException {
+        synchronized (sendLock) {
+            if (!outputClosed && !stopped) sendBuffered();
+        }
+    }
+
+    // Method to send the buffer as DATA frames, waiting for credit when the peer is behind
+    private void sendBuffered() throws IOException {
+        int offset = 0;
+        while (offset < sendCount) {
+            int length = takeCredit(sendCount - offset);
+            connection.writeFrame(id, MuxConnection.DATA, sendBuffer, offset, length);
+            offset += length;
+        }
+        sendCount = 0;
+    }
+
+    // Method to wait for credit and reserve up to wanted bytes of it; only the sender holding sendLock calls this
+    private int takeCredit(int wanted) throws IOException {
+        synchronized (creditLock) {
+            while (sendCredit <= 0 && !stopped && connection.isOpen()) {
+                try {
+                    creditLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (stopped) throw new IOException("Peer stopped reading stream " + id);
+            int length = (int) Math.min(wanted, sendCredit);
+            sendCredit -= length;
+            return length;
+        }
+    }
+
+    // Method to signal the peer that no more bytes will be written
+    public void shutdownOutput() throws IOException {
+        synchronized (sendLock) {
+            if (outputClosed) return;
+            try {
+                if (!stopped) {
+                    sendBuffered();
+                    connection.writeFrame(id, MuxConnection.CLOSE, null, 0, 0);
+                }
+            } finally {
+                outputClosed = true;
+            }
+        }
+        removeIfDone();
+    }
+
+    // Method to stop reading; the peer is told to stop writing
+    private void closeInput() throws IOException {
+        boolean notifyPeer;
+        synchronized (this) {
+            if (inputClosed) return;
+            inputClosed = true;
+            notifyPeer = !remoteClosed && !lost;
+            chunks.clear();
+            notifyAll();
+        }
+        if (notifyPeer && connection.isOpen()) {
+            connection.writeFrame(id, MuxConnection.STOP, null, 0, 0);
+        }
+        removeIfDone();
+    }
+
+    // Method to finish both directions of the stream
+    @Override
+    public void close() throws IOException {
+        try {
+            shutdownOutput();
+        } finally {
+            closeInput();
+        }
+    }
+
+    // Method called by the reader thread when a DATA frame arrives; a peer that sends more than
+    // the credit it was granted fails the connection instead of growing the buffer without limit
+    synchronized void received(byte[] payload) throws IOException {
+        if (payload.length > receiveWindow) {
+            throw new IOException("Stream " + id + " exceeded its receive window");
+        }
+        receiveWindow -= payload.length;
+        if (inputClosed || payload.length == 0) return;
+        chunks.add(payload);
+        notifyAll();
+    }
+
+    // Method called by the reader thread when the peer has finished writing
+    void remoteClosed() {
+        synchronized (this) {
+            remoteClosed = true;
+            notifyAll();
+        }
+        removeIfDone();
+    }
+
+    // Method called by the reader thread when the peer grants more credit
+    void addCredit(int credit) {
+        synchronized (creditLock) {
+            sendCredit += credit;
+            creditLock.notifyAll();
+        }
+    }
+
+    // Method called by the reader thread when the peer stops reading
+    void remoteStopped() {
+        synchronized (creditLock) {
+            stopped = true;
+            creditLock.notifyAll();
+        }
+        removeIfDone();
+    }
+
+    // Method called when the underlying connection fails
+    void connectionLost() {
+        synchronized (this) {
+            lost = true;
+            notifyAll();
+        }
+        synchronized (creditLock) {
+            creditLock.notifyAll();
+        }
+    }
+
+    // Method to drop the stream from its connection once neither side will use it again
+    private void removeIfDone() {
+        boolean outputDone = outputClosed || stopped;
+        synchronized (this) {
+            if (outputDone && (remoteClosed || inputClosed)) {
+                connection.remove(this);
+            }
+        }
+    }
+}
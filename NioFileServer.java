@@ -0,0 +1,636 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// Non-blocking server engine: one acceptor thread hands connections to a few selector event loops.
+// It speaks the same UPLOAD/DOWNLOAD/LIST/CLEAR protocol as FileServer.ClientHandler; any other
+// command (e.g. SESSION) is handed over to a blocking ClientHandler on FileServer.sessionPool.
+public class NioFileServer {
+    // Size of the per-connection buffer used to parse commands and headers
+    private static final int HEADER_BUFFER_SIZE = 8 * 1024;
+    // Staging buffer per download from storage that has no file channel
+    private static final int SOURCE_BUFFER_SIZE = 64 * 1024;
+    // Size of the per-event-loop buffer used to stream upload data to disk
+    private static final int IO_BUFFER_SIZE = 256 * 1024;
+
+    private final int port;
+    private final EventLoop[] eventLoops;
+
+    public NioFileServer(int port, int eventLoopCount) throws IOException {
+        this.port = port;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    // Method to accept connections and spread them across the event loops
+    public void run() throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            Thread thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+            thread.start();
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            ServerLog.info("Server is running on port %d (nio, %d event loops)", port, eventLoops.length);
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                ServerLog.debug("Client connected: %s", clientChannel.socket().getInetAddress());
+                ServerMetrics.connectionOpened();
+                clientChannel.configureBlocking(false);
+                eventLoops[next].register(clientChannel);
+                next = (next + 1) % eventLoops.length;
+            }
+        }
+    }
+
+    // A selector thread that drives every connection registered with it
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+        // Connections whose LIST or CLEAR reply the session pool has built
+        private final Queue<Connection> replies = new ConcurrentLinkedQueue<Connection>();
+        // Connections leaving the selector for a blocking handler
+        private final List<Connection> handoffs = new ArrayList<Connection>();
+        // Connections waiting for their rate limits to allow more bytes
+        private final List<Connection> paused = new ArrayList<Connection>();
+        // Shared by all connections of this loop; upload data never outlives one read
+        final ByteBuffer ioBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        // Method to hand a new connection to this loop from the acceptor thread
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        // Method to hand a built reply back to this loop from the session pool
+        void replyReady(Connection connection) {
+            replies.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    // Wake up in time to resume the first paused connection
+                    selector.select(nextResumeMillis());
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(this, channel, key));
+                    }
+                    Connection replied;
+                    while ((replied = replies.poll()) != null) {
+                        try {
+                            replied.sendBuiltReply();
+                        } catch (IOException | RuntimeException e) {
+                            ServerLog.error("Exception in client handler", e);
+                            replied.close();
+                        }
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            connection.handle();
+                        } catch (IOException | RuntimeException e) {
+                            ServerLog.error("Exception in client handler", e);
+                            connection.close();
+                        }
+                    }
+                    resumeDue();
+                    if (!handoffs.isEmpty()) {
+                        // Deregister the cancelled keys so the channels can switch back to blocking mode
+                        selector.selectNow();
+                        for (Connection connection : handoffs) {
+                            connection.startBlockingHandler();
+                        }
+                        handoffs.clear();
+                    }
+                } catch (IOException e) {
+                    ServerLog.error("Event loop exception", e);
+                }
+            }
+        }
+
+        // Method to find how long select may wait before a paused connection is due, 0 meaning forever
+        private long nextResumeMillis() {
+            if (paused.isEmpty()) return 0;
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (Connection connection : paused) {
+                next = Math.min(next, connection.resumeAt - now);
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+        }
+
+        // Method to resume the paused connections whose rate limits allow more bytes again
+        private void resumeDue() {
+            if (paused.isEmpty()) return;
+            long now = System.nanoTime();
+            // A resumed connection may pause again, so take the due ones out first
+            List<Connection> due = new ArrayList<Connection>();
+            Iterator<Connection> waiting = paused.iterator();
+            while (waiting.hasNext()) {
+                Connection connection = waiting.next();
+                if (connection.resumeAt - now <= 0) {
+                    due.add(connection);
+                    waiting.remove();
+                }
+            }
+            for (Connection connection : due) {
+                try {
+                    connection.resume();
+                } catch (IOException | RuntimeException e) {
+                    ServerLog.error("Exception in client handler", e);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    // Protocol state of a single client connection
+    enum State {
+        READ_COMMAND, READ_UPLOAD_HEADER, RECEIVING_FILE, READ_DOWNLOAD_HEADER, BUILDING_REPLY, SENDING_FILE, CLOSING,
+        HANDED_OFF
+    }
+
+    // Per-connection state machine for one command, mirroring ClientHandler.run
+    static class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+        private State state = State.READ_COMMAND;
+
+        // Transfer in progress
+        private String fileName;
+        private SeekableByteChannel source;
+        // Staging buffer when the storage channel cannot transferTo
+        private ByteBuffer sourceBuffer;
+        private PartialUploads.PartialUpload upload;
+        private long fileSize;
+        private long position;
+        // Bytes already read from the socket that a blocking handler must see first
+        private byte[] handoffBytes;
+        // The LIST or CLEAR reply built on the session pool, null if building it failed
+        private ByteArrayOutputStream builtReply;
+        // The native command being served, when it started, and whether its reply was written in full
+        private ServerMetrics.CommandStats command;
+        private long commandStart;
+        private boolean completed;
+        private boolean closed;
+        // Rate limit of the connection, null when unlimited, and the limits of the current transfer
+        private final TokenBucket connectionBucket = TrafficShaper.newConnectionBucket();
+        private TrafficShaper.Throttle throttle = TrafficShaper.Throttle.NONE;
+        // Set while the rate limits allow no more bytes; the event loop resumes the connection at resumeAt
+        private boolean paused;
+        private long resumeAt;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        // Method to react to a selected key
+        void handle() throws IOException {
+            if (key.isValid() && key.isReadable()) {
+                if (state == State.RECEIVING_FILE) {
+                    receiveFileData();
+                } else {
+                    readHeaders();
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            updateInterest();
+        }
+
+        // Method to read command and header bytes and advance the state machine
+        private void readHeaders() throws IOException {
+            if (!headerBuffer.hasRemaining()) {
+                // A header larger than the buffer (e.g. a very long file name): grow it
+                ByteBuffer larger = ByteBuffer.allocate(headerBuffer.capacity() * 2);
+                headerBuffer.flip();
+                larger.put(headerBuffer);
+                headerBuffer = larger;
+            }
+            int bytesRead = channel.read(headerBuffer);
+            if (bytesRead < 0) {
+                close();
+                return;
+            }
+            ServerMetrics.addBytesIn(bytesRead);
+            headerBuffer.flip();
+            try {
+                process();
+            } finally {
+                headerBuffer.compact();
+            }
+        }
+
+        // Method to consume as many complete headers as are buffered
+        private void process() throws IOException {
+            while (true) {
+                if (state == State.READ_COMMAND) {
+                    headerBuffer.mark();
+                    String command = readUTF();
+                    if (command == null) return;
+                    if (!isNativeCommand(command)) {
+                        // Let ClientHandler parse the command again from the original bytes
+                        headerBuffer.reset();
+                        handOff();
+                        return;
+                    }
+                    ServerLog.debug("Received command: %s", command);
+                    this.command = ServerMetrics.command(command);
+                    commandStart = System.nanoTime();
+                    if ("UPLOAD".equalsIgnoreCase(command)) {
+                        state = State.READ_UPLOAD_HEADER;
+                    } else if ("DOWNLOAD".equalsIgnoreCase(command)) {
+                        state = State.READ_DOWNLOAD_HEADER;
+                    } else {
+                        buildReply("LIST".equalsIgnoreCase(command));
+                        return;
+                    }
+                } else if (state == State.READ_UPLOAD_HEADER) {
+                    headerBuffer.mark();
+                    String name = readUTF();
+                    if (name == null || headerBuffer.remaining() < 8) {
+                        headerBuffer.reset();
+                        return;
+                    }
+                    startUpload(name, headerBuffer.getLong());
+                    return;
+                } else if (state == State.READ_DOWNLOAD_HEADER) {
+                    String name = readUTF();
+                    if (name == null) return;
+                    startDownload(name);
+                    return;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        // Method to build the reply to LIST, or to CLEAR, on the session pool so a large listing or a
+        // slow clear never stalls the other connections of this loop. The connection waits without
+        // interest ops until the loop picks the reply up again.
+        private void buildReply(final boolean list) {
+            state = State.BUILDING_REPLY;
+            FileServer.sessionPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    try {
+                        if (list) {
+                            // Send list of files to the client
+                            FileServer.ClientHandler.sendFileList(new DataOutputStream(reply));
+                        } else {
+                            // Clear all files from the server
+                            FileServer.ClientHandler.clearFiles(new DataOutputStream(reply));
+                        }
+                        builtReply = reply;
+                    } catch (IOException | RuntimeException e) {
+                        ServerLog.error("Exception in client handler", e);
+                    }
+                    loop.replyReady(Connection.this);
+                }
+            });
+        }
+
+        // Method to write a reply built by buildReply, on the event loop thread
+        void sendBuiltReply() throws IOException {
+            ByteArrayOutputStream reply = builtReply;
+            builtReply = null;
+            if (reply == null) {
+                close();
+                return;
+            }
+            finish(reply);
+            updateInterest();
+        }
+
+        // Method to check whether the event loop serves a command itself
+        static boolean isNativeCommand(String command) {
+            return "UPLOAD".equalsIgnoreCase(command) || "DOWNLOAD".equalsIgnoreCase(command)
+                    || "LIST".equalsIgnoreCase(command) || "CLEAR".equalsIgnoreCase(command);
+        }
+
+        // Method to take the connection off the selector so a blocking ClientHandler can serve it
+        private void handOff() {
+            handoffBytes = new byte[headerBuffer.remaining()];
+            headerBuffer.get(handoffBytes);
+            state = State.HANDED_OFF;
+            key.cancel();
+            loop.handoffs.add(this);
+        }
+
+        // Method to run ClientHandler on the now-deregistered channel
+        void startBlockingHandler() {
+            try {
+                channel.configureBlocking(true);
+                Socket socket = channel.socket();
+                InputStream in = new SequenceInputStream(new ByteArrayInputStream(handoffBytes),
+                        ServerMetrics.countIn(socket.getInputStream()));
+                OutputStream out = ServerMetrics.countOut(socket.getOutputStream());
+                // The handler counts the connection as its own from here on
+                closed = true;
+                ServerMetrics.connectionClosed();
+                FileServer.sessionPool.execute(new FileServer.ClientHandler(socket, in, out, false));
+            } catch (IOException e) {
+                ServerLog.error("Exception handing over connection", e);
+                close();
+            }
+        }
+
+        // Method to decode a writeUTF string, or return null if it is not fully buffered yet
+        private String readUTF() throws IOException {
+            if (headerBuffer.remaining() < 2) return null;
+            int length = headerBuffer.getShort(headerBuffer.position()) & 0xFFFF;
+            if (headerBuffer.remaining() < 2 + length) return null;
+            byte[] encoded = new byte[2 + length];
+            headerBuffer.get(encoded);
+            return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+        }
+
+        // Method to answer an UPLOAD header and start streaming the body to disk
+        private void startUpload(String name, long size) throws IOException {
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            String error = PartialUploads.sizeError(size);
+            if (error == null) error = FileServer.ClientHandler.uploadError(name);
+            PartialUploads.PartialUpload started = null;
+            if (error == null) {
+                try {
+                    // Each UPLOAD gets a partial upload of its own, published only once every byte has arrived
+                    started = PartialUploads.begin(name, size);
+                } catch (IOException e) {
+                    // Another client is uploading the same name
+                    error = "ERROR: " + e.getMessage();
+                }
+            }
+            if (error != null) {
+                // File already exists or is being uploaded, the name is not allowed or the size is too large
+                new DataOutputStream(reply).writeUTF(error);
+                ServerLog.debug("Upload refused: %s (%s)", name, error);
+                finish(reply);
+                return;
+            }
+            new DataOutputStream(reply).writeUTF("OK");
+            queue(reply);
+
+            fileName = name;
+            fileSize = size;
+            position = 0;
+            throttle = TrafficShaper.transferThrottle(connectionBucket);
+            // Hold the upload's file open until the connection is done with it
+            upload = started;
+            started.retain();
+            state = State.RECEIVING_FILE;
+
+            // Body bytes that arrived together with the header
+            if (headerBuffer.hasRemaining()) {
+                int length = (int) Math.min(headerBuffer.remaining(), fileSize);
+                ByteBuffer slice = headerBuffer.slice();
+                slice.limit(length);
+                writeToFile(slice);
+                headerBuffer.position(headerBuffer.position() + length);
+            }
+            if (position == fileSize) {
+                finishUpload();
+            }
+        }
+
+        // Method to move one socket read of upload data into the file
+        private void receiveFileData() throws IOException {
+            ByteBuffer buffer = loop.ioBuffer;
+            buffer.clear();
+            int allowed = (int) throttle.tryTake(Math.min(buffer.capacity(), fileSize - position));
+            if (allowed == 0) {
+                pause();
+                return;
+            }
+            buffer.limit(allowed);
+            int bytesRead = channel.read(buffer);
+            throttle.giveBack(allowed - Math.max(bytesRead, 0));
+            if (bytesRead < 0) {
+                ServerLog.warn("Error receiving file: %s", fileName);
+                close();
+                return;
+            }
+            ServerMetrics.addBytesIn(bytesRead);
+            buffer.flip();
+            writeToFile(buffer);
+            if (position == fileSize) {
+                finishUpload();
+            }
+        }
+
+        // Method to append bytes to the upload file
+        private void writeToFile(ByteBuffer buffer) throws IOException {
+            int length = buffer.remaining();
+            upload.write(buffer, position);
+            position += length;
+        }
+
+        // Method to complete an upload once every declared byte is on disk
+        private void finishUpload() throws IOException {
+            PartialUploads.PartialUpload finished = upload;
+            upload = null;
+            finished.release();
+            try {
+                PartialUploads.commit(finished.getId());
+                ServerLog.debug("File received: %s", fileName);
+            } catch (IOException e) {
+                PartialUploads.abort(finished);
+                ServerLog.error("Error receiving file: " + fileName, e);
+            }
+            state = State.CLOSING;
+            flush();
+        }
+
+        // Method to answer a DOWNLOAD header and queue the file for sending
+        private void startDownload(String name) throws IOException {
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(reply);
+            source = FileServer.storage.openRead(name);
+            if (source == null) {
+                // File not found on the server
+                dos.writeUTF("ERROR: File not found");
+                ServerLog.debug("File not found: %s", name);
+                finish(reply);
+                return;
+            }
+            fileName = name;
+            fileSize = source.size();
+            position = 0;
+            // Small downloads only count against the connection's own limit
+            throttle = TrafficShaper.isLargeTransfer(fileSize) ? TrafficShaper.transferThrottle(connectionBucket)
+                    : TrafficShaper.smallThrottle(connectionBucket);
+            if (source instanceof FileCache.CachedChannel) {
+                // Send cached contents straight from their buffer
+                sourceBuffer = ((FileCache.CachedChannel) source).remaining(0);
+                position = fileSize;
+            } else if (!(source instanceof FileChannel)) {
+                sourceBuffer = ByteBuffer.allocate(SOURCE_BUFFER_SIZE);
+                sourceBuffer.limit(0);
+            }
+            dos.writeUTF("OK");
+            dos.writeLong(fileSize);
+            queue(reply);
+            state = State.SENDING_FILE;
+            flush();
+        }
+
+        // Method to queue a reply and close the connection once it has been written
+        private void finish(ByteArrayOutputStream reply) throws IOException {
+            queue(reply);
+            state = State.CLOSING;
+            flush();
+        }
+
+        // Method to queue reply bytes for writing
+        private void queue(ByteArrayOutputStream reply) {
+            writes.add(ByteBuffer.wrap(reply.toByteArray()));
+        }
+
+        // Method to write as much pending data as the socket accepts
+        private void flush() throws IOException {
+            while (!writes.isEmpty()) {
+                ByteBuffer buffer = writes.peek();
+                ServerMetrics.addBytesOut(channel.write(buffer));
+                if (buffer.hasRemaining()) return;
+                writes.poll();
+            }
+            if (state == State.SENDING_FILE) {
+                if (source instanceof FileChannel) {
+                    // Zero-copy until the socket send buffer is full
+                    FileChannel fileChannel = (FileChannel) source;
+                    while (position < fileSize) {
+                        long allowed = throttle.tryTake(fileSize - position);
+                        if (allowed == 0) {
+                            pause();
+                            return;
+                        }
+                        long sent = fileChannel.transferTo(position, allowed, channel);
+                        throttle.giveBack(allowed - sent);
+                        if (sent == 0) {
+                            if (position >= fileChannel.size()) {
+                                throw new EOFException("File shrank while sending: " + fileName);
+                            }
+                            return;
+                        }
+                        position += sent;
+                        ServerMetrics.addBytesOut(sent);
+                    }
+                } else {
+                    // Refill the staging buffer whenever the socket has taken all of it
+                    while (position < fileSize || sourceBuffer.hasRemaining()) {
+                        if (!sourceBuffer.hasRemaining()) {
+                            sourceBuffer.clear();
+                            if (fileSize - position < sourceBuffer.capacity()) {
+                                sourceBuffer.limit((int) (fileSize - position));
+                            }
+                            int bytesRead = TransferEngine.read(source, sourceBuffer, position);
+                            if (bytesRead < 0) {
+                                throw new EOFException("File shrank while sending: " + fileName);
+                            }
+                            position += bytesRead;
+                            sourceBuffer.flip();
+                        }
+                        int allowed = (int) throttle.tryTake(sourceBuffer.remaining());
+                        if (allowed == 0) {
+                            pause();
+                            return;
+                        }
+                        int limit = sourceBuffer.limit();
+                        sourceBuffer.limit(sourceBuffer.position() + allowed);
+                        int sent = channel.write(sourceBuffer);
+                        sourceBuffer.limit(limit);
+                        throttle.giveBack(allowed - sent);
+                        ServerMetrics.addBytesOut(sent);
+                        if (sourceBuffer.hasRemaining()) return;
+                    }
+                }
+                ServerLog.debug("File sent: %s", fileName);
+                completed = true;
+                close();
+            } else if (state == State.CLOSING) {
+                completed = true;
+                close();
+            }
+        }
+
+        // Method to stop moving file data until the rate limits allow more bytes
+        private void pause() {
+            if (!paused) loop.paused.add(this);
+            paused = true;
+            resumeAt = System.nanoTime() + throttle.nanosUntilAvailable();
+        }
+
+        // Method to continue a paused transfer
+        void resume() throws IOException {
+            paused = false;
+            if (state == State.SENDING_FILE) flush();
+            updateInterest();
+        }
+
+        // Method to select the events this connection currently needs
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            int ops = 0;
+            if (state == State.READ_COMMAND || state == State.READ_UPLOAD_HEADER
+                    || state == State.READ_DOWNLOAD_HEADER || (state == State.RECEIVING_FILE && !paused)) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!writes.isEmpty() || (state == State.SENDING_FILE && !paused)) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        // Method to release the socket and any open file
+        void close() {
+            key.cancel();
+            if (paused) {
+                paused = false;
+                loop.paused.remove(this);
+            }
+            if (closed) return;
+            closed = true;
+            ServerMetrics.connectionClosed();
+            if (command != null) command.record(System.nanoTime() - commandStart, !completed);
+            try {
+                if (source != null) source.close();
+                // Nothing can resume a plain UPLOAD, so what arrived is dropped
+                if (upload != null) PartialUploads.abort(upload);
+            } catch (IOException e) {
+                ServerLog.error("Failed to release the files of a connection", e);
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.error("Failed to close a connection", e);
+            }
+        }
+    }
+}
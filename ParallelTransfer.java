@@ -0,0 +1,392 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+// Splits large files into byte ranges and moves them over several pooled connections at once.
+// Interrupted transfers resume from what already arrived: uploads from the ranges the server
+// reports, downloads from the ranges saved next to the local .part file.
+// Every range carries a CRC32C and a range that fails it is sent again. The file's SHA-256 is
+// computed alongside and compared with the server's before the transfer counts as done.
+// Tunable with -Dtransfer.chunkSize=<bytes>, -Dtransfer.parallelism=<connections> and -Dtransfer.retries=<count>.
+public class ParallelTransfer {
+    static final int CHUNK_SIZE = Integer.getInteger("transfer.chunkSize", 8 * 1024 * 1024);
+    static final int PARALLELISM = Integer.getInteger("transfer.parallelism", 4);
+    static final int RETRIES = Integer.getInteger("transfer.retries", 3);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long RETRY_DELAY_MS = 1000;
+
+    // Receives the running byte count of a transfer, possibly from several threads, and messages about
+    // it. Clients print the messages; a server replicating its files logs them instead.
+    interface Progress {
+        void transferred(long bytes, long total);
+
+        // Method to report what a finished transfer did, e.g. how much of a file it had to send
+        default void finished(String summary) {
+            System.out.println(summary);
+        }
+
+        // Method to report that a transfer failed and will be tried again
+        default void retrying(String message) {
+            System.err.println(message);
+        }
+    }
+
+    // One attempt at a transfer
+    interface Attempt {
+        void run() throws IOException;
+    }
+
+    private ParallelTransfer() {
+    }
+
+    // Method to upload a file under a name as parallel ranges, resuming after connection failures
+    static void upload(final ConnectionPool pool, final File file, final String name, final Progress progress) throws IOException {
+        withRetries("Upload of " + name, progress, new Attempt() {
+            @Override
+            public void run() throws IOException {
+                try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+                    uploadMissingRanges(pool, fileChannel, name, file.lastModified(), Compression.worthCompressing(file),
+                            progress);
+                }
+            }
+        });
+    }
+
+    // Method to upload the contents of a channel, e.g. a file a server replicates from its storage, given the
+    // modification time of the version it holds
+    static void upload(final ConnectionPool pool, final SeekableByteChannel source, final String name,
+                       final long lastModified, final Progress progress) throws IOException {
+        final boolean compress = Compression.worthCompressing(name, source);
+        withRetries("Upload of " + name, progress, new Attempt() {
+            @Override
+            public void run() throws IOException {
+                uploadMissingRanges(pool, source, name, lastModified, compress, progress);
+            }
+        });
+    }
+
+    // Method to send every range the server does not have yet and commit the upload. The server only
+    // continues an upload of the same name, size and modification time, i.e. of this version of the file.
+    private static void uploadMissingRanges(final ConnectionPool pool, final SeekableByteChannel source, String name,
+                                            long lastModified, final boolean compress, final Progress progress)
+            throws IOException {
+        final long fileSize = source.size();
+        final String uploadId;
+        final RangeSet received;
+        try (MuxStream stream = pool.openStream();
+             DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("UPLOAD_RESUME");
+            dos.writeUTF(name);
+            dos.writeLong(fileSize);
+            dos.writeLong(lastModified);
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            uploadId = dis.readUTF();
+            dis.readLong(); // Committed offset; the range list below is more precise
+            received = RangeSet.read(dis);
+        }
+
+        final AtomicLong sent = new AtomicLong(received.total());
+        progress.transferred(sent.get(), fileSize);
+        final Checksums.StreamingDigest digest = new Checksums.StreamingDigest();
+        runChunks(fileSize, new ChunkTask() {
+            @Override
+            public void run(long offset, long length) throws IOException {
+                for (long[] gap : received.missing(offset, offset + length)) {
+                    uploadRange(pool, uploadId, source, gap[0], gap[1] - gap[0], compress, digest, sent, fileSize, progress);
+                    received.add(gap[0], gap[1]);
+                }
+                // Hash what was sent out of order once the ranges before it are done
+                digest.catchUp(source, received.contiguousLength());
+            }
+        });
+        byte[] fileDigest = digest.finish(source, fileSize);
+
+        try (MuxStream stream = pool.openStream();
+             DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("UPLOAD_COMMIT");
+            dos.writeUTF(uploadId);
+            dos.write(fileDigest);
+            String response = dis.readUTF();
+            if (Checksums.MISMATCH.equals(response)) {
+                // The server dropped the upload; a retry sends the file again
+                throw new IOException("Upload of " + name + " does not match its SHA-256 on the server");
+            } else if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+        }
+    }
+
+    // Method to send one range of the file to the server, followed by its CRC32C
+    private static void uploadRange(ConnectionPool pool, String uploadId, SeekableByteChannel source, long offset, long length,
+                                    boolean compress, Checksums.StreamingDigest digest, AtomicLong sent, long fileSize,
+                                    Progress progress) throws IOException {
+        try (Compression.Request stream = Compression.open(pool, compress);
+             DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("UPLOAD_RANGE");
+            dos.writeUTF(uploadId);
+            dos.writeLong(offset);
+            dos.writeLong(length);
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            Checksum crc = Checksums.newCrc();
+            long done = 0;
+            while (done < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, length - done));
+                int bytesRead = TransferEngine.read(source, buffer, offset + done);
+                if (bytesRead < 0) {
+                    throw new EOFException("File shrank during upload");
+                }
+                crc.update(buffer.array(), 0, bytesRead);
+                digest.update(buffer.array(), 0, bytesRead, offset + done);
+                dos.write(buffer.array(), 0, bytesRead);
+                done += bytesRead;
+                progress.transferred(sent.addAndGet(bytesRead), fileSize);
+            }
+            dos.writeInt((int) crc.getValue());
+            response = dis.readUTF();
+            if (Checksums.MISMATCH.equals(response)) {
+                // The server forgot the range; a retry sends it again
+                sent.addAndGet(-length);
+                throw new IOException("Range [" + offset + ", +" + length + ") was corrupted on the way to the server");
+            } else if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+        }
+    }
+
+    // Method to download a file as parallel ranges into a .part file, renamed when complete.
+    // The ranges already downloaded are kept in a .part.ranges file so a later attempt can resume.
+    static void download(final ConnectionPool pool, final String fileName, File outputFile,
+                         final Progress progress) throws IOException {
+        // A name with '/' is saved in the subdirectories it names
+        File parent = outputFile.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        final File partFile = new File(outputFile.getParentFile(), outputFile.getName() + ".part");
+        final File stateFile = new File(outputFile.getParentFile(), outputFile.getName() + ".part.ranges");
+        withRetries("Download of " + fileName, progress, new Attempt() {
+            @Override
+            public void run() throws IOException {
+                downloadMissingRanges(pool, fileName, partFile, stateFile, progress);
+            }
+        });
+        Files.move(partFile.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        stateFile.delete();
+    }
+
+    // Method to fetch every range not yet in the .part file and check the result against the server's SHA-256
+    private static void downloadMissingRanges(final ConnectionPool pool, final String fileName, File partFile,
+                                              final File stateFile, final Progress progress) throws IOException {
+        // A zero-length range just reports the file size and digest
+        final Download download = new Download(fileName);
+        downloadRange(pool, download, 0, 0, null, null, progress);
+        final long fileSize = download.fileSize;
+        final RangeSet received = loadState(stateFile, partFile, fileSize, download.expectedDigest);
+        download.done.set(received.total());
+        progress.transferred(download.done.get(), fileSize);
+        byte[] fileDigest;
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+            raf.setLength(fileSize);
+            final FileChannel fileChannel = raf.getChannel();
+            try {
+                runChunks(fileSize, new ChunkTask() {
+                    @Override
+                    public void run(long offset, long length) throws IOException {
+                        try {
+                            for (long[] gap : received.missing(offset, offset + length)) {
+                                downloadRange(pool, download, gap[0], gap[1] - gap[0], fileChannel, received, progress);
+                            }
+                            // Hash what arrived out of order once the ranges before it are done
+                            download.digest.catchUp(fileChannel, received.contiguousLength());
+                        } finally {
+                            saveState(stateFile, fileSize, download.expectedDigest, received);
+                        }
+                    }
+                });
+            } finally {
+                saveState(stateFile, fileSize, download.expectedDigest, received);
+            }
+            fileDigest = download.digest.finish(fileChannel, fileSize);
+        }
+        if (!MessageDigest.isEqual(fileDigest, download.expectedDigest)) {
+            // Nothing in the .part file can be trusted any more; a retry starts over
+            stateFile.delete();
+            partFile.delete();
+            throw new IOException("Download of " + fileName + " does not match its SHA-256 on the server");
+        }
+    }
+
+    // One file being downloaded: its size and SHA-256 as the server reported them, and the bytes
+    // and SHA-256 of what arrived, fed by every range
+    private static class Download {
+        final String fileName;
+        final AtomicLong done = new AtomicLong();
+        final Checksums.StreamingDigest digest = new Checksums.StreamingDigest();
+        volatile long fileSize;
+        volatile byte[] expectedDigest;
+
+        Download(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    // Method to fetch one range into the file at the same offset and check its CRC32C
+    private static void downloadRange(ConnectionPool pool, Download download, long offset, long length,
+                                      FileChannel fileChannel, RangeSet received, Progress progress) throws IOException {
+        String fileName = download.fileName;
+        // Compress ranges with data unless the name shows the file is already compressed
+        boolean compress = length > 0 && !Compression.isCompressedName(fileName);
+        try (Compression.Request stream = Compression.open(pool, compress);
+             DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("DOWNLOAD_RANGE");
+            dos.writeUTF(fileName);
+            dos.writeLong(offset);
+            dos.writeLong(length);
+            String response = dis.readUTF();
+            if ("ERROR: File not found".equals(response)) {
+                throw new FileNotFoundException("File not found on server.");
+            } else if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            long fileSize = dis.readLong();
+            long count = dis.readLong();
+            byte[] expectedDigest = Checksums.readDigest(dis);
+            if (download.expectedDigest == null) {
+                download.fileSize = fileSize;
+                download.expectedDigest = expectedDigest;
+            } else if (!MessageDigest.isEqual(expectedDigest, download.expectedDigest)) {
+                throw new IOException(fileName + " changed on the server during the download");
+            }
+            Checksum crc = Checksums.newCrc();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = offset;
+            while (position < offset + count) {
+                int bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, offset + count - position));
+                if (bytesRead < 0) {
+                    throw new EOFException("Connection closed after " + (position - offset) + " of " + count + " bytes");
+                }
+                crc.update(buffer, 0, bytesRead);
+                download.digest.update(buffer, 0, bytesRead, position);
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                while (data.hasRemaining()) {
+                    fileChannel.write(data, position + data.position());
+                }
+                // Record progress as it lands so an interrupted range is not fetched again
+                received.add(position, position + bytesRead);
+                position += bytesRead;
+                progress.transferred(download.done.addAndGet(bytesRead), fileSize);
+            }
+            if (dis.readInt() != (int) crc.getValue()) {
+                // Fetch the range again
+                received.remove(offset, offset + count);
+                download.done.addAndGet(-count);
+                download.digest.rewind(offset);
+                throw new IOException("Range [" + offset + ", +" + count + ") of " + fileName + " was corrupted on the way");
+            }
+        }
+    }
+
+    // Method to read the ranges of an earlier attempt, or start over if the file changed on the server
+    private static RangeSet loadState(File stateFile, File partFile, long fileSize, byte[] digest) {
+        if (stateFile.exists() && partFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+                if (in.readLong() == fileSize && MessageDigest.isEqual(Checksums.readDigest(in), digest)) {
+                    return RangeSet.read(in);
+                }
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable download state " + stateFile + ": " + e.getMessage());
+            }
+        }
+        return new RangeSet();
+    }
+
+    // Method to save the downloaded ranges next to the .part file
+    private static synchronized void saveState(File stateFile, long fileSize, byte[] digest, RangeSet received)
+            throws IOException {
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeLong(fileSize);
+            out.write(digest);
+            received.write(out);
+        }
+        Files.move(tempFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Method to repeat an attempt after connection failures, telling progress about each retry; server
+    // refusals are not retried
+    static void withRetries(String description, Progress progress, Attempt attempt) throws IOException {
+        for (int failures = 0; ; failures++) {
+            try {
+                attempt.run();
+                return;
+            } catch (ServerException | FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                if (failures >= RETRIES) throw e;
+                progress.retrying(description + " interrupted (" + e.getMessage() + "), resuming");
+                try {
+                    Thread.sleep(RETRY_DELAY_MS * (failures + 1));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    // One range of a chunked transfer
+    interface ChunkTask {
+        void run(long offset, long length) throws IOException;
+    }
+
+    // Method to run a task for every chunk of the given length, PARALLELISM at a time
+    private static void runChunks(long totalLength, final ChunkTask task) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(PARALLELISM);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (long offset = 0; offset < totalLength; offset += CHUNK_SIZE) {
+                final long chunkOffset = offset;
+                final long chunkLength = Math.min(CHUNK_SIZE, totalLength - offset);
+                futures.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        task.run(chunkOffset, chunkLength);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            // Stop the remaining chunks after the first failure
+            workers.shutdownNow();
+        }
+    }
+}
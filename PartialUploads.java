@@ -0,0 +1,501 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+// Uploads that arrive as byte ranges written in any order, kept under a temporary name until committed.
+// Each upload's received ranges are saved next to its data, so an interrupted upload can be resumed,
+// even after a server restart, instead of starting again from byte zero.
+// How received data reaches the disk is set with --fsync=none|close|periodic: none leaves it to the
+// operating system, close syncs every file before it is committed, and periodic syncs the uploads
+// in progress every --fsync-interval milliseconds, bounding what a crash can lose mid-upload.
+// An upload's file is only open while it is in use or was used within the last minute, so abandoned
+// uploads hold no file descriptors, and an upload left untouched for --upload-expiry hours is deleted.
+// Declared sizes above --max-file-size MB are refused before anything is preallocated.
+// UPLOAD_RESUME finds an upload by name, size and the version the client gives it (the source file's
+// modification time), so a different file of the same name and size starts over instead of landing on
+// old ranges. Plain UPLOAD and UPLOAD_BEGIN always begin an upload of their own, and a name another
+// client is still uploading is refused.
+public class PartialUploads {
+    // Temporary files live next to the storage directory so the final rename stays on one file system
+    static final String PARTIAL_DIR = FileServer.STORAGE_DIR + "_partial";
+    static final String FSYNC_NONE = "none";
+    static final String FSYNC_CLOSE = "close";
+    static final String FSYNC_PERIODIC = "periodic";
+    static final long DEFAULT_MAX_FILE_SIZE_MB = 100 * 1024;
+    static final long DEFAULT_EXPIRY_HOURS = 24;
+    // How long an upload nobody uses keeps its file open, and how often idle uploads are looked for
+    private static final long CLOSE_IDLE_MS = 60 * 1000;
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+    // An upload used this recently still belongs to its client, even between two of its ranges
+    private static final long ACTIVE_MS = 30 * 1000;
+    // Version of uploads that no UPLOAD_RESUME may continue
+    static final long NOT_RESUMABLE = Long.MIN_VALUE;
+
+    private static final Map<String, PartialUpload> uploads = new ConcurrentHashMap<String, PartialUpload>();
+    private static volatile String fsyncPolicy = FSYNC_NONE;
+    private static volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE_MB * 1024 * 1024;
+    private static volatile long expiryMs = TimeUnit.HOURS.toMillis(DEFAULT_EXPIRY_HOURS);
+
+    private PartialUploads() {
+    }
+
+    // Method to set the largest size an upload may declare and how long an untouched upload is kept
+    static void setLimits(long maxFileSizeBytes, long expiryMillis) {
+        maxFileSize = maxFileSizeBytes;
+        expiryMs = expiryMillis;
+    }
+
+    // Method to check the size an upload declares; returns the error to reply, or null
+    static String sizeError(long fileSize) {
+        if (fileSize < 0) {
+            return "ERROR: Invalid file size";
+        }
+        if (fileSize > maxFileSize) {
+            return "ERROR: File too large";
+        }
+        return null;
+    }
+
+    // Method to choose when received data is synced to disk; periodic starts a daemon thread that
+    // syncs every upload in progress each intervalMs
+    static void setFsyncPolicy(String policy, long intervalMs) {
+        if (FSYNC_CLOSE.equalsIgnoreCase(policy)) {
+            fsyncPolicy = FSYNC_CLOSE;
+        } else if (FSYNC_PERIODIC.equalsIgnoreCase(policy)) {
+            fsyncPolicy = FSYNC_PERIODIC;
+            ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, "upload-fsync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (PartialUpload upload : uploads.values()) {
+                        upload.sync();
+                    }
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        } else if (FSYNC_NONE.equalsIgnoreCase(policy)) {
+            fsyncPolicy = FSYNC_NONE;
+        } else {
+            ServerLog.warn("Unknown fsync policy %s, using %s", policy, fsyncPolicy);
+        }
+    }
+
+    // Method to sync a finished temporary file before it is committed, if the policy asks for it
+    static void syncOnClose(FileChannel channel) throws IOException {
+        if (fsyncPolicy == FSYNC_CLOSE) {
+            long start = System.nanoTime();
+            channel.force(true);
+            ServerMetrics.recordFsync(System.nanoTime() - start);
+        }
+    }
+
+    // Method to reload the uploads interrupted by a previous run of the server, and start looking for
+    // idle uploads once a minute
+    static void load() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "upload-sweep");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        File[] metaFiles = FileServer.dataFile(PARTIAL_DIR).listFiles();
+        if (metaFiles == null) return;
+        for (File metaFile : metaFiles) {
+            if (!metaFile.getName().endsWith(".meta")) continue;
+            String id = metaFile.getName().substring(0, metaFile.getName().length() - ".meta".length());
+            if (!new File(FileServer.dataFile(PARTIAL_DIR), id + ".part").exists()) {
+                metaFile.delete();
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(metaFile)))) {
+                String fileName = in.readUTF();
+                long fileSize = in.readLong();
+                RangeSet received = RangeSet.read(in);
+                long version = in.readLong();
+                // Files are opened once the upload is used again; until then its age counts from its last save
+                uploads.put(id, new PartialUpload(id, fileName, fileSize, version, received, metaFile.lastModified()));
+            } catch (IOException e) {
+                ServerLog.warn("Discarding unreadable partial upload %s: %s", id, e.getMessage());
+                metaFile.delete();
+                new File(FileServer.dataFile(PARTIAL_DIR), id + ".part").delete();
+            }
+        }
+        if (!uploads.isEmpty()) {
+            ServerLog.info("Resumable partial uploads: %d", uploads.size());
+        }
+    }
+
+    // Method to close the files of uploads nobody has used for a while, and delete those untouched past the expiry
+    private static void sweep() {
+        long now = System.currentTimeMillis();
+        for (PartialUpload upload : uploads.values()) {
+            if (upload.sweep(now)) {
+                discard(upload);
+                ServerLog.info("Expired partial upload of %s (%s)", upload.fileName, upload.id);
+            }
+        }
+    }
+
+    // Method to start an upload no UPLOAD_RESUME can continue, e.g. a plain UPLOAD; its temporary file is
+    // preallocated when it is first written
+    static PartialUpload begin(String fileName, long fileSize) throws IOException {
+        return begin(fileName, fileSize, NOT_RESUMABLE);
+    }
+
+    // Method to start an upload of one version of a file, refusing a name another client is uploading
+    private static PartialUpload begin(String fileName, long fileSize, long version) throws IOException {
+        String error = sizeError(fileSize);
+        if (error != null) {
+            throw new IOException(error.substring("ERROR: ".length()));
+        }
+        synchronized (uploads) {
+            long now = System.currentTimeMillis();
+            for (PartialUpload upload : uploads.values()) {
+                if (upload.fileName.equals(fileName) && upload.isActive(now)) {
+                    throw new IOException("File is being uploaded");
+                }
+            }
+            File partialDir = FileServer.dataFile(PARTIAL_DIR);
+            if (!partialDir.exists()) partialDir.mkdirs();
+            PartialUpload upload = new PartialUpload(UUID.randomUUID().toString(), fileName, fileSize, version,
+                    new RangeSet(), now);
+            upload.saveState();
+            uploads.put(upload.id, upload);
+            return upload;
+        }
+    }
+
+    // Method to continue the partial upload of the same name, size and version, or begin a new one.
+    // Idle uploads of other versions of the name are dropped, as they can never be committed now.
+    static PartialUpload resume(String fileName, long fileSize, long version) throws IOException {
+        synchronized (uploads) {
+            long now = System.currentTimeMillis();
+            for (PartialUpload upload : uploads.values()) {
+                if (!upload.fileName.equals(fileName)) continue;
+                if (upload.fileSize == fileSize && upload.version == version && version != NOT_RESUMABLE) {
+                    return upload;
+                }
+                if (!upload.isActive(now)) discard(upload);
+            }
+            return begin(fileName, fileSize, version);
+        }
+    }
+
+    // Method to drop an upload that cannot be resumed after it failed
+    static void abort(PartialUpload upload) {
+        discard(upload);
+    }
+
+    // Method to look up an upload in progress
+    static PartialUpload get(String id) {
+        return uploads.get(id);
+    }
+
+    // Method to hand a fully received upload to the storage backend
+    static void commit(String id) throws IOException {
+        commit(id, null, false);
+    }
+
+    // Method to hand a fully received upload to the storage backend once its SHA-256 matches the
+    // client's; a null expected digest skips the check. The digest is kept for later downloads.
+    // With keepVersionTime the stored file's modification time is the upload's version, as a peer sends it.
+    static void commit(String id, byte[] expectedDigest, boolean keepVersionTime) throws IOException {
+        PartialUpload upload = uploads.get(id);
+        if (upload == null) {
+            throw new IOException("Unknown upload");
+        }
+        if (!upload.isComplete()) {
+            throw new IOException("Upload incomplete: received " + upload.received.total()
+                    + " of " + upload.fileSize + " bytes");
+        }
+        byte[] digest;
+        FileChannel channel = upload.retain();
+        try {
+            digest = upload.digest.finish(channel, upload.fileSize);
+            if (expectedDigest != null && !MessageDigest.isEqual(digest, expectedDigest)) {
+                // Some range went wrong without its CRC noticing; the client starts over
+                discard(upload);
+                throw new IOException("Checksum mismatch");
+            }
+            syncOnClose(channel);
+        } finally {
+            upload.release();
+        }
+        upload.closeFile();
+        if (keepVersionTime && upload.version != NOT_RESUMABLE) {
+            upload.tempFile.setLastModified(upload.version);
+        }
+        try {
+            // The backend refuses names that are taken, so two uploads cannot claim one name
+            FileServer.storage.commit(upload.fileName, upload.tempFile);
+        } catch (FileAlreadyExistsException e) {
+            discard(upload);
+            throw new IOException("File already exists on the server.");
+        }
+        upload.close();
+        uploads.remove(id);
+        upload.metaFile.delete();
+        FileDigests.put(upload.fileName, digest);
+    }
+
+    // Method to drop an upload and its temporary files
+    private static void discard(PartialUpload upload) {
+        upload.close();
+        uploads.remove(upload.id);
+        upload.tempFile.delete();
+        upload.metaFile.delete();
+    }
+
+    // One ranged upload and the byte ranges received so far
+    static class PartialUpload {
+        private final String id;
+        private final String fileName;
+        private final long fileSize;
+        private final long version;
+        private final File tempFile;
+        private final File metaFile;
+        private final RangeSet received;
+        // SHA-256 of the data, computed as ranges land; starts over from the file after a restart
+        private final Checksums.StreamingDigest digest = new Checksums.StreamingDigest();
+        // The temporary file, null while the idle sweep has it closed; guarded by this
+        private FileChannel channel;
+        // Requests using the upload right now, and whether it was committed or dropped; guarded by this
+        private int users;
+        private boolean closed;
+        private volatile long lastUsed;
+
+        PartialUpload(String id, String fileName, long fileSize, long version, RangeSet received, long lastUsed) {
+            this.id = id;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.version = version;
+            this.tempFile = new File(FileServer.dataFile(PARTIAL_DIR), id + ".part");
+            this.metaFile = new File(FileServer.dataFile(PARTIAL_DIR), id + ".meta");
+            this.received = received;
+            this.lastUsed = lastUsed;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        long getFileSize() {
+            return fileSize;
+        }
+
+        RangeSet getReceived() {
+            return received;
+        }
+
+        // Method to mark the upload in use and get its file, opened and preallocated if needed; every
+        // call must be paired with release()
+        synchronized FileChannel retain() throws IOException {
+            if (closed) {
+                throw new IOException("Unknown upload");
+            }
+            if (channel == null) {
+                RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+                try {
+                    // Preallocate so chunks can be written at their offsets in any order
+                    if (file.length() != fileSize) file.setLength(fileSize);
+                } catch (IOException e) {
+                    file.close();
+                    throw e;
+                }
+                channel = file.getChannel();
+            }
+            users++;
+            lastUsed = System.currentTimeMillis();
+            return channel;
+        }
+
+        // Method to mark one use of the upload as over
+        synchronized void release() {
+            if (users > 0) users--;
+            lastUsed = System.currentTimeMillis();
+        }
+
+        // Method to check whether a client is using the upload, or used it moments ago
+        synchronized boolean isActive(long now) {
+            return !closed && (users > 0 || now - lastUsed < ACTIVE_MS);
+        }
+
+        // Method to close the file now if nobody is using it, rather than when the idle sweep gets to it
+        synchronized void closeFile() {
+            if (users > 0 || channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                ServerLog.warn("Failed to close partial upload %s: %s", id, e.getMessage());
+            }
+            channel = null;
+        }
+
+        // Method to close the file for good once the upload was committed or dropped
+        synchronized void close() {
+            closed = true;
+            users = 0;
+            closeFile();
+        }
+
+        // Method to close the file if nobody has used the upload for a while; returns true when it has
+        // been untouched past the expiry and is closed for good, to be deleted
+        synchronized boolean sweep(long now) {
+            if (users > 0 || closed) return false;
+            if (now - lastUsed >= expiryMs) {
+                close();
+                return true;
+            }
+            if (now - lastUsed >= CLOSE_IDLE_MS) closeFile();
+            return false;
+        }
+
+        // Method to copy one range from the client into the file at its offset, through a pooled direct buffer.
+        // Socket reads are gathered until the buffer is full, so the disk sees a few large writes.
+        // Progress is recorded as it lands, so a broken connection keeps what already arrived.
+        // Returns the CRC32C of the range.
+        int receive(ReadableByteChannel in, long offset, long length) throws IOException {
+            FileChannel channel = retain();
+            ByteBuffer buffer = BufferPool.acquire();
+            Checksum crc = Checksums.newCrc();
+            long written = 0;
+            try {
+                while (written < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - written));
+                    IOException failure = null;
+                    try {
+                        while (buffer.hasRemaining()) {
+                            if (in.read(buffer) < 0) {
+                                throw new EOFException("Range ended after " + (written + buffer.position())
+                                        + " of " + length + " bytes");
+                            }
+                        }
+                    } catch (IOException e) {
+                        // Keep the bytes that did arrive before the connection failed
+                        failure = e;
+                    }
+                    buffer.flip();
+                    int count = buffer.remaining();
+                    crc.update(buffer.duplicate());
+                    write(buffer, offset + written);
+                    written += count;
+                    if (failure != null) throw failure;
+                }
+                // Hash ranges that arrived ahead of the hashed prefix once the gap before them is filled
+                digest.catchUp(channel, received.contiguousLength());
+            } finally {
+                BufferPool.release(buffer);
+                try {
+                    saveState();
+                } finally {
+                    release();
+                }
+            }
+            return (int) crc.getValue();
+        }
+
+        // Method to forget a range that failed its checksum, so the client sends it again
+        void discard(long offset, long length) throws IOException {
+            received.remove(offset, offset + length);
+            digest.rewind(offset);
+            saveState();
+        }
+
+        // Method to write bytes at a position and record them as received; the caller holds retain()
+        void write(ByteBuffer data, long position) throws IOException {
+            FileChannel channel;
+            synchronized (this) {
+                channel = this.channel;
+            }
+            digest.update(data, position);
+            long start = position;
+            long writeStart = System.nanoTime();
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+            ServerMetrics.recordDiskWrite(System.nanoTime() - writeStart);
+            received.add(start, position);
+        }
+
+        // Method to open the temporary file for the async engine, which writes without waiting on the disk.
+        // This counts as a use of the upload: call release() once the channel is closed.
+        AsynchronousFileChannel openAsync() throws IOException {
+            retain();
+            try {
+                return AsynchronousFileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                release();
+                throw e;
+            }
+        }
+
+        // Method to record bytes an asynchronous write has put at a position; data must still hold them
+        void written(ByteBuffer data, long position) {
+            digest.update(data, position);
+            received.add(position, position + data.remaining());
+        }
+
+        // Method to push the data written so far to disk, for the periodic fsync policy
+        void sync() {
+            FileChannel channel;
+            synchronized (this) {
+                channel = this.channel;
+            }
+            if (channel == null) return;
+            try {
+                long start = System.nanoTime();
+                channel.force(false);
+                ServerMetrics.recordFsync(System.nanoTime() - start);
+            } catch (IOException e) {
+                // The upload was committed or closed in the meantime; nothing left to sync
+            }
+        }
+
+        // Method to check whether every byte of the file has arrived
+        boolean isComplete() {
+            return received.total() == fileSize;
+        }
+
+        // Method to save the name, size, received ranges and version so the upload survives a restart
+        synchronized void saveState() throws IOException {
+            // A committed or dropped upload has no state left to save
+            if (closed) return;
+            File tempMeta = new File(FileServer.dataFile(PARTIAL_DIR), id + ".meta.tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempMeta)))) {
+                out.writeUTF(fileName);
+                out.writeLong(fileSize);
+                received.write(out);
+                out.writeLong(version);
+            }
+            Files.move(tempMeta.toPath(), metaFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.swing.JProgressBar;
+import javax.swing.Timer;
+import javax.swing.table.DefaultTableModel;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+// Shows the progress of every running transfer in the client's table.
+// Transfer threads only store their byte counts; a Swing timer samples all running transfers a few
+// times a second and updates their rows in one pass on the event dispatch thread, however fast the
+// bytes arrive. Each row shows its percentage, a smoothed rate in MB/s and the time left, and the
+// progress bar shows all running transfers together.
+public class ProgressTracker {
+    private static final int REFRESH_MS = 200;
+    // Weight of the newest sample in the smoothed rate
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final DefaultTableModel model;
+    private final JProgressBar progressBar;
+    private final int progressColumn;
+    private final int rateColumn;
+    private final int etaColumn;
+    private final Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+
+    // The byte counts of one transfer, written by any thread and read by the timer
+    class Transfer implements ParallelTransfer.Progress {
+        private final String fileName;
+        private volatile long bytes;
+        private volatile long total = -1;
+        private volatile boolean finished;
+
+        // Sampling state, only used on the event dispatch thread
+        private boolean sampled;
+        private long lastBytes;
+        private long lastTime;
+        private double rate;
+        private int rowHint = -1;
+
+        Transfer(String fileName) {
+            this.fileName = fileName;
+        }
+
+        @Override
+        public void transferred(long bytes, long total) {
+            this.bytes = bytes;
+            this.total = total;
+        }
+
+        // Method to stop tracking once the transfer ended; its row is cleared on the next tick
+        void finish() {
+            finished = true;
+        }
+    }
+
+    public ProgressTracker(DefaultTableModel model, JProgressBar progressBar, int progressColumn, int rateColumn, int etaColumn) {
+        this.model = model;
+        this.progressBar = progressBar;
+        this.progressColumn = progressColumn;
+        this.rateColumn = rateColumn;
+        this.etaColumn = etaColumn;
+        Timer timer = new Timer(REFRESH_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+        timer.start();
+    }
+
+    // Method to start tracking a transfer of the named file; call finish() on it when it ends
+    Transfer start(String fileName) {
+        Transfer transfer = new Transfer(fileName);
+        transfers.add(transfer);
+        return transfer;
+    }
+
+    // Method to update every tracked row and the progress bar, on the event dispatch thread
+    private void refresh() {
+        if (transfers.isEmpty()) return;
+        long now = System.nanoTime();
+        long allBytes = 0;
+        long allTotal = 0;
+        for (Transfer transfer : transfers) {
+            boolean finished = transfer.finished;
+            long bytes = transfer.bytes;
+            long total = transfer.total;
+            int rowIndex = findRow(transfer);
+            if (finished) {
+                transfers.remove(transfer);
+                if (rowIndex != -1) {
+                    model.setValueAt("", rowIndex, rateColumn);
+                    model.setValueAt("", rowIndex, etaColumn);
+                }
+                continue;
+            }
+            if (total < 0) continue;
+            if (transfer.sampled) {
+                // Bytes a resumed transfer already had before its first sample do not count towards the rate
+                double sample = (bytes - transfer.lastBytes) / ((now - transfer.lastTime) / 1e9);
+                transfer.rate = transfer.rate == 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * transfer.rate;
+            }
+            transfer.sampled = true;
+            transfer.lastBytes = bytes;
+            transfer.lastTime = now;
+            allBytes += bytes;
+            allTotal += total;
+            if (rowIndex == -1) continue;
+            int percent = total == 0 ? 100 : (int) (bytes * 100 / total);
+            model.setValueAt(percent + "%", rowIndex, progressColumn);
+            model.setValueAt(String.format("%.1f MB/s", transfer.rate / (1024 * 1024)), rowIndex, rateColumn);
+            model.setValueAt(formatEta(total - bytes, transfer.rate), rowIndex, etaColumn);
+        }
+        if (allTotal > 0) {
+            progressBar.setValue((int) (allBytes * 100 / allTotal));
+        }
+    }
+
+    // Method to find a transfer's row, checking the row it was last seen in first
+    private int findRow(Transfer transfer) {
+        int hint = transfer.rowHint;
+        if (hint >= 0 && hint < model.getRowCount() && transfer.fileName.equals(model.getValueAt(hint, 0))) {
+            return hint;
+        }
+        transfer.rowHint = -1;
+        for (int i = 0; i < model.getRowCount(); i++) {
+            if (transfer.fileName.equals(model.getValueAt(i, 0))) {
+                transfer.rowHint = i;
+                break;
+            }
+        }
+        return transfer.rowHint;
+    }
+
+    // Method to show the time left at the current rate as m:ss or h:mm:ss
+    private static String formatEta(long remaining, double rate) {
+        if (remaining <= 0) return "0:00";
+        if (rate < 1) return "";
+        long seconds = (long) Math.ceil(remaining / rate);
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+}
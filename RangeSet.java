@@ -0,0 +1,97 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Byte ranges [start, end) of a file that have been transferred, merged so they never overlap
+public class RangeSet {
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+
+    // Method to record a range, merging it with its neighbours
+    public synchronized void add(long start, long end) {
+        if (end <= start) return;
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+    }
+
+    // Method to forget a range, splitting any recorded range it cuts through
+    public synchronized void remove(long start, long end) {
+        if (end <= start) return;
+        Map.Entry<Long, Long> before = ranges.lowerEntry(start);
+        if (before != null && before.getValue() > start) {
+            ranges.put(before.getKey(), start);
+            if (before.getValue() > end) ranges.put(end, before.getValue());
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() < end) {
+            ranges.remove(next.getKey());
+            if (next.getValue() > end) ranges.put(end, next.getValue());
+            next = ranges.ceilingEntry(start);
+        }
+    }
+
+    // Method to count the distinct bytes recorded
+    public synchronized long total() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    // Method to find how far the bytes from offset 0 are complete without a gap
+    public synchronized long contiguousLength() {
+        Map.Entry<Long, Long> first = ranges.firstEntry();
+        return first != null && first.getKey() == 0 ? first.getValue() : 0;
+    }
+
+    // Method to list the parts of [start, end) that have not been recorded yet
+    public synchronized List<long[]> missing(long start, long end) {
+        List<long[]> gaps = new ArrayList<long[]>();
+        long position = start;
+        Map.Entry<Long, Long> before = ranges.floorEntry(start);
+        if (before != null && before.getValue() > position) {
+            position = before.getValue();
+        }
+        for (Map.Entry<Long, Long> range : ranges.subMap(start, true, end, false).entrySet()) {
+            if (range.getKey() > position) {
+                gaps.add(new long[]{position, range.getKey()});
+            }
+            position = Math.max(position, range.getValue());
+        }
+        if (position < end) {
+            gaps.add(new long[]{position, end});
+        }
+        return gaps;
+    }
+
+    // Method to write the ranges as a count followed by start/end pairs
+    public synchronized void write(DataOutputStream out) throws IOException {
+        out.writeInt(ranges.size());
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            out.writeLong(range.getKey());
+            out.writeLong(range.getValue());
+        }
+    }
+
+    // Method to read ranges written by write
+    public static RangeSet read(DataInputStream in) throws IOException {
+        RangeSet set = new RangeSet();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            set.add(in.readLong(), in.readLong());
+        }
+        return set;
+    }
+}
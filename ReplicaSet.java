@@ -0,0 +1,153 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Spreads a client's downloads and listings over the servers of a replicating cluster.
+// Each server has its own pool of connections. A read goes to the server expected to answer first:
+// the one with the least requests in flight, weighted by its recent latency, which a background
+// probe measures every few seconds with a one-entry LIST_PAGE. A server that fails is left out until
+// the probe reaches it again. Uploads still go to the first server, which replicates them, so a file
+// a replica does not have yet is looked for there as well.
+public class ReplicaSet implements Closeable {
+    private static final long PROBE_INTERVAL_MS = 2000;
+    // Weight of each new latency sample in the moving average
+    private static final double SMOOTHING = 0.3;
+
+    private final List<Replica> replicas = new ArrayList<Replica>();
+    private final Thread prober;
+
+    // One read, run against whichever server was picked
+    interface Read<T> {
+        T read(ConnectionPool pool) throws IOException;
+    }
+
+    // One server, its load and its latency
+    private static class Replica {
+        final String address;
+        final ConnectionPool pool;
+        final AtomicInteger inFlight = new AtomicInteger();
+        // Moving average of the probe's round trip; 0 until the first probe
+        volatile double latencyNanos;
+        // False until the first probe answers, so reads start out on the first server
+        volatile boolean up;
+
+        Replica(String address, ConnectionPool pool) {
+            this.address = address;
+            this.pool = pool;
+        }
+
+        // Method to estimate how long a new request would take here, in the latency's units
+        double expectedWait() {
+            return (inFlight.get() + 1) * Math.max(latencyNanos, 1);
+        }
+    }
+
+    // The first server is the one writes go to, and uses its pool; the others are host:port addresses
+    ReplicaSet(String host, int port, ConnectionPool primary, List<String> addresses, int maxConnections) {
+        replicas.add(new Replica(host + ":" + port, primary));
+        for (String address : addresses) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected host:port: " + address);
+            }
+            int replicaPort = Integer.parseInt(address.substring(colon + 1));
+            replicas.add(new Replica(address, new ConnectionPool(address.substring(0, colon), replicaPort, maxConnections)));
+        }
+        prober = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    for (Replica replica : replicas) {
+                        probe(replica);
+                    }
+                    try {
+                        Thread.sleep(PROBE_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "replica-probe");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    // Method to run a read on the server expected to answer first, moving on to the next one when a
+    // server cannot be reached, which progress hears about. A file not found on a replica is looked for
+    // on the first server too.
+    <T> T read(Read<T> read, ParallelTransfer.Progress progress) throws IOException {
+        List<Replica> tried = new ArrayList<Replica>();
+        while (true) {
+            Replica replica = pick(tried);
+            tried.add(replica);
+            replica.inFlight.incrementAndGet();
+            try {
+                return read.read(replica.pool);
+            } catch (FileNotFoundException e) {
+                if (replica == replicas.get(0) || tried.contains(replicas.get(0))) throw e;
+                tried.clear();
+                tried.addAll(replicas.subList(1, replicas.size()));
+            } catch (ServerException e) {
+                throw e;
+            } catch (IOException e) {
+                replica.up = false;
+                if (tried.size() == replicas.size()) throw e;
+                progress.retrying("Replica " + replica.address + " failed (" + e.getMessage() + "), trying another");
+            } finally {
+                replica.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    // Method to pick the untried server with the shortest expected wait, preferring those that are up
+    private Replica pick(List<Replica> tried) {
+        Replica best = null;
+        for (Replica replica : replicas) {
+            if (tried.contains(replica)) continue;
+            if (best == null || (replica.up && !best.up)
+                    || (replica.up == best.up && replica.expectedWait() < best.expectedWait())) {
+                best = replica;
+            }
+        }
+        return best;
+    }
+
+    // Method to time a minimal request to a server and fold it into its latency
+    private void probe(Replica replica) {
+        long start = System.nanoTime();
+        try (MuxStream stream = replica.pool.openStream();
+             DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("LIST_PAGE");
+            dos.writeUTF("");
+            dos.writeUTF("");
+            dos.writeInt(1);
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            for (int i = dis.readInt(); i > 0; i--) {
+                dis.readUTF();
+                dis.readLong();
+                dis.readLong();
+            }
+            dis.readUTF();
+            long elapsed = System.nanoTime() - start;
+            replica.latencyNanos = replica.latencyNanos == 0
+                    ? elapsed : replica.latencyNanos + SMOOTHING * (elapsed - replica.latencyNanos);
+            replica.up = true;
+        } catch (IOException e) {
+            replica.up = false;
+        }
+    }
+
+    // Method to stop probing and close the replicas' connections; the first server's pool belongs to the caller
+    @Override
+    public void close() {
+        prober.interrupt();
+        for (Replica replica : replicas.subList(1, replicas.size())) {
+            replica.pool.close();
+        }
+    }
+}
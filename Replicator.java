@@ -0,0 +1,340 @@
+import java.io.*;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Keeps the servers of a cluster holding the same files. Each server is started with the others in
+// --peers=host:port,... and follows its own ChangeFeed: every file added or updated here is passed on
+// to each peer in the background, with the same ranged uploads and delta syncs clients use, over a
+// PEER_SESSION pool per peer. Changes a server received from a peer are not passed on again, so
+// every server must list all the others, and replication never loops.
+// A name the peer lacks is uploaded. A copy the peer already has is only replaced by a newer one:
+// if this server's copy was modified later and its SHA-256 differs, the peer's is synced, so a
+// server coming back with old versions cannot overwrite the newer ones its peers received meanwhile.
+// Replicated copies keep the origin's modification time, so a copy that arrives late still compares
+// by when its version was made. This compares modification times, so the servers' clocks have to agree.
+// A peer that was unreachable, or fell too far behind, is caught up from its full listing once it
+// answers again. Every server remembers when its files were last cleared (its clear epoch). A peer
+// that missed a CLEAR is cleared before it is caught up, and files made before the later of the two
+// epochs are not sent, so a catch-up never brings cleared files back. Other deletions are not replicated.
+public class Replicator implements ChangeFeed.Listener {
+    // Changes waiting for one peer; beyond this the peer is caught up by a full check instead
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final long RETRY_DELAY_MS = 2000;
+    // Sends what the transfers to peers have to say to the server log
+    private static final ParallelTransfer.Progress LOGGED = new ParallelTransfer.Progress() {
+        @Override
+        public void transferred(long bytes, long total) {
+        }
+
+        @Override
+        public void finished(String summary) {
+            ServerLog.debug("%s", summary);
+        }
+
+        @Override
+        public void retrying(String message) {
+            ServerLog.warn("%s", message);
+        }
+    };
+    // File holding the clear epoch: when the last CLEAR was made, on whichever server it was made
+    static final String CLEAR_EPOCH_FILE = "server_cleared_at";
+    // The clear epoch, or -1 until it is read from CLEAR_EPOCH_FILE; guarded by Replicator.class
+    private static long clearEpoch = -1;
+    // True on threads serving a request that came from a peer
+    private static final ThreadLocal<Boolean> servingPeer = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return false;
+        }
+    };
+
+    private final List<Peer> peers;
+
+    private Replicator(List<Peer> peers) {
+        this.peers = peers;
+    }
+
+    // Method to start replicating every change of the file index to the given host:port addresses
+    static void start(String[] addresses) {
+        List<Peer> peers = new ArrayList<Peer>();
+        for (String address : addresses) {
+            address = address.trim();
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                ServerLog.error("Ignoring peer %s: expected host:port", address);
+                continue;
+            }
+            try {
+                peers.add(new Peer(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                ServerLog.error("Ignoring peer %s: expected host:port", address);
+            }
+        }
+        if (peers.isEmpty()) return;
+        FileServer.fileIndex.getChangeFeed().addListener(new Replicator(peers));
+        for (Peer peer : peers) {
+            Thread thread = new Thread(peer, "replicator-" + peer.address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        ServerLog.info("Replicating to %d peers", peers.size());
+    }
+
+    // Method to get when the files were last cleared, or 0 if they never were
+    static synchronized long clearEpoch() throws IOException {
+        if (clearEpoch < 0) {
+            File file = FileServer.dataFile(CLEAR_EPOCH_FILE);
+            clearEpoch = file.exists()
+                    ? Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim())
+                    : 0;
+        }
+        return clearEpoch;
+    }
+
+    // Method to record a CLEAR made at the given time; returns false if a later one was recorded already
+    static synchronized boolean recordClear(long epoch) throws IOException {
+        if (epoch <= clearEpoch()) return false;
+        File file = FileServer.dataFile(CLEAR_EPOCH_FILE);
+        File tempFile = FileServer.dataFile(CLEAR_EPOCH_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write((epoch + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.getChannel().force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        clearEpoch = epoch;
+        return true;
+    }
+
+    // Method to mark the current thread as serving a peer's request, or no longer serving one
+    static void setServingPeer(boolean serving) {
+        servingPeer.set(serving);
+    }
+
+    @Override
+    public void subscribed() {
+        // Whatever changed before now is found by each peer's first full check
+        for (Peer peer : peers) {
+            peer.resync = true;
+        }
+    }
+
+    @Override
+    public void changed(ChangeFeed.Event event) {
+        if (servingPeer.get() || event.type == ChangeFeed.REMOVED) return;
+        for (Peer peer : peers) {
+            peer.offer(event);
+        }
+    }
+
+    // One peer and the changes still to be sent to it, sent in order on a thread of its own
+    private static class Peer implements Runnable {
+        final String address;
+        final ConnectionPool pool;
+        final BlockingQueue<ChangeFeed.Event> queue = new LinkedBlockingQueue<ChangeFeed.Event>(QUEUE_CAPACITY);
+        // Set when changes may have been missed; every stored file is checked before following the queue again
+        volatile boolean resync = true;
+        // Whether the last attempt reached the peer, so an outage is only logged once
+        private boolean reachable = true;
+
+        Peer(String host, int port) {
+            this.address = host + ":" + port;
+            this.pool = new ConnectionPool(host, port, ParallelTransfer.PARALLELISM, "PEER_SESSION");
+        }
+
+        // Method to queue a change without blocking the thread that made it
+        void offer(ChangeFeed.Event event) {
+            if (!queue.offer(event)) resync = true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (resync) {
+                        resync = false;
+                        // The full check covers everything queued so far
+                        queue.clear();
+                        catchUp();
+                    }
+                    ChangeFeed.Event event = queue.take();
+                    if (event.type == ChangeFeed.CLEARED) {
+                        clear(clearEpoch());
+                    } else {
+                        push(event.name, peerStat(event.name));
+                    }
+                    if (!reachable) {
+                        reachable = true;
+                        ServerLog.info("Replicating to %s again", address);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    // The peer is down or the connection broke; check everything once it is back
+                    if (reachable) {
+                        reachable = false;
+                        ServerLog.warn("Cannot replicate to %s: %s", address, e.getMessage());
+                    }
+                    resync = true;
+                    try {
+                        Thread.sleep(RETRY_DELAY_MS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Method to send the peer every stored file it lacks or has an older version of. A peer that
+        // missed a CLEAR is cleared first; files made before a CLEAR the peer had and this server missed
+        // are left out, and go once the peer catches this server up in turn.
+        private void catchUp() throws IOException {
+            long epoch = clearEpoch();
+            long peerEpoch = peerClearEpoch();
+            if (peerEpoch < epoch) {
+                clear(epoch);
+            }
+            long cutoff = Math.max(epoch, peerEpoch);
+
+            Map<String, Storage.FileInfo> peerFiles = new HashMap<String, Storage.FileInfo>();
+            String cursor = "";
+            do {
+                FileIndex.Page page = peerPage("", cursor, FileIndex.MAX_PAGE_SIZE);
+                for (Storage.FileInfo info : page.files) {
+                    peerFiles.put(info.name, info);
+                }
+                cursor = page.nextCursor;
+            } while (!cursor.isEmpty());
+
+            int checked = 0;
+            cursor = "";
+            do {
+                FileIndex.Page page = FileServer.fileIndex.page("", cursor, FileIndex.MAX_PAGE_SIZE);
+                for (Storage.FileInfo info : page.files) {
+                    if (info.lastModified < cutoff) continue;
+                    push(info.name, peerFiles.get(info.name));
+                    checked++;
+                }
+                cursor = page.nextCursor;
+            } while (!cursor.isEmpty());
+            ServerLog.debug("Checked %d files against %s", checked, address);
+        }
+
+        // Method to bring the peer's copy of a stored file up to date, given the peer's size and time of
+        // it, or null if it has none. Refusals, e.g. because a client uploaded the same name to the
+        // peer in the meantime, only skip the file.
+        private void push(String name, Storage.FileInfo peerInfo) throws IOException {
+            Storage.FileInfo info = FileServer.storage.stat(name);
+            if (info == null || (peerInfo != null && peerInfo.lastModified >= info.lastModified)) return;
+            SeekableByteChannel source = FileServer.storage.openRead(name);
+            if (source == null) return;
+            try (SeekableByteChannel channel = source) {
+                if (peerInfo == null) {
+                    ParallelTransfer.upload(pool, channel, name, info.lastModified, LOGGED);
+                    ServerLog.debug("Replicated %s to %s", name, address);
+                    return;
+                }
+                byte[] digest = FileDigests.get(name);
+                byte[] peerDigest = peerDigest(name);
+                if (digest != null && peerDigest != null && !MessageDigest.isEqual(digest, peerDigest)) {
+                    // LOGGED reports how much of the file was sent
+                    DeltaSync.sync(pool, channel, name, info.lastModified, LOGGED);
+                }
+            } catch (ServerException | FileNotFoundException e) {
+                ServerLog.warn("%s refused %s: %s", address, name, e.getMessage());
+            }
+        }
+
+        // Method to ask the peer for the size and modification time of its copy of a file, or null if it has none
+        private Storage.FileInfo peerStat(String name) throws IOException {
+            // No other name starting with this one sorts before it
+            FileIndex.Page page = peerPage(name, "", 1);
+            if (page.files.isEmpty() || !page.files.get(0).name.equals(name)) return null;
+            return page.files.get(0);
+        }
+
+        // Method to fetch one page of the peer's file list
+        private FileIndex.Page peerPage(String prefix, String cursor, int limit) throws IOException {
+            try (MuxStream stream = pool.openStream();
+                 DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+                 DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+                dos.writeUTF("LIST_PAGE");
+                dos.writeUTF(prefix);
+                dos.writeUTF(cursor);
+                dos.writeInt(limit);
+                String response = dis.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new ServerException(response);
+                }
+                int fileCount = dis.readInt();
+                List<Storage.FileInfo> files = new ArrayList<Storage.FileInfo>(fileCount);
+                for (int i = 0; i < fileCount; i++) {
+                    files.add(new Storage.FileInfo(dis.readUTF(), dis.readLong(), dis.readLong()));
+                }
+                return new FileIndex.Page(files, dis.readUTF());
+            }
+        }
+
+        // Method to ask the peer for the SHA-256 of its copy of a file, or null if it has none
+        private byte[] peerDigest(String name) throws IOException {
+            try (MuxStream stream = pool.openStream();
+                 DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+                 DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+                // A zero-length range just reports the file size and digest
+                dos.writeUTF("DOWNLOAD_RANGE");
+                dos.writeUTF(name);
+                dos.writeLong(0);
+                dos.writeLong(0);
+                String response = dis.readUTF();
+                if ("ERROR: File not found".equals(response)) {
+                    return null;
+                } else if (!"OK".equals(response)) {
+                    throw new ServerException(response);
+                }
+                dis.readLong();
+                dis.readLong();
+                byte[] digest = Checksums.readDigest(dis);
+                // CRC32C of the empty range
+                dis.readInt();
+                return digest;
+            }
+        }
+
+        // Method to ask the peer when its files were last cleared
+        private long peerClearEpoch() throws IOException {
+            try (MuxStream stream = pool.openStream();
+                 DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+                 DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+                dos.writeUTF("CLEARED_AT");
+                String response = dis.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new ServerException(response);
+                }
+                return dis.readLong();
+            }
+        }
+
+        // Method to clear the peer's files after this server's were cleared at the given time
+        private void clear(long epoch) throws IOException {
+            try (MuxStream stream = pool.openStream();
+                 DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+                 DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+                dos.writeUTF("CLEAR");
+                dos.writeLong(epoch);
+                String response = dis.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new ServerException(response);
+                }
+                ServerLog.info("Cleared %d files on %s", dis.readInt(), address);
+            }
+        }
+    }
+}
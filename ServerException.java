@@ -0,0 +1,10 @@
+import java.io.IOException;
+
+// An ERROR reply from the server, carrying the server's message
+public class ServerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerException(String response) {
+        super(response);
+    }
+}
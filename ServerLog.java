@@ -0,0 +1,145 @@
+import java.io.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Asynchronous logger for the server. Request threads only put a message on a bounded queue and
+// one daemon thread formats and writes them, so a slow console never holds up a transfer.
+// Messages below the level set with --log-level=error|warn|info|debug are dropped before they
+// are formatted. When the queue is full, new messages are dropped and counted instead of blocking.
+// Formats use String.format placeholders, e.g. ServerLog.debug("File sent: %s", fileName).
+public class ServerLog {
+    static final int ERROR = 0;
+    static final int WARN = 1;
+    static final int INFO = 2;
+    static final int DEBUG = 3;
+    private static final String[] LEVEL_NAMES = {"ERROR", "WARN", "INFO", "DEBUG"};
+    private static final int QUEUE_CAPACITY = 10000;
+
+    private static volatile int level = INFO;
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    // Console writers that are only flushed once the queue runs empty; guarded by the class
+    private static final PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out))));
+    private static final PrintWriter err = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.err))));
+    private static final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // One message waiting to be written
+    private static class Entry {
+        final int level;
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final String format;
+        final Object[] args;
+        final Throwable error;
+
+        Entry(int level, String format, Object[] args, Throwable error) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+            this.error = error;
+        }
+    }
+
+    static {
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        write(queue.take());
+                        drain();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "server-log");
+        writer.setDaemon(true);
+        writer.start();
+        // Write out what is still queued when the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "server-log-shutdown"));
+    }
+
+    private ServerLog() {
+    }
+
+    // Method to set the level from its name; unknown names keep the current level
+    static void setLevel(String name) {
+        for (int i = 0; i < LEVEL_NAMES.length; i++) {
+            if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                level = i;
+                return;
+            }
+        }
+        warn("Unknown log level %s, logging at %s", name, LEVEL_NAMES[level]);
+    }
+
+    static boolean isDebugEnabled() {
+        return level >= DEBUG;
+    }
+
+    // Method to get how many messages were dropped because the queue was full
+    static long getDropped() {
+        return dropped.get();
+    }
+
+    static void error(String format, Object... args) {
+        log(ERROR, format, args, null);
+    }
+
+    // Method to log a failure with its stack trace
+    static void error(String message, Throwable error) {
+        log(ERROR, message, null, error);
+    }
+
+    static void warn(String format, Object... args) {
+        log(WARN, format, args, null);
+    }
+
+    static void info(String format, Object... args) {
+        log(INFO, format, args, null);
+    }
+
+    static void debug(String format, Object... args) {
+        log(DEBUG, format, args, null);
+    }
+
+    // Method to queue a message if its level is enabled
+    private static void log(int messageLevel, String format, Object[] args, Throwable error) {
+        if (messageLevel > level) return;
+        if (!queue.offer(new Entry(messageLevel, format, args, error))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Method to write everything queued and flush the console
+    private static synchronized void drain() {
+        List<Entry> entries = new ArrayList<Entry>();
+        queue.drainTo(entries);
+        for (Entry entry : entries) {
+            write(entry);
+        }
+        out.flush();
+        err.flush();
+    }
+
+    // Method to format one message; errors and warnings go to standard error
+    private static synchronized void write(Entry entry) {
+        String message = entry.args == null || entry.args.length == 0
+                ? entry.format : String.format(entry.format, entry.args);
+        PrintWriter writer = entry.level <= WARN ? err : out;
+        writer.printf("%s %-5s [%s] %s%n", timeFormat.format(new Date(entry.time)),
+                LEVEL_NAMES[entry.level], entry.thread, message);
+        if (entry.error != null) entry.error.printStackTrace(writer);
+    }
+}
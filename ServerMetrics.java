@@ -0,0 +1,438 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+// Counters and latency histograms for the whole server: requests and latency per command, bytes
+// in and out, active connections, the connection pool's queue depth and rejections, and how long
+// disk writes and fsyncs take. Recording costs a few atomic additions, so it stays on for every request.
+// The numbers are published as JMX MBeans (FileServer:type=Server and FileServer:type=Command,name=<command>)
+// and, with --metrics-port=N, as plain text at http://host:N/metrics in the Prometheus format.
+public class ServerMetrics {
+    // Commands counted by name; anything else is counted as UNKNOWN so clients cannot add entries
+    private static final String[] COMMANDS = {"UPLOAD", "DOWNLOAD", "LIST", "LIST_PAGE", "CLEAR", "CLEARED_AT", "SUBSCRIBE",
+            "DOWNLOAD_RANGE", "DOWNLOAD_MANY", "UPLOAD_BEGIN", "UPLOAD_RESUME", "UPLOAD_RANGE", "UPLOAD_COMMIT",
+            "BATCH_UPLOAD", "UPLOAD_DEDUP", "SYNC", "CACHE_STATS", "COMPRESS", "SESSION", "PEER_SESSION", "UNKNOWN"};
+
+    private static final Map<String, CommandStats> commands = new LinkedHashMap<String, CommandStats>();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+    private static final LongAdder poolRejections = new LongAdder();
+    private static final LatencyHistogram diskWrites = new LatencyHistogram();
+    private static final LatencyHistogram fsyncs = new LatencyHistogram();
+    // The bounded connection pool, when the server uses one
+    private static volatile ThreadPoolExecutor pool;
+
+    static {
+        // Filled once here and only read afterwards, so lookups need no locking
+        for (String command : COMMANDS) {
+            commands.put(command, new CommandStats(command));
+        }
+    }
+
+    private ServerMetrics() {
+    }
+
+    // Server-wide numbers as seen over JMX
+    public interface ServerStatsMBean {
+        int getActiveConnections();
+
+        long getBytesIn();
+
+        long getBytesOut();
+
+        int getPoolQueueDepth();
+
+        int getPoolActiveThreads();
+
+        long getPoolRejections();
+
+        int getActiveTransfers();
+
+        int getWaitingTransfers();
+
+        long getDiskWrites();
+
+        double getDiskWriteP50Millis();
+
+        double getDiskWriteP99Millis();
+
+        double getDiskWriteMaxMillis();
+
+        long getFsyncs();
+
+        double getFsyncP99Millis();
+
+        long getLogMessagesDropped();
+    }
+
+    // One command's numbers as seen over JMX
+    public interface CommandStatsMBean {
+        long getCount();
+
+        long getFailures();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        double getP999Millis();
+
+        double getMaxMillis();
+    }
+
+    // Requests, failures and latency of one command
+    public static class CommandStats implements CommandStatsMBean {
+        private final String command;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder failures = new LongAdder();
+
+        CommandStats(String command) {
+            this.command = command;
+        }
+
+        // Method to record one request; failed means it ended with an exception
+        void record(long nanos, boolean failed) {
+            latency.record(nanos);
+            if (failed) failures.increment();
+        }
+
+        @Override
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        @Override
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return latency.getMean() / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return latency.percentile(0.5) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return latency.percentile(0.99) / 1e6;
+        }
+
+        @Override
+        public double getP999Millis() {
+            return latency.percentile(0.999) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return latency.getMax() / 1e6;
+        }
+    }
+
+    // Reads the static counters for JMX
+    private static class ServerStats implements ServerStatsMBean {
+        @Override
+        public int getActiveConnections() {
+            return activeConnections.get();
+        }
+
+        @Override
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        @Override
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        @Override
+        public int getPoolQueueDepth() {
+            ThreadPoolExecutor executor = pool;
+            return executor == null ? 0 : executor.getQueue().size();
+        }
+
+        @Override
+        public int getPoolActiveThreads() {
+            ThreadPoolExecutor executor = pool;
+            return executor == null ? 0 : executor.getActiveCount();
+        }
+
+        @Override
+        public long getPoolRejections() {
+            return poolRejections.sum();
+        }
+
+        @Override
+        public int getActiveTransfers() {
+            return TrafficShaper.getActiveTransfers();
+        }
+
+        @Override
+        public int getWaitingTransfers() {
+            return TrafficShaper.getWaitingTransfers();
+        }
+
+        @Override
+        public long getDiskWrites() {
+            return diskWrites.getCount();
+        }
+
+        @Override
+        public double getDiskWriteP50Millis() {
+            return diskWrites.percentile(0.5) / 1e6;
+        }
+
+        @Override
+        public double getDiskWriteP99Millis() {
+            return diskWrites.percentile(0.99) / 1e6;
+        }
+
+        @Override
+        public double getDiskWriteMaxMillis() {
+            return diskWrites.getMax() / 1e6;
+        }
+
+        @Override
+        public long getFsyncs() {
+            return fsyncs.getCount();
+        }
+
+        @Override
+        public double getFsyncP99Millis() {
+            return fsyncs.percentile(0.99) / 1e6;
+        }
+
+        @Override
+        public long getLogMessagesDropped() {
+            return ServerLog.getDropped();
+        }
+    }
+
+    // Method to get the numbers of a command, whatever case the client sent it in
+    static CommandStats command(String command) {
+        CommandStats stats = commands.get(command.toUpperCase(Locale.ROOT));
+        return stats != null ? stats : commands.get("UNKNOWN");
+    }
+
+    static void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    static void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    static void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    static void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    // Method to count a connection the pool had no room for
+    static void poolRejected() {
+        poolRejections.increment();
+    }
+
+    static void recordDiskWrite(long nanos) {
+        diskWrites.record(nanos);
+    }
+
+    static void recordFsync(long nanos) {
+        fsyncs.record(nanos);
+    }
+
+    // Method to report the queue depth and busy threads of the server's connection pool
+    static void monitorPool(ThreadPoolExecutor executor) {
+        pool = executor;
+    }
+
+    // Method to count every byte read from a connection's stream
+    static InputStream countIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) bytesIn.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int bytesRead = super.read(buffer, offset, length);
+                if (bytesRead > 0) bytesIn.add(bytesRead);
+                return bytesRead;
+            }
+        };
+    }
+
+    // Method to count every byte read from a connection's channel
+    static ReadableByteChannel countIn(final ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                int bytesRead = channel.read(buffer);
+                if (bytesRead > 0) bytesIn.add(bytesRead);
+                return bytesRead;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    // Method to count every byte written to a connection's stream
+    static OutputStream countOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                // FilterOutputStream would write the array one byte at a time
+                out.write(buffer, offset, length);
+                bytesOut.add(length);
+            }
+        };
+    }
+
+    // Method to publish the metrics as MBeans on the platform MBean server
+    static void registerMBeans() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new StandardMBean(new ServerStats(), ServerStatsMBean.class),
+                    new ObjectName("FileServer:type=Server"));
+            for (CommandStats stats : commands.values()) {
+                server.registerMBean(new StandardMBean(stats, CommandStatsMBean.class),
+                        new ObjectName("FileServer:type=Command,name=" + stats.command));
+            }
+        } catch (Exception e) {
+            ServerLog.error("Failed to register metrics MBeans", e);
+        }
+    }
+
+    // Method to serve the metrics as plain text at /metrics on the given port
+    static void serveHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        ServerLog.info("Metrics available at http://localhost:%d/metrics", port);
+    }
+
+    // Method to write every metric in the Prometheus text format
+    static String render() {
+        StringBuilder text = new StringBuilder();
+        ServerStats stats = new ServerStats();
+        text.append("# TYPE fileserver_requests_total counter\n");
+        for (CommandStats command : commands.values()) {
+            if (command.getCount() > 0) {
+                line(text, "fileserver_requests_total", "command=\"" + command.command + "\"", command.getCount());
+            }
+        }
+        text.append("# TYPE fileserver_request_failures_total counter\n");
+        for (CommandStats command : commands.values()) {
+            if (command.getCount() > 0) {
+                line(text, "fileserver_request_failures_total", "command=\"" + command.command + "\"", command.getFailures());
+            }
+        }
+        text.append("# TYPE fileserver_request_seconds summary\n");
+        for (CommandStats command : commands.values()) {
+            if (command.getCount() > 0) {
+                summary(text, "fileserver_request_seconds", "command=\"" + command.command + "\",", command.latency);
+            }
+        }
+        text.append("# TYPE fileserver_received_bytes_total counter\n");
+        line(text, "fileserver_received_bytes_total", null, stats.getBytesIn());
+        text.append("# TYPE fileserver_sent_bytes_total counter\n");
+        line(text, "fileserver_sent_bytes_total", null, stats.getBytesOut());
+        text.append("# TYPE fileserver_active_connections gauge\n");
+        line(text, "fileserver_active_connections", null, stats.getActiveConnections());
+        text.append("# TYPE fileserver_pool_queue_depth gauge\n");
+        line(text, "fileserver_pool_queue_depth", null, stats.getPoolQueueDepth());
+        text.append("# TYPE fileserver_pool_active_threads gauge\n");
+        line(text, "fileserver_pool_active_threads", null, stats.getPoolActiveThreads());
+        text.append("# TYPE fileserver_pool_rejections_total counter\n");
+        line(text, "fileserver_pool_rejections_total", null, stats.getPoolRejections());
+        text.append("# TYPE fileserver_active_transfers gauge\n");
+        line(text, "fileserver_active_transfers", null, stats.getActiveTransfers());
+        text.append("# TYPE fileserver_waiting_transfers gauge\n");
+        line(text, "fileserver_waiting_transfers", null, stats.getWaitingTransfers());
+        text.append("# TYPE fileserver_disk_write_seconds summary\n");
+        summary(text, "fileserver_disk_write_seconds", "", diskWrites);
+        text.append("# TYPE fileserver_fsync_seconds summary\n");
+        summary(text, "fileserver_fsync_seconds", "", fsyncs);
+        text.append("# TYPE fileserver_log_dropped_total counter\n");
+        line(text, "fileserver_log_dropped_total", null, stats.getLogMessagesDropped());
+        FileCache cache = FileServer.fileCache;
+        if (cache != null) {
+            text.append("# TYPE fileserver_cache_hits_total counter\n");
+            line(text, "fileserver_cache_hits_total", null, cache.getHits());
+            text.append("# TYPE fileserver_cache_misses_total counter\n");
+            line(text, "fileserver_cache_misses_total", null, cache.getMisses());
+            text.append("# TYPE fileserver_cache_bytes gauge\n");
+            line(text, "fileserver_cache_bytes", null, cache.getCachedBytes());
+        }
+        return text.toString();
+    }
+
+    // Method to write one sample line
+    private static void line(StringBuilder text, String name, String labels, Object value) {
+        text.append(name);
+        if (labels != null) text.append('{').append(labels).append('}');
+        text.append(' ').append(value).append('\n');
+    }
+
+    // Method to write a histogram's quantiles, sum and count in seconds; labels end with a comma when present
+    private static void summary(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+        double[] quantiles = {0.5, 0.99, 0.999};
+        for (double quantile : quantiles) {
+            line(text, name, labels + "quantile=\"" + quantile + "\"", histogram.percentile(quantile) / 1e9);
+        }
+        String plainLabels = labels.isEmpty() ? null : labels.substring(0, labels.length() - 1);
+        line(text, name + "_sum", plainLabels, histogram.getTotal() / 1e9);
+        line(text, name + "_count", plainLabels, histogram.getCount());
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.*;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Checksum;
+
+// Storage for millions of files (--storage=sharded). A file is placed by the SHA-256 of its name
+// under two levels of 256 shard directories, so no directory grows past a few thousand entries
+// whatever the names look like, and names may contain '/' without any directory being created for
+// them. What is stored is known from an append-only metadata log kept in memory, so startup reads
+// one file and exists, stat and list never touch the shards:
+//   CURRENT                        number of the live generation
+//   gen-<n>/index.log              one record per commit or replace: name, size, modification time
+//   gen-<n>/index.old              the log being compacted, while a compaction runs
+//   gen-<n>/index.base             the compacted records of every live file
+//   gen-<n>/<aa>/<bb>/<hash>       the file contents
+// Once the log holds more superseded records than live ones, it is compacted on a background thread.
+// CLEAR starts an empty generation and switches CURRENT to it at once; the old one is deleted by
+// a background sweep, which a restart picks up again if it was interrupted.
+public class ShardedStorage implements Storage {
+    private static final String CURRENT = "CURRENT";
+    private static final String LOG = "index.log";
+    private static final String OLD_LOG = "index.old";
+    private static final String BASE = "index.base";
+    // Superseded records tolerated before a compaction, on top of one per live file
+    private static final long COMPACT_MIN_GARBAGE = 10000;
+    // Longest record a log may contain: the longest writeUTF name plus the size and time. Anything
+    // longer is a torn or corrupt tail
+    private static final int MAX_RECORD_SIZE = 2 + 65535 + 16;
+
+    // Deletes old generations and compacts logs, one job at a time
+    private static final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "storage-background");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File root;
+    private final Map<String, FileInfo> files = new ConcurrentHashMap<String, FileInfo>();
+    // The live generation's directory and log; guarded by this
+    private volatile File generationDir;
+    // Highest generation number on disk, live or still being swept
+    private int lastGeneration;
+    private DataOutputStream log;
+    // Records in the generation's base and logs, live or superseded; guarded by this
+    private long records;
+    private boolean compacting;
+
+    public ShardedStorage(File root) throws IOException {
+        this.root = root;
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create " + root);
+        }
+        lastGeneration = readCurrent();
+        generationDir = new File(root, "gen-" + lastGeneration);
+        generationDir.mkdirs();
+        records += replay(new File(generationDir, BASE));
+        records += replay(new File(generationDir, OLD_LOG));
+        records += replay(new File(generationDir, LOG));
+        if (new File(generationDir, OLD_LOG).exists()) {
+            // A compaction was interrupted; finish it before the log can be compacted again
+            writeBase(generationDir, new ArrayList<FileInfo>(files.values()));
+        }
+        log = openLog();
+        // Generations a clear left behind are swept again
+        File[] entries = root.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                if (!entry.getName().startsWith("gen-") || entry.equals(generationDir)) continue;
+                try {
+                    lastGeneration = Math.max(lastGeneration, Integer.parseInt(entry.getName().substring(4)));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                sweep(entry);
+            }
+        }
+        ServerLog.info("Loaded %d files from %s (%d log records)", files.size(), generationDir, records);
+        maybeCompact();
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return name != null && files.containsKey(name);
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<String>(files.keySet());
+    }
+
+    @Override
+    public FileInfo stat(String name) {
+        return name == null ? null : files.get(name);
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        if (!exists(name)) return null;
+        try {
+            return new FileInputStream(shardFile(generationDir, name)).getChannel();
+        } catch (FileNotFoundException e) {
+            // Cleared since the check
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void commit(String name, File tempFile) throws IOException {
+        if (!Storage.isValidName(name)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        if (files.containsKey(name)) {
+            throw new FileAlreadyExistsException(name);
+        }
+        publish(name, tempFile);
+    }
+
+    @Override
+    public synchronized void replace(String name, File tempFile) throws IOException {
+        if (!Storage.isValidName(name)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        publish(name, tempFile);
+    }
+
+    // Method to swap in an empty generation and sweep the old one in the background; returns how
+    // many files the old generation held
+    @Override
+    public synchronized int clear() throws IOException {
+        int count = files.size();
+        File oldDir = generationDir;
+        File newDir = new File(root, "gen-" + (lastGeneration + 1));
+        if (!newDir.mkdirs()) {
+            throw new IOException("Cannot create " + newDir);
+        }
+        lastGeneration++;
+        log.close();
+        // From here on the old generation is gone, even if the server stops before the sweep ends
+        try {
+            writeCurrent(lastGeneration);
+        } catch (IOException e) {
+            log = openLog();
+            throw e;
+        }
+        generationDir = newDir;
+        files.clear();
+        records = 0;
+        log = openLog();
+        sweep(oldDir);
+        return count;
+    }
+
+    // Method to move a completed file into its shard and record it; callers hold this
+    private void publish(String name, File tempFile) throws IOException {
+        File target = shardFile(generationDir, name);
+        File shard = target.getParentFile();
+        if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+            throw new IOException("Cannot create " + shard);
+        }
+        // The move keeps the size and time, so the record is built first: a name it cannot encode
+        // fails before the file is moved into a shard where nothing would list it
+        FileInfo info = new FileInfo(name, tempFile.length(), tempFile.lastModified());
+        byte[] record = encodeRecord(info);
+        // Readers that already opened the old file keep reading the old contents
+        Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // A crash before the record is written leaves the file unlisted, never a listed file without data
+        log.write(record);
+        log.flush();
+        records++;
+        files.put(name, info);
+        maybeCompact();
+    }
+
+    // Method to start a compaction if the log holds more superseded records than live ones; callers hold this
+    private void maybeCompact() throws IOException {
+        if (compacting || records - files.size() <= Math.max(COMPACT_MIN_GARBAGE, files.size())) return;
+        // Records from now on go to a new log; index.old and the base are folded into a new base
+        final File dir = generationDir;
+        log.close();
+        try {
+            Files.move(new File(dir, LOG).toPath(), new File(dir, OLD_LOG).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            ServerLog.warn("Failed to start compacting the storage log of %s: %s", dir, e.getMessage());
+            return;
+        } finally {
+            log = openLog();
+        }
+        final List<FileInfo> snapshot = new ArrayList<FileInfo>(files.values());
+        records = snapshot.size();
+        compacting = true;
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeBase(dir, snapshot);
+                    ServerLog.info("Compacted the storage log of %s to %d records", dir, snapshot.size());
+                } catch (IOException e) {
+                    // The old log stays and is replayed on top of the old base, so nothing is lost
+                    ServerLog.warn("Failed to compact the storage log of %s: %s", dir, e.getMessage());
+                } finally {
+                    synchronized (ShardedStorage.this) {
+                        compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    // Method to write the records of every live file as the new base, then drop the compacted log
+    private static void writeBase(File dir, List<FileInfo> snapshot) throws IOException {
+        File tempBase = new File(dir, BASE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tempBase);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 256 * 1024))) {
+            for (FileInfo info : snapshot) {
+                writeRecord(out, info);
+            }
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(tempBase.toPath(), new File(dir, BASE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // Replaying the old log over the new base would change nothing, so it can go any time after the move
+        new File(dir, OLD_LOG).delete();
+    }
+
+    // Method to append one record: its length, name, size and modification time, then their CRC32C
+    private static void writeRecord(DataOutputStream out, FileInfo info) throws IOException {
+        out.write(encodeRecord(info));
+    }
+
+    // Method to build a record as writeRecord appends it; fails for names writeUTF cannot encode
+    private static byte[] encodeRecord(FileInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeUTF(info.name);
+        record.writeLong(info.size);
+        record.writeLong(info.lastModified);
+        Checksum crc = Checksums.newCrc();
+        crc.update(bytes.toByteArray(), 0, bytes.size());
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(bytes.size() + 8);
+        DataOutputStream out = new DataOutputStream(framed);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+        return framed.toByteArray();
+    }
+
+    // Method to apply the records of a log or base to the index; returns how many were read.
+    // A torn record at the end, e.g. left by a crash in the middle of an append, is cut off.
+    private long replay(File file) throws IOException {
+        if (!file.exists()) return 0;
+        long count = 0;
+        long goodLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0 || length > MAX_RECORD_SIZE) break;
+                byte[] bytes = new byte[length];
+                int expectedCrc;
+                try {
+                    in.readFully(bytes);
+                    expectedCrc = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                Checksum crc = Checksums.newCrc();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != expectedCrc) break;
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+                String name = record.readUTF();
+                files.put(name, new FileInfo(name, record.readLong(), record.readLong()));
+                count++;
+                goodLength += length + 8;
+            }
+        }
+        if (goodLength < file.length()) {
+            ServerLog.warn("Ignoring %d bytes of damaged records at the end of %s", file.length() - goodLength, file);
+            try (RandomAccessFile truncated = new RandomAccessFile(file, "rw")) {
+                truncated.setLength(goodLength);
+            }
+        }
+        return count;
+    }
+
+    // Method to open the live generation's log for appending; callers hold this
+    private DataOutputStream openLog() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(generationDir, LOG), true)));
+    }
+
+    // Method to read the live generation's number, 0 for a new store
+    private int readCurrent() throws IOException {
+        File current = new File(root, CURRENT);
+        if (!current.exists()) {
+            writeCurrent(0);
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(current.toPath());
+        try {
+            return Integer.parseInt(new String(bytes, StandardCharsets.US_ASCII).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt " + current);
+        }
+    }
+
+    // Method to switch the live generation with one atomic rename
+    private void writeCurrent(int number) throws IOException {
+        File tempCurrent = new File(root, CURRENT + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempCurrent)) {
+            out.write((number + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.getChannel().force(true);
+        }
+        Files.move(tempCurrent.toPath(), new File(root, CURRENT).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Method to find where a name's contents live: the hex SHA-256 of the name, under its first two bytes
+    private static File shardFile(File dir, String name) {
+        byte[] hash = Checksums.newDigest().digest(name.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return new File(new File(new File(dir, hex.substring(0, 2)), hex.substring(2, 4)), hex.toString());
+    }
+
+    // Method to delete a directory tree on the background thread
+    static void sweep(final File dir) {
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Already swept, e.g. when a second clear found the same leftovers
+                if (!dir.exists()) return;
+                final long[] deleted = new long[1];
+                try {
+                    Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                            Files.deleteIfExists(path);
+                            deleted[0]++;
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult postVisitDirectory(Path path, IOException e) throws IOException {
+                            Files.deleteIfExists(path);
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                    ServerLog.info("Swept %s: %d files deleted", dir, deleted[0]);
+                } catch (IOException e) {
+                    ServerLog.warn("Failed to sweep %s: %s", dir, e.getMessage());
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.*;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Load test that opens many slow uploads at once and reports how many the server is serving.
+// A connection counts as served once the server has answered its UPLOAD header.
+// Run it against a scratch server: the trickled uploads are abandoned and leave partial files.
+// Usage: java SlowUploadLoadTest [connections] [holdSeconds] [host] [port]
+public class SlowUploadLoadTest {
+    // Declared upload size; trickling one byte per second keeps every upload open for the whole test
+    private static final int DECLARED_SIZE = 1024;
+    // A connect that takes longer than this means the server has stopped accepting
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int holdSeconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String host = args.length > 2 ? args[2] : "localhost";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : FileServer.PORT;
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        List<DataOutputStream> outputs = new ArrayList<DataOutputStream>();
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        long start = System.nanoTime();
+        try {
+            // Open every connection and send its UPLOAD header
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                } catch (SocketTimeoutException e) {
+                    socket.close();
+                    System.out.println("Server stopped accepting after " + i + " connections");
+                    break;
+                }
+                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                dos.writeUTF("UPLOAD");
+                dos.writeUTF("loadtest-" + runId + "-" + i);
+                dos.writeLong(DECLARED_SIZE);
+                dos.flush();
+                sockets.add(socket);
+                outputs.add(dos);
+            }
+            connections = sockets.size();
+            System.out.printf("Opened %d connections in %.1f s%n", connections, (System.nanoTime() - start) / 1e9);
+
+            // Once a second, note which uploads have been answered and trickle one more byte into each
+            boolean[] served = new boolean[connections];
+            int servedCount = 0;
+            for (int second = 1; second <= holdSeconds; second++) {
+                Thread.sleep(1000);
+                int failed = 0;
+                for (int i = 0; i < connections; i++) {
+                    try {
+                        if (!served[i] && sockets.get(i).getInputStream().available() > 0) {
+                            served[i] = true;
+                            servedCount++;
+                        }
+                        if (served[i]) {
+                            outputs.get(i).write(0);
+                        }
+                    } catch (IOException e) {
+                        failed++;
+                    }
+                }
+                System.out.printf("t=%2ds  served %d / %d slow uploads%s%n", second, servedCount, connections,
+                        failed > 0 ? "  (" + failed + " connection errors)" : "");
+            }
+            System.out.println("Sustained " + servedCount + " simultaneous slow uploads");
+        } finally {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore errors while tearing down the test
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.*;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+// Where the server keeps committed files. Uploads are always received into a temporary file
+// first, so a backend only has to publish finished files, serve them back, list and clear them.
+public interface Storage {
+    // Method to check whether a file is stored under a name
+    boolean exists(String name) throws IOException;
+
+    // Method to list the names of all stored files
+    List<String> list() throws IOException;
+
+    // Method to get a stored file's size and modification time, or null if there is none
+    FileInfo stat(String name) throws IOException;
+
+    // Method to open a stored file for reading, or return null if there is none
+    SeekableByteChannel openRead(String name) throws IOException;
+
+    // Method to publish a completed temporary file under a name; fails if the name is taken.
+    // The stored file keeps the temporary file's modification time, so replicated copies can carry the origin's.
+    void commit(String name, File tempFile) throws IOException;
+
+    // Method to publish a completed temporary file under a name, replacing any file already there
+    void replace(String name, File tempFile) throws IOException;
+
+    // Method to delete every stored file and return how many there were
+    int clear() throws IOException;
+
+    // Method to reject names that would escape the storage directory. A name may be a path of
+    // directories separated by '/', as long as no part of it is empty, "." or "..".
+    static boolean isValidName(String name) {
+        if (name == null || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) return false;
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")) return false;
+        }
+        return true;
+    }
+
+    // Size and modification time of a stored file
+    class FileInfo {
+        final String name;
+        final long size;
+        final long lastModified;
+
+        FileInfo(String name, long size, long lastModified) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
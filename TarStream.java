@@ -0,0 +1,265 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+// The tar format DOWNLOAD_MANY streams many files in: POSIX ustar headers with a pax extended
+// header in front of every file. The pax header carries the file's SHA-256, its modification time
+// to the millisecond, and its name or size when the ustar fields are too small for them, so the
+// archive can be written one file at a time without knowing the rest of it. Any tar tool can
+// extract it too. Only what the server writes is read back: regular files and pax headers.
+public class TarStream {
+    static final int BLOCK_SIZE = 512;
+    // pax key of the SHA-256 of a file's contents, as 64 hex digits
+    static final String SHA256_KEY = "FILESERVER.sha256";
+    // Largest size and name the ustar fields can hold
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+    private static final int MAX_USTAR_NAME = 100;
+    // Extended headers are only a few records long
+    private static final int MAX_PAX_SIZE = 64 * 1024;
+    private static final byte[] ZERO_BLOCK = new byte[BLOCK_SIZE];
+
+    private TarStream() {
+    }
+
+    // Method to write the headers of a file; its size bytes follow, then writePadding()
+    static void writeHeader(OutputStream out, String name, long size, long lastModified, byte[] digest) throws IOException {
+        StringBuilder pax = new StringBuilder();
+        appendRecord(pax, "mtime", String.format("%d.%03d", lastModified / 1000, lastModified % 1000));
+        if (digest != null) appendRecord(pax, SHA256_KEY, toHex(digest));
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean longName = nameBytes.length > MAX_USTAR_NAME || !isAscii(nameBytes);
+        if (longName) appendRecord(pax, "path", name);
+        if (size > MAX_USTAR_SIZE) appendRecord(pax, "size", String.valueOf(size));
+
+        // A readable name for the extended header, as GNU tar writes it
+        String ustarName = longName ? asciiName(name) : name;
+        byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(header(asciiName("PaxHeaders/" + ustarName), 'x', records.length, lastModified));
+        out.write(records);
+        out.write(ZERO_BLOCK, 0, padding(records.length));
+        out.write(header(ustarName, '0', size > MAX_USTAR_SIZE ? 0 : size, lastModified));
+    }
+
+    // Method to count the zero bytes that pad data of a size to a whole block
+    static int padding(long size) {
+        return (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+    }
+
+    // Method to write the padding after a file's data
+    static void writePadding(OutputStream out, long size) throws IOException {
+        out.write(ZERO_BLOCK, 0, padding(size));
+    }
+
+    // Method to end the archive with two zero blocks
+    static void writeEnd(OutputStream out) throws IOException {
+        out.write(ZERO_BLOCK);
+        out.write(ZERO_BLOCK);
+    }
+
+    // Method to read the headers of the next file, leaving the stream at its data; null at the end of the archive
+    static Entry readEntry(DataInputStream in) throws IOException {
+        Map<String, String> pax = new HashMap<String, String>();
+        byte[] block = new byte[BLOCK_SIZE];
+        while (true) {
+            in.readFully(block);
+            if (isZero(block)) return null;
+            if (parseOctal(block, 148, 8) != checksum(block)) {
+                throw new IOException("Corrupt tar header");
+            }
+            long size = parseOctal(block, 124, 12);
+            byte type = block[156];
+            if (type == 'x') {
+                if (size > MAX_PAX_SIZE) throw new IOException("Extended tar header too large");
+                byte[] records = new byte[(int) size];
+                in.readFully(records);
+                skipFully(in, padding(size));
+                parseRecords(records, pax);
+            } else if (type == '0' || type == 0) {
+                String name = pax.containsKey("path") ? pax.get("path") : ustarName(block);
+                if (pax.containsKey("size")) size = Long.parseLong(pax.get("size"));
+                long lastModified = pax.containsKey("mtime")
+                        ? Math.round(Double.parseDouble(pax.get("mtime")) * 1000) : parseOctal(block, 136, 12) * 1000;
+                String hex = pax.get(SHA256_KEY);
+                return new Entry(name, size, lastModified, hex != null ? fromHex(hex) : null);
+            } else {
+                // Anything else, e.g. a directory or global header, has nothing for us
+                skipFully(in, size + padding(size));
+                pax.clear();
+            }
+        }
+    }
+
+    // Method to skip the padding after a file's data
+    static void skipPadding(DataInputStream in, long size) throws IOException {
+        skipFully(in, padding(size));
+    }
+
+    // Method to skip bytes that must all be there
+    static void skipFully(DataInputStream in, long count) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(count, 64 * 1024)];
+        while (count > 0) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, count));
+            if (bytesRead < 0) throw new EOFException("Archive ended early");
+            count -= bytesRead;
+        }
+    }
+
+    // Method to build one ustar header block
+    private static byte[] header(String name, char type, long size, long lastModified) {
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(nameBytes, 0, block, 0, Math.min(nameBytes.length, MAX_USTAR_NAME));
+        putOctal(block, 100, 8, 0644);
+        putOctal(block, 108, 8, 0);
+        putOctal(block, 116, 8, 0);
+        putOctal(block, 124, 12, size);
+        putOctal(block, 136, 12, lastModified / 1000);
+        block[156] = (byte) type;
+        // Magic "ustar", NUL, then version "00"
+        System.arraycopy("ustar".getBytes(StandardCharsets.US_ASCII), 0, block, 257, 5);
+        block[263] = '0';
+        block[264] = '0';
+        // The checksum is computed with its own field as spaces, then stored as six digits, NUL, space
+        putOctal(block, 148, 7, checksum(block));
+        block[155] = ' ';
+        return block;
+    }
+
+    // Method to sum a header's bytes, counting the checksum field as spaces
+    private static long checksum(byte[] block) {
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += i >= 148 && i < 156 ? ' ' : block[i] & 0xff;
+        }
+        return sum;
+    }
+
+    // Method to write a number as zero-padded octal digits followed by a NUL
+    private static void putOctal(byte[] block, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        for (int i = 0; i < length - 1; i++) {
+            int digit = i - (length - 1 - digits.length());
+            block[offset + i] = (byte) (digit < 0 ? '0' : digits.charAt(digit));
+        }
+        block[offset + length - 1] = 0;
+    }
+
+    // Method to read an octal field, ignoring the spaces and NULs around its digits
+    private static long parseOctal(byte[] block, int offset, int length) throws IOException {
+        int i = offset;
+        int end = offset + length;
+        while (i < end && (block[i] == ' ' || block[i] == 0)) i++;
+        long value = 0;
+        for (; i < end && block[i] != ' ' && block[i] != 0; i++) {
+            if (block[i] < '0' || block[i] > '7') throw new IOException("Corrupt tar header");
+            value = value * 8 + (block[i] - '0');
+        }
+        return value;
+    }
+
+    // Method to read the name of a ustar header, with its prefix field if there is one
+    private static String ustarName(byte[] block) {
+        String name = field(block, 0, MAX_USTAR_NAME);
+        String prefix = field(block, 345, 155);
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    // Method to read a NUL-terminated text field
+    private static String field(byte[] block, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && block[end] != 0) end++;
+        return new String(block, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    // Method to add a "length key=value\n" record, whose length counts its own digits
+    private static void appendRecord(StringBuilder pax, String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + String.valueOf(length).length();
+        if (String.valueOf(total).length() > String.valueOf(length).length()) total++;
+        pax.append(total).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    // Method to parse the records of an extended header into keys and values
+    private static void parseRecords(byte[] records, Map<String, String> pax) throws IOException {
+        int position = 0;
+        while (position < records.length) {
+            int space = position;
+            while (space < records.length && records[space] != ' ') space++;
+            int length;
+            try {
+                length = Integer.parseInt(new String(records, position, space - position, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw new IOException("Corrupt extended tar header");
+            }
+            if (length <= space - position || position + length > records.length) {
+                throw new IOException("Corrupt extended tar header");
+            }
+            String record = new String(records, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+            int equals = record.indexOf('=');
+            if (equals > 0) pax.put(record.substring(0, equals), record.substring(equals + 1));
+            position += length;
+        }
+    }
+
+    // Method to check whether a block is all zeros, as at the end of an archive
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    // Method to check that a name is printable ASCII, which every tar reader shows the same way
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0x20 || b == 0x7f) return false;
+        }
+        return true;
+    }
+
+    // Method to shorten a name to printable ASCII that fits a ustar name field
+    private static String asciiName(String name) {
+        StringBuilder ascii = new StringBuilder();
+        for (int i = 0; i < name.length() && ascii.length() < MAX_USTAR_NAME; i++) {
+            char c = name.charAt(i);
+            ascii.append(c >= 0x20 && c < 0x7f ? c : '_');
+        }
+        return ascii.toString();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) throws IOException {
+        if (hex.length() != Checksums.DIGEST_LENGTH * 2) throw new IOException("Bad SHA-256 in tar header: " + hex);
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) throw new IOException("Bad SHA-256 in tar header: " + hex);
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    // One file of an archive: its name, size, modification time and SHA-256, if the archive had one
+    static class Entry {
+        final String name;
+        final long size;
+        final long lastModified;
+        final byte[] digest;
+
+        Entry(String name, long size, long lastModified, byte[] digest) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+// Token bucket that limits a flow of bytes to a rate. Tokens accrue continuously up to a burst
+// of BURST_SECONDS worth; a caller takes tokens for the bytes it is about to move and waits when
+// the bucket runs dry. A grant is at least MIN_GRANT bytes (or all that was asked for), so many
+// waiters do not each wake up for a handful of bytes.
+public class TokenBucket {
+    private static final double BURST_SECONDS = 0.1;
+    static final long MIN_GRANT = 16 * 1024;
+
+    private final double bytesPerNano;
+    private final double capacity;
+    // Guarded by this
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.capacity = Math.max(bytesPerSecond * BURST_SECONDS, 2 * MIN_GRANT);
+        this.tokens = capacity;
+    }
+
+    // Method to take up to wanted tokens, waiting until a grant is available; returns the tokens taken
+    long take(long wanted) throws InterruptedIOException {
+        while (true) {
+            long granted = tryTake(wanted);
+            if (granted > 0 || wanted <= 0) return granted;
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(nanosUntilAvailable(wanted), TimeUnit.MILLISECONDS.toNanos(1)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    // Method to take up to wanted tokens without waiting; returns 0 if a grant is not available yet
+    synchronized long tryTake(long wanted) {
+        if (wanted <= 0) return 0;
+        refill();
+        if (tokens < Math.min(wanted, MIN_GRANT)) return 0;
+        long granted = (long) Math.min(tokens, wanted);
+        tokens -= granted;
+        return granted;
+    }
+
+    // Method to return tokens that were taken but not used
+    synchronized void giveBack(long unused) {
+        if (unused <= 0) return;
+        tokens = Math.min(capacity, tokens + unused);
+    }
+
+    // Method to estimate how long until a grant for wanted tokens is available
+    synchronized long nanosUntilAvailable(long wanted) {
+        refill();
+        double missing = Math.min(wanted, MIN_GRANT) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / bytesPerNano);
+    }
+
+    // Method to add the tokens earned since the last refill; callers hold this
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerNano);
+        lastRefill = now;
+    }
+}
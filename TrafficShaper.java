@@ -0,0 +1,272 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Keeps large transfers from crowding out everything else on the server.
+// Requests are split into two lanes. Small requests (listings, metadata commands and downloads of
+// up to SMALL_TRANSFER_SIZE) are answered on the connection pool. Transfers of file data
+// continue on threads of their own, so they never hold the threads that answer small requests.
+// At most --max-transfers transfers run at once; the rest wait in arrival order. A transfer leaving
+// the connection pool waits in a queue and only gets a thread once it has a permit.
+// Bytes are rate limited by token buckets: --connection-rate=MB/s for each connection (shared
+// by all requests of a session) and --total-rate=MB/s for all transfers together. Small requests
+// only count against their connection's limit, so they are never stuck behind the total limit.
+public class TrafficShaper {
+    // Largest download still answered on the small-request lane
+    static final long SMALL_TRANSFER_SIZE = 1024 * 1024;
+    // Default cap on transfers running at once
+    static final int DEFAULT_MAX_TRANSFERS = 16;
+
+    private static volatile long connectionRate;
+    private static volatile TokenBucket totalBucket;
+    // Transfer permits: whether there are any limits, how many are free, and who waits for one, in
+    // arrival order; guarded by TrafficShaper.class. A waiter is run once the permit is handed to it.
+    private static boolean transfersLimited;
+    private static int freeTransfers;
+    private static final ArrayDeque<Runnable> waitingTransfers = new ArrayDeque<Runnable>();
+    private static final AtomicInteger activeTransfers = new AtomicInteger();
+
+    private TrafficShaper() {
+    }
+
+    // Method to set the limits; a rate or count of 0 means unlimited
+    static void configure(double connectionMbPerSecond, double totalMbPerSecond, int maxTransfers) {
+        connectionRate = (long) (connectionMbPerSecond * 1024 * 1024);
+        totalBucket = totalMbPerSecond > 0 ? new TokenBucket((long) (totalMbPerSecond * 1024 * 1024)) : null;
+        synchronized (TrafficShaper.class) {
+            transfersLimited = maxTransfers > 0;
+            freeTransfers = maxTransfers;
+        }
+    }
+
+    // Method to create the rate limit of a new connection, or null if connections are not limited
+    static TokenBucket newConnectionBucket() {
+        long rate = connectionRate;
+        return rate > 0 ? new TokenBucket(rate) : null;
+    }
+
+    // Method to get the limits of a transfer on a connection: its own and the total
+    static Throttle transferThrottle(TokenBucket connectionBucket) {
+        return new Throttle(connectionBucket, totalBucket);
+    }
+
+    // Method to get the limits of a small request on a connection: only its own
+    static Throttle smallThrottle(TokenBucket connectionBucket) {
+        return new Throttle(connectionBucket);
+    }
+
+    // Method to check whether a command always moves file data
+    static boolean isTransfer(String command) {
+        return "UPLOAD".equalsIgnoreCase(command) || "UPLOAD_RANGE".equalsIgnoreCase(command)
+                || "BATCH_UPLOAD".equalsIgnoreCase(command) || "UPLOAD_DEDUP".equalsIgnoreCase(command)
+                || "SYNC".equalsIgnoreCase(command) || "DOWNLOAD_MANY".equalsIgnoreCase(command);
+    }
+
+    // Method to check whether a command keeps its connection for as long as the client wants
+    static boolean isLongLived(String command) {
+        return "SUBSCRIBE".equalsIgnoreCase(command);
+    }
+
+    // Method to check whether a download of this many bytes is a transfer rather than a small request
+    static boolean isLargeTransfer(long bytes) {
+        return bytes > SMALL_TRANSFER_SIZE;
+    }
+
+    // Method to take a free permit, or queue the waiter to be run once one is handed to it; returns
+    // true if the permit was free
+    private static synchronized boolean acquire(Runnable waiter) {
+        if (!transfersLimited || freeTransfers > 0) {
+            freeTransfers--;
+            return true;
+        }
+        waitingTransfers.add(waiter);
+        return false;
+    }
+
+    // Method to wait for a transfer permit on the calling thread; every call must be followed by endTransfer()
+    static void startTransfer() {
+        final CountDownLatch granted = new CountDownLatch(1);
+        if (!acquire(new Runnable() {
+            @Override
+            public void run() {
+                granted.countDown();
+            }
+        })) {
+            boolean interrupted = false;
+            while (granted.getCount() > 0) {
+                try {
+                    granted.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        activeTransfers.incrementAndGet();
+    }
+
+    // Method to run a transfer on an executor once it has a permit, releasing the permit when it ends.
+    // Until then it only waits in the queue, so waiting transfers hold no threads.
+    static void submitTransfer(final Executor executor, final Runnable transfer) {
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        activeTransfers.incrementAndGet();
+                        try {
+                            transfer.run();
+                        } finally {
+                            endTransfer();
+                        }
+                    }
+                });
+            }
+        };
+        if (acquire(start)) start.run();
+    }
+
+    // Method to release the permit of a finished transfer, handing it straight to the longest waiting one
+    static void endTransfer() {
+        activeTransfers.decrementAndGet();
+        Runnable next;
+        synchronized (TrafficShaper.class) {
+            next = waitingTransfers.poll();
+            if (next == null) freeTransfers++;
+        }
+        if (next != null) next.run();
+    }
+
+    static int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    static synchronized int getWaitingTransfers() {
+        return waitingTransfers.size();
+    }
+
+    // The token buckets one request's bytes are taken from
+    static class Throttle {
+        // No limits at all
+        static final Throttle NONE = new Throttle();
+
+        private final TokenBucket[] buckets;
+
+        Throttle(TokenBucket... buckets) {
+            List<TokenBucket> limited = new ArrayList<TokenBucket>();
+            for (TokenBucket bucket : buckets) {
+                if (bucket != null) limited.add(bucket);
+            }
+            this.buckets = limited.toArray(new TokenBucket[0]);
+        }
+
+        boolean isLimited() {
+            return buckets.length > 0;
+        }
+
+        // Method to take up to wanted bytes from every bucket, waiting as needed; returns the bytes granted
+        long take(long wanted) throws InterruptedIOException {
+            long granted = wanted;
+            for (int i = 0; i < buckets.length && granted > 0; i++) {
+                long taken = buckets[i].take(granted);
+                giveBack(i, granted - taken);
+                granted = taken;
+            }
+            return granted;
+        }
+
+        // Method to take up to wanted bytes from every bucket without waiting; returns 0 if any bucket is dry
+        long tryTake(long wanted) {
+            long granted = wanted;
+            for (int i = 0; i < buckets.length && granted > 0; i++) {
+                long taken = buckets[i].tryTake(granted);
+                giveBack(i, granted - taken);
+                granted = taken;
+            }
+            return granted;
+        }
+
+        // Method to return granted bytes that were not moved
+        void giveBack(long unused) {
+            giveBack(buckets.length, unused);
+        }
+
+        // Method to return bytes to the first count buckets
+        private void giveBack(int count, long unused) {
+            for (int i = 0; i < count; i++) {
+                buckets[i].giveBack(unused);
+            }
+        }
+
+        // Method to estimate how long until every bucket can grant again
+        long nanosUntilAvailable() {
+            long wait = 0;
+            for (TokenBucket bucket : buckets) {
+                wait = Math.max(wait, bucket.nanosUntilAvailable(TokenBucket.MIN_GRANT));
+            }
+            return wait;
+        }
+
+        // Method to limit the bytes read from a stream
+        InputStream wrap(InputStream in) {
+            if (!isLimited()) return in;
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    take(1);
+                    int b = super.read();
+                    if (b < 0) giveBack(1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    if (length == 0) return 0;
+                    int granted = (int) take(length);
+                    int bytesRead = super.read(buffer, offset, granted);
+                    giveBack(granted - Math.max(bytesRead, 0));
+                    return bytesRead;
+                }
+            };
+        }
+
+        // Method to limit the bytes read from a channel
+        ReadableByteChannel wrap(final ReadableByteChannel channel) {
+            if (!isLimited()) return channel;
+            return new ReadableByteChannel() {
+                @Override
+                public int read(ByteBuffer buffer) throws IOException {
+                    if (!buffer.hasRemaining()) return 0;
+                    int granted = (int) take(buffer.remaining());
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + granted);
+                    int bytesRead;
+                    try {
+                        bytesRead = channel.read(buffer);
+                    } finally {
+                        buffer.limit(limit);
+                    }
+                    giveBack(granted - Math.max(bytesRead, 0));
+                    return bytesRead;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return channel.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    channel.close();
+                }
+            };
+        }
+    }
+}
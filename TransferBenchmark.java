@@ -0,0 +1,117 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+// Loopback throughput comparison of the download paths used by FileServer
+// Usage: java TransferBenchmark [fileSizeMB] [iterations]
+public class TransferBenchmark {
+    private static final int LEGACY_BUFFER_SIZE = 4096;
+
+    // A download path under test
+    interface Sender {
+        void send(File file, SocketChannel channel) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileSizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        File file = createTestFile(fileSizeMb);
+        try {
+            System.out.println("File size: " + fileSizeMb + " MB, iterations: " + iterations);
+            run("stream loop (4 KB byte[])", file, iterations, new Sender() {
+                @Override
+                public void send(File file, SocketChannel channel) throws IOException {
+                    // The download loop FileServer used before TransferEngine
+                    OutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                    try (FileInputStream fis = new FileInputStream(file)) {
+                        byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+                        int bytesRead;
+                        while ((bytesRead = fis.read(buffer)) > 0) {
+                            out.write(buffer, 0, bytesRead);
+                        }
+                    }
+                }
+            });
+            run("direct buffer (" + TransferEngine.BUFFER_SIZE / 1024 + " KB)", file, iterations, new Sender() {
+                @Override
+                public void send(File file, SocketChannel channel) throws IOException {
+                    try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+                        TransferEngine.transferBuffered(fileChannel, 0, fileChannel.size(), channel);
+                    }
+                }
+            });
+            run("zero-copy transferTo", file, iterations, new Sender() {
+                @Override
+                public void send(File file, SocketChannel channel) throws IOException {
+                    try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+                        TransferEngine.transferZeroCopy(fileChannel, 0, fileChannel.size(), channel);
+                    }
+                }
+            });
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Method to create a file of random-ish content of the given size
+    private static File createTestFile(int sizeMb) throws IOException {
+        File file = File.createTempFile("transfer-benchmark", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new java.util.Random(42).nextBytes(block);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) {
+                fos.write(block);
+            }
+        }
+        return file;
+    }
+
+    // Method to time one download path, discarding the first run as warm-up
+    private static void run(String name, final File file, int iterations, Sender sender) throws Exception {
+        double bestMbPerSec = 0;
+        double totalMbPerSec = 0;
+        for (int i = 0; i <= iterations; i++) {
+            double mbPerSec = timeTransfer(file, sender);
+            if (i == 0) continue;
+            totalMbPerSec += mbPerSec;
+            bestMbPerSec = Math.max(bestMbPerSec, mbPerSec);
+        }
+        System.out.printf("%-28s avg %8.1f MB/s   best %8.1f MB/s%n", name, totalMbPerSec / iterations, bestMbPerSec);
+    }
+
+    // Method to send the file once over loopback and return the throughput seen by the receiver
+    private static double timeTransfer(final File file, Sender sender) throws Exception {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            final long expected = file.length();
+            final long[] elapsed = new long[1];
+            // Receiver drains the socket into a direct buffer, as a fast client would
+            Thread receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try (SocketChannel channel = SocketChannel.open(serverChannel.getLocalAddress())) {
+                        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                        long start = System.nanoTime();
+                        long received = 0;
+                        int bytesRead;
+                        while (received < expected && (bytesRead = channel.read(buffer)) > 0) {
+                            received += bytesRead;
+                            buffer.clear();
+                        }
+                        elapsed[0] = System.nanoTime() - start;
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            receiver.start();
+            try (SocketChannel channel = serverChannel.accept()) {
+                sender.send(file, channel);
+            }
+            receiver.join();
+            return (expected / (1024.0 * 1024.0)) / (elapsed[0] / 1e9);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Client library for the file server, with no user interface. Every operation runs on the client's
+// own worker threads and returns a CompletableFuture; transfers report progress to the given callback
+// from whichever thread moves the bytes. Requests share a pool of SESSION connections.
+// Given the other servers of a replicating cluster, downloads and listings are spread over all of
+// them by a ReplicaSet, while uploads, updates and clears go to the first server.
+// FileClient (Swing) and FileTransferCli (command line) are both thin layers over this class.
+public class TransferClient implements Closeable {
+    // Reply to an upload whose name is taken; sync() updates the file instead
+    static final String FILE_EXISTS = "ERROR: File already exists on the server.";
+    static final String DEFAULT_HOST = "localhost";
+    static final int DEFAULT_PORT = 42069;
+
+    private final ConnectionPool pool;
+    // Servers reads are spread over, null when there is only the one
+    private final ReplicaSet replicas;
+    private final ExecutorService executor;
+
+    // Progress callback for callers that do not follow progress
+    static final ParallelTransfer.Progress NO_PROGRESS = new ParallelTransfer.Progress() {
+        @Override
+        public void transferred(long bytes, long total) {
+        }
+    };
+
+    // One blocking operation run on the client's workers
+    interface Call<T> {
+        T call() throws IOException;
+    }
+
+    // Connects to the server lazily; at most maxConnections sessions and concurrency operations at once
+    public TransferClient(String host, int port, int maxConnections, int concurrency) {
+        this(host, port, new ArrayList<String>(), maxConnections, concurrency);
+    }
+
+    // Also reads from the replicas, given as host:port addresses of the server's peers
+    public TransferClient(String host, int port, List<String> replicas, int maxConnections, int concurrency) {
+        this.pool = new ConnectionPool(host, port, maxConnections);
+        this.replicas = replicas.isEmpty() ? null : new ReplicaSet(host, port, pool, replicas, maxConnections);
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "transfer-client-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Method to upload a file under its own name
+    public CompletableFuture<Void> upload(File file, ParallelTransfer.Progress progress) {
+        return upload(file, file.getName(), progress);
+    }
+
+    // Method to upload a file under a name, which may contain '/', over the best path the server
+    // supports; fails with a ServerException whose message is FILE_EXISTS if the name is taken
+    public CompletableFuture<Void> upload(final File file, final String name, final ParallelTransfer.Progress progress) {
+        return async(new Call<Void>() {
+            @Override
+            public Void call() throws IOException {
+                sendFile(file, name, progress);
+                return null;
+            }
+        });
+    }
+
+    // Method to update the server's file of the same name
+    public CompletableFuture<Void> sync(File file, ParallelTransfer.Progress progress) {
+        return sync(file, file.getName(), progress);
+    }
+
+    // Method to update a file the server already has under a name, sending only the blocks that changed
+    public CompletableFuture<Void> sync(final File file, final String name, final ParallelTransfer.Progress progress) {
+        return async(new Call<Void>() {
+            @Override
+            public Void call() throws IOException {
+                DeltaSync.sync(pool, file, name, progress);
+                return null;
+            }
+        });
+    }
+
+    // Method to download a file to outputFile; fails with FileNotFoundException if the server has no such file
+    public CompletableFuture<Void> download(final String fileName, final File outputFile, final ParallelTransfer.Progress progress) {
+        return async(new Call<Void>() {
+            @Override
+            public Void call() throws IOException {
+                return read(new ReplicaSet.Read<Void>() {
+                    @Override
+                    public Void read(ConnectionPool pool) throws IOException {
+                        // Ranges of large files are fetched over several connections at once
+                        ParallelTransfer.download(pool, fileName, outputFile, progress);
+                        return null;
+                    }
+                }, progress);
+            }
+        });
+    }
+
+    // Method to download the named files, or if there are none every file whose name starts with prefix,
+    // into dir as one archive stream; completes with the names the server did not have
+    public CompletableFuture<List<String>> downloadMany(final List<String> names, final String prefix, final File dir,
+                                                        final BundleDownload.Listener listener,
+                                                        final ParallelTransfer.Progress progress) {
+        return async(new Call<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+                List<String> missing = read(new ReplicaSet.Read<List<String>>() {
+                    @Override
+                    public List<String> read(ConnectionPool pool) throws IOException {
+                        return BundleDownload.download(pool, names, prefix, dir, listener, progress);
+                    }
+                }, progress);
+                if (replicas != null && !names.isEmpty() && !missing.isEmpty()) {
+                    // The replica may not have had them yet
+                    missing = BundleDownload.download(pool, missing, prefix, dir, listener, progress);
+                }
+                return missing;
+            }
+        });
+    }
+
+    // Method to fetch up to limit files whose names start with prefix, in name order after the cursor
+    public CompletableFuture<FileIndex.Page> listPage(final String prefix, final String cursor, final int limit) {
+        return async(new Call<FileIndex.Page>() {
+            @Override
+            public FileIndex.Page call() throws IOException {
+                return fetchPage(prefix, cursor, limit);
+            }
+        });
+    }
+
+    // Method to fetch every file whose name starts with prefix, page by page
+    public CompletableFuture<List<Storage.FileInfo>> list(final String prefix) {
+        return async(new Call<List<Storage.FileInfo>>() {
+            @Override
+            public List<Storage.FileInfo> call() throws IOException {
+                List<Storage.FileInfo> files = new ArrayList<Storage.FileInfo>();
+                String cursor = "";
+                do {
+                    FileIndex.Page page = fetchPage(prefix, cursor, FileIndex.MAX_PAGE_SIZE);
+                    files.addAll(page.files);
+                    cursor = page.nextCursor;
+                } while (!cursor.isEmpty());
+                return files;
+            }
+        });
+    }
+
+    // Method to delete every file on the server; completes with the number deleted
+    public CompletableFuture<Integer> clear() {
+        return async(new Call<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                try (MuxStream stream = pool.openStream();
+                     DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+                     DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+                    dos.writeUTF("CLEAR");
+                    String response = dis.readUTF();
+                    if (!"OK".equals(response)) {
+                        throw new ServerException(response);
+                    }
+                    return dis.readInt();
+                }
+            }
+        });
+    }
+
+    // Method to follow the server's change notifications on a background thread
+    public void subscribe(ChangeFeed.Listener listener) {
+        ChangeFeed.follow(pool, listener);
+    }
+
+    // Method to create a scheduler for uploading many files through this client's connections
+    public UploadScheduler newUploadScheduler(int concurrency, UploadScheduler.Handler handler) {
+        return new UploadScheduler(pool, concurrency, handler);
+    }
+
+    // Method to wait for an operation and rethrow its failure as the IOException it was
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    // Method to get the IOException behind a failed future's exception
+    static Throwable cause(Throwable error) {
+        while (error instanceof CompletionException || error instanceof ExecutionException) {
+            if (error.getCause() == null) break;
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    // Method to run a blocking call on the workers
+    private <T> CompletableFuture<T> async(final Call<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    future.complete(call.call());
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    // Method to upload a file over the best path the server supports
+    private void sendFile(File file, String name, ParallelTransfer.Progress progress) throws IOException {
+        if (DedupUpload.upload(pool, file, name, progress)) {
+            // A deduplicating server only received the chunks it did not have
+            return;
+        }
+        // Ranges are checked with CRC32C and the whole file with SHA-256 before the server publishes it;
+        // large files go up as several ranges at once
+        ParallelTransfer.upload(pool, file, name, progress);
+    }
+
+    // Method to run a read on the replica expected to answer first, or on the server if there are none;
+    // progress hears about replicas that fail
+    private <T> T read(ReplicaSet.Read<T> read, ParallelTransfer.Progress progress) throws IOException {
+        return replicas != null ? replicas.read(read, progress) : read.read(pool);
+    }
+
+    // Method to request one page of the file list from whichever server is picked
+    private FileIndex.Page fetchPage(final String prefix, final String cursor, final int limit) throws IOException {
+        return read(new ReplicaSet.Read<FileIndex.Page>() {
+            @Override
+            public FileIndex.Page read(ConnectionPool pool) throws IOException {
+                return fetchPage(pool, prefix, cursor, limit);
+            }
+        }, NO_PROGRESS);
+    }
+
+    // Method to request one page of the file list from one server
+    private static FileIndex.Page fetchPage(ConnectionPool pool, String prefix, String cursor, int limit) throws IOException {
+        try (MuxStream stream = pool.openStream();
+             DataOutputStream dos = new DataOutputStream(stream.getOutputStream());
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("LIST_PAGE");
+            dos.writeUTF(prefix);
+            dos.writeUTF(cursor);
+            dos.writeInt(limit);
+            String response = dis.readUTF();
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            int fileCount = dis.readInt();
+            List<Storage.FileInfo> files = new ArrayList<Storage.FileInfo>(fileCount);
+            for (int i = 0; i < fileCount; i++) {
+                files.add(new Storage.FileInfo(dis.readUTF(), dis.readLong(), dis.readLong()));
+            }
+            return new FileIndex.Page(files, dis.readUTF());
+        }
+    }
+
+    // Method to stop the workers and close every connection
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (replicas != null) replicas.close();
+        pool.close();
+    }
+}
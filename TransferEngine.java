@@ -0,0 +1,113 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+// NIO engine used to stream file contents to a client socket
+public class TransferEngine {
+    // Size of the direct buffer used when zero-copy is not available
+    public static final int BUFFER_SIZE = 256 * 1024;
+    // Largest slice handed to a single transferTo call
+    private static final long MAX_TRANSFER_CHUNK = 8L * 1024 * 1024;
+    // Largest slice sent at once under a rate limit
+    private static final long THROTTLED_SLICE = 256 * 1024;
+
+    // One direct buffer per thread so the fallback path never allocates per transfer
+    private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private TransferEngine() {
+    }
+
+    // Method to send part of a file to the client, using sendfile when both ends are real channels
+    public static long sendFile(SeekableByteChannel source, long position, long count,
+                                Socket socket, OutputStream out) throws IOException {
+        // Anything already written to the stream must reach the socket before raw channel writes
+        out.flush();
+        SocketChannel socketChannel = socket != null ? socket.getChannel() : null;
+        boolean direct = socketChannel != null && socketChannel.isBlocking();
+        if (source instanceof FileCache.CachedChannel) {
+            // Cached contents are already in a direct buffer, so write them without another copy
+            WritableByteChannel target = direct ? socketChannel : Channels.newChannel(out);
+            long sent = ((FileCache.CachedChannel) source).transferTo(position, count, target);
+            // Bytes that bypass the connection's counted stream are counted here
+            if (direct) ServerMetrics.addBytesOut(sent);
+            return sent;
+        }
+        if (source instanceof FileChannel && direct) {
+            long sent = transferZeroCopy((FileChannel) source, position, count, socketChannel);
+            ServerMetrics.addBytesOut(sent);
+            return sent;
+        }
+        return transferBuffered(source, position, count, Channels.newChannel(out));
+    }
+
+    // Method to send part of a file within rate limits, one slice at a time as the limits allow
+    public static long sendFile(SeekableByteChannel source, long position, long count,
+                                Socket socket, OutputStream out, TrafficShaper.Throttle throttle) throws IOException {
+        if (!throttle.isLimited()) {
+            return sendFile(source, position, count, socket, out);
+        }
+        long sent = 0;
+        while (sent < count) {
+            long slice = throttle.take(Math.min(count - sent, THROTTLED_SLICE));
+            sent += sendFile(source, position + sent, slice, socket, out);
+        }
+        return sent;
+    }
+
+    // Method to copy file bytes straight to the target channel with FileChannel.transferTo
+    public static long transferZeroCopy(FileChannel fileChannel, long position, long count,
+                                        WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long transferred = fileChannel.transferTo(position + sent,
+                    Math.min(count - sent, MAX_TRANSFER_CHUNK), target);
+            if (transferred <= 0) {
+                // Zero-copy made no progress (end of file or unsupported target), finish with buffers
+                return sent + transferBuffered(fileChannel, position + sent, count - sent, target);
+            }
+            sent += transferred;
+        }
+        return sent;
+    }
+
+    // Method to copy file bytes through a large direct buffer
+    public static long transferBuffered(SeekableByteChannel source, long position, long count,
+                                        WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = directBuffer.get();
+        long sent = 0;
+        while (sent < count) {
+            buffer.clear();
+            if (count - sent < buffer.capacity()) {
+                buffer.limit((int) (count - sent));
+            }
+            int bytesRead = read(source, buffer, position + sent);
+            if (bytesRead < 0) {
+                throw new EOFException("File ended after " + sent + " of " + count + " bytes");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            sent += bytesRead;
+        }
+        return sent;
+    }
+
+    // Method to read at a position; file channels do it without moving their shared position
+    static int read(SeekableByteChannel source, ByteBuffer buffer, long position) throws IOException {
+        if (source instanceof FileChannel) {
+            return ((FileChannel) source).read(buffer, position);
+        }
+        // Other channels share one position, so a positioned read must not interleave with another thread's
+        synchronized (source) {
+            source.position(position);
+            return source.read(buffer);
+        }
+    }
+}
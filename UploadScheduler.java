@@ -0,0 +1,324 @@
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.Checksum;
+
+// Uploads many files, e.g. a dropped directory tree, with a bounded number of requests in flight.
+// Files under a directory are named by their path from it, e.g. photos/2024/beach.jpg, so the
+// tree is kept on the server.
+// Files wait in a work queue for one of a fixed set of worker threads. Files up to SMALL_FILE_SIZE
+// are packed into BATCH_UPLOAD requests of up to BATCH_MAX_FILES files or BATCH_MAX_BYTES, so a
+// directory of small files costs a few requests instead of one per file. Larger files go through
+// the handler's own single-file upload.
+// The number of workers is set with -Dtransfer.uploads=<requests>.
+public class UploadScheduler {
+    static final int CONCURRENCY = Integer.getInteger("transfer.uploads", 4);
+    static final long SMALL_FILE_SIZE = 256 * 1024;
+    static final int BATCH_MAX_FILES = 200;
+    static final long BATCH_MAX_BYTES = 4 * 1024 * 1024;
+    // Cleared once the server rejects BATCH_UPLOAD, so later batches go file by file
+    private static volatile boolean batchSupported = true;
+
+    // What the scheduler reports to and asks of its owner, for each file together with the name it
+    // is uploaded under; called on scheduler threads
+    interface Handler {
+        // Method called when a file joins the queue
+        void queued(File file, String name);
+
+        // Method to upload one file on its own
+        void upload(File file, String name) throws IOException;
+
+        // Method called when a file's upload ends, with the error or null; returns whether the file
+        // is on the server in the end, after anything the handler did to recover
+        boolean finished(File file, String name, IOException error);
+
+        // Method called when every queued file has finished
+        void idle(int succeeded, int failed);
+
+        // Method called when a path cannot be read or a batch fails as a whole
+        default void warning(String message) {
+            System.err.println(message);
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final Handler handler;
+    private final ExecutorService workers;
+
+    // Small files waiting to fill a batch, and the counts since the scheduler was last idle; guarded by this
+    private List<QueuedFile> batch = new ArrayList<QueuedFile>();
+    private long batchBytes;
+    private int outstanding;
+    private int succeeded;
+    private int failed;
+
+    public UploadScheduler(ConnectionPool pool, int concurrency, Handler handler) {
+        this.pool = pool;
+        this.handler = handler;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, concurrency));
+    }
+
+    // Method to queue files and every file under the given directories, walking them on a background thread
+    void uploadAll(final List<File> roots) {
+        synchronized (this) {
+            // The walk itself counts as outstanding so the scheduler is not idle before it ends
+            outstanding++;
+        }
+        Thread scanner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (File root : roots) {
+                        walk(root);
+                    }
+                } finally {
+                    flushBatch();
+                    release();
+                }
+            }
+        }, "upload-scanner");
+        scanner.setDaemon(true);
+        scanner.start();
+    }
+
+    // Method to queue every regular file under a path; symbolic links are not followed
+    private void walk(File root) {
+        // Name files after the root and their path under it, with '/' whatever the local separator
+        final Path base = root.getAbsoluteFile().toPath().getParent();
+        try {
+            Files.walkFileTree(root.getAbsoluteFile().toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (attributes.isRegularFile()) {
+                        String name = base != null ? base.relativize(path).toString() : path.getFileName().toString();
+                        submit(new QueuedFile(path.toFile(), name.replace(File.separatorChar, '/')), attributes.size());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    handler.warning("Skipping " + path + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            handler.warning("Failed to read " + root + ": " + e.getMessage());
+        }
+    }
+
+    // Method to queue one file, either into the current batch or as a request of its own
+    private void submit(final QueuedFile file, long size) {
+        synchronized (this) {
+            outstanding++;
+        }
+        handler.queued(file.file, file.name);
+        if (size > SMALL_FILE_SIZE || !batchSupported) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    uploadSingle(file);
+                }
+            });
+            return;
+        }
+        List<QueuedFile> full = null;
+        synchronized (this) {
+            batch.add(file);
+            batchBytes += size;
+            if (batch.size() >= BATCH_MAX_FILES || batchBytes >= BATCH_MAX_BYTES) {
+                full = takeBatch();
+            }
+        }
+        if (full != null) executeBatch(full);
+    }
+
+    // Method to send the small files still waiting, even if they do not fill a batch
+    private void flushBatch() {
+        List<QueuedFile> rest;
+        synchronized (this) {
+            rest = takeBatch();
+        }
+        if (!rest.isEmpty()) executeBatch(rest);
+    }
+
+    // Method to take the current batch and start a new one; callers hold this
+    private List<QueuedFile> takeBatch() {
+        List<QueuedFile> taken = batch;
+        batch = new ArrayList<QueuedFile>();
+        batchBytes = 0;
+        return taken;
+    }
+
+    // Method to queue a batch for a worker
+    private void executeBatch(final List<QueuedFile> files) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                uploadBatch(files);
+            }
+        });
+    }
+
+    // Method to upload one file through the handler and report how it ended
+    private void uploadSingle(QueuedFile file) {
+        IOException error = null;
+        try {
+            handler.upload(file.file, file.name);
+        } catch (IOException e) {
+            error = e;
+        }
+        done(handler.finished(file.file, file.name, error));
+    }
+
+    // Method to upload small files in one BATCH_UPLOAD request, file by file if the server cannot batch
+    private void uploadBatch(List<QueuedFile> queued) {
+        // Read the files first so the request announces exactly what it sends, even if they changed
+        // since they were queued; one that grew too large for a batch goes up on its own
+        List<QueuedFile> files = new ArrayList<QueuedFile>(queued.size());
+        List<byte[]> contents = new ArrayList<byte[]>(queued.size());
+        for (QueuedFile file : queued) {
+            byte[] data;
+            try {
+                data = readSmall(file.file);
+            } catch (IOException e) {
+                done(handler.finished(file.file, file.name, e));
+                continue;
+            }
+            if (data == null) {
+                uploadSingle(file);
+            } else {
+                files.add(file);
+                contents.add(data);
+            }
+        }
+        if (files.isEmpty()) return;
+        IOException[] errors = new IOException[files.size()];
+        try {
+            if (!sendBatch(files, contents, errors)) {
+                for (QueuedFile file : files) {
+                    uploadSingle(file);
+                }
+                return;
+            }
+        } catch (IOException e) {
+            // The request failed as a whole; files whose outcome is unknown count as failed
+            for (int i = 0; i < errors.length; i++) {
+                if (errors[i] == null) errors[i] = e;
+            }
+            handler.warning("Batch upload failed: " + e.getMessage());
+        }
+        for (int i = 0; i < files.size(); i++) {
+            if (errors[i] instanceof ServerException && Checksums.MISMATCH.equals(errors[i].getMessage())) {
+                // Corrupted on the way; send it again on its own
+                uploadSingle(files.get(i));
+            } else {
+                done(handler.finished(files.get(i).file, files.get(i).name, errors[i]));
+            }
+        }
+    }
+
+    // Method to send a batch and fill in each file's error; returns false if the server does not support batches.
+    // A file whose error stays null was stored.
+    private boolean sendBatch(List<QueuedFile> files, List<byte[]> contents, IOException[] errors) throws IOException {
+        boolean compress = false;
+        for (int i = 0; i < files.size(); i++) {
+            compress |= Compression.LEVEL > 0 && !Compression.isCompressedName(files.get(i).name);
+        }
+        try (Compression.Request stream = Compression.open(pool, compress);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(stream.getOutputStream()));
+             DataInputStream dis = new DataInputStream(stream.getInputStream())) {
+            dos.writeUTF("BATCH_UPLOAD");
+            dos.writeInt(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                dos.writeUTF(files.get(i).name);
+                dos.writeLong(contents.get(i).length);
+            }
+            dos.flush();
+            String response = dis.readUTF();
+            if ("ERROR: Unknown command".equals(response)) {
+                batchSupported = false;
+                return false;
+            } else if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            boolean[] accepted = new boolean[files.size()];
+            for (int i = 0; i < files.size(); i++) {
+                response = dis.readUTF();
+                accepted[i] = "OK".equals(response);
+                if (!accepted[i]) errors[i] = new ServerException(response);
+            }
+
+            // Send the accepted files back to back, each followed by its CRC32C
+            for (int i = 0; i < files.size(); i++) {
+                if (!accepted[i]) continue;
+                byte[] data = contents.get(i);
+                Checksum crc = Checksums.newCrc();
+                crc.update(data, 0, data.length);
+                dos.write(data);
+                dos.writeInt((int) crc.getValue());
+            }
+            dos.flush();
+            for (int i = 0; i < files.size(); i++) {
+                if (!accepted[i]) continue;
+                response = dis.readUTF();
+                if (!"OK".equals(response)) errors[i] = new ServerException(response);
+            }
+            return true;
+        }
+    }
+
+    // Method to read a whole file for a batch, or return null if it is now larger than SMALL_FILE_SIZE
+    private static byte[] readSmall(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length(), SMALL_FILE_SIZE));
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, bytesRead);
+                if (out.size() > SMALL_FILE_SIZE) return null;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // Method to count a finished file and report when nothing is left
+    private void done(boolean success) {
+        synchronized (this) {
+            if (success) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+        }
+        release();
+    }
+
+    // Method to drop one outstanding file or walk, and tell the handler once nothing is left
+    private void release() {
+        int succeededNow;
+        int failedNow;
+        synchronized (this) {
+            if (--outstanding > 0) return;
+            succeededNow = succeeded;
+            failedNow = failed;
+            succeeded = 0;
+            failed = 0;
+        }
+        handler.idle(succeededNow, failedNow);
+    }
+
+    // A local file and the name it is uploaded under
+    private static class QueuedFile {
+        final File file;
+        final String name;
+
+        QueuedFile(File file, String name) {
+            this.file = file;
+            this.name = name;
+        }
+    }
+}